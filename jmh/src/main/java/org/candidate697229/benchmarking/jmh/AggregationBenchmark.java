@@ -0,0 +1,61 @@
+package org.candidate697229.benchmarking.jmh;
+
+import org.candidate697229.algorithms.AggAlgorithm;
+import org.candidate697229.algorithms.AggOne;
+import org.candidate697229.algorithms.AggThree;
+import org.candidate697229.algorithms.AggTwo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the aggregate queries of AggOne, AggTwo and AggThree over an already loaded database. Preparing the
+ * algorithm (including building any per-key aggregates and trie indexes) is done once per trial and is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4G")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class AggregationBenchmark {
+    @Param({"AggOne", "AggTwo", "AggThree"})
+    public String algorithmName;
+
+    private AggAlgorithm algorithm;
+
+    /**
+     * Prepare the algorithm over the loaded database.
+     * @param state the loaded database
+     */
+    @Setup(Level.Trial)
+    public void setUp(DatabaseState state) {
+        if (algorithmName.equals("AggOne"))
+            algorithm = new AggOne(state.database);
+        else if (algorithmName.equals("AggTwo"))
+            algorithm = new AggTwo(state.database);
+        else
+            algorithm = new AggThree(state.database);
+    }
+
+    @Benchmark
+    public long[] computeAllAggregatesOfNaturalJoin() {
+        return algorithm.computeAllAggregatesOfNaturalJoin();
+    }
+
+    @Benchmark
+    public long computeOneAggregateOfNaturalJoin() {
+        return algorithm.computeOneAggregateOfNaturalJoin();
+    }
+}
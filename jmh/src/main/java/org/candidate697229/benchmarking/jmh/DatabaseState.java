@@ -0,0 +1,38 @@
+package org.candidate697229.benchmarking.jmh;
+
+import org.candidate697229.database.Database;
+import org.candidate697229.database.DatabaseCatalog;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark state holding a loaded database, so that benchmarks of the join and aggregation kernels do not include the
+ * time to read the database in. Only scale factors 1 to 5 have every relation of the housing schema.
+ */
+@State(Scope.Benchmark)
+public class DatabaseState {
+    @Param({"1", "2", "3"})
+    public int scaleFactor;
+
+    Database database;
+
+    /**
+     * Load the database for the current scale factor.
+     */
+    @Setup(Level.Trial)
+    public void load() {
+        database = DatabaseCatalog.get(directoryName(scaleFactor));
+    }
+
+    /**
+     * Get the directory holding the database for a scale factor, relative to the repository root.
+     * @param scaleFactor the scale factor
+     * @return the name of the directory
+     */
+    static String directoryName(int scaleFactor) {
+        return "housing/housing-" + scaleFactor;
+    }
+}
@@ -0,0 +1,93 @@
+package org.candidate697229.benchmarking.jmh;
+
+import org.candidate697229.database.Relation;
+import org.candidate697229.structures.Iterator;
+import org.candidate697229.structures.SequentialIterator;
+import org.candidate697229.structures.TrieIndex;
+import org.candidate697229.structures.TrieIterator;
+import org.candidate697229.structures.TupleStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of a single iterator moving along the first attribute of a relation, either by next() over every key or
+ * by seek() to an ascending sequence of keys spread over the relation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4G")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class IteratorBenchmark {
+    @Param({"House", "Restaurant"})
+    public String relation;
+
+    @Param({"Sequential", "Trie"})
+    public String iteratorType;
+
+    @Param({"64"})
+    public int seekStride;
+
+    private Iterator iterator;
+    private long[] seekTargets;
+
+    /**
+     * Build the iterator and the keys to seek to.
+     * @param state the loaded database
+     */
+    @Setup(Level.Trial)
+    public void setUp(DatabaseState state) {
+        TupleStorage tuples = null;
+        for (Relation candidate : state.database.getRelations()) {
+            if (candidate.getName().equals(relation))
+                tuples = candidate.getTuples();
+        }
+        if (tuples == null)
+            throw new IllegalArgumentException("No relation named " + relation);
+        iterator = iteratorType.equals("Trie")
+                ? new TrieIterator(tuples, TrieIndex.of(tuples, 1), 0, tuples.size())
+                : new SequentialIterator(tuples);
+
+        seekTargets = new long[(tuples.size() + seekStride - 1) / seekStride];
+        for (int i = 0; i < seekTargets.length; ++i)
+            seekTargets[i] = tuples.get(i * seekStride, 0);
+    }
+
+    @Benchmark
+    public long next() {
+        iterator.reset();
+        iterator.open();
+        long keys = 0;
+        while (!iterator.atEnd()) {
+            keys += iterator.key();
+            iterator.next();
+        }
+        return keys;
+    }
+
+    @Benchmark
+    public void seek(Blackhole blackhole) {
+        iterator.reset();
+        iterator.open();
+        for (long target : seekTargets) {
+            iterator.seek(target);
+            if (iterator.atEnd())
+                break;
+            blackhole.consume(iterator.key());
+        }
+    }
+}
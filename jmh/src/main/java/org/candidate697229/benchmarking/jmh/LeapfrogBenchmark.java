@@ -0,0 +1,59 @@
+package org.candidate697229.benchmarking.jmh;
+
+import org.candidate697229.database.Relation;
+import org.candidate697229.join.JoinPlan;
+import org.candidate697229.join.LeapfrogTriejoin;
+import org.candidate697229.structures.TupleStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the leapfrog triejoin on its own, moving through every block of join keys without touching the tuples
+ * in each block. On the housing schema there is a single join variable, so this is one unary leapfrog triejoin over
+ * all six relations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4G")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class LeapfrogBenchmark {
+    private LeapfrogTriejoin leapfrogTriejoin;
+
+    /**
+     * Open the join over the whole database.
+     * @param state the loaded database
+     */
+    @Setup(Level.Trial)
+    public void setUp(DatabaseState state) {
+        List<Relation> relations = state.database.getRelations();
+        TupleStorage[] tuples = new TupleStorage[relations.size()];
+        for (int i = 0; i < relations.size(); ++i)
+            tuples[i] = relations.get(i).getTuples();
+        leapfrogTriejoin = new JoinPlan(tuples, state.database.getAllExplicitJoinConditions()).open();
+    }
+
+    @Benchmark
+    public long overallNext() {
+        leapfrogTriejoin.reset();
+        long blocks = 0;
+        while (!leapfrogTriejoin.overallAtEnd()) {
+            ++blocks;
+            leapfrogTriejoin.overallNext();
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,35 @@
+package org.candidate697229.benchmarking.jmh;
+
+import org.candidate697229.database.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of reading a database directory into relations. With snapshots enabled (the default), every run after the
+ * first maps the snapshots rather than parsing and sorting the .tbl files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4G")
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class LoadBenchmark {
+    @Param({"1", "2", "3"})
+    public int scaleFactor;
+
+    @Benchmark
+    public Database makeFromDirectory() {
+        return Database.makeFromDirectory(DatabaseState.directoryName(scaleFactor));
+    }
+}
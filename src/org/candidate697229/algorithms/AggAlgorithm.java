@@ -15,4 +15,46 @@ public interface AggAlgorithm {
      * @return the result of the query
      */
     long computeOneAggregateOfNaturalJoin();
+
+    /**
+     * Run a query computing the sum of each product of attribute pairs in the database, exactly even if some sums do
+     * not fit in a long.
+     * @return the result of the query
+     */
+    default AggregateResult computeAllAggregatesOfNaturalJoinExactly() {
+        return AggregateResult.ofLongs(computeAllAggregatesOfNaturalJoin());
+    }
+
+    /**
+     * Run a query computing the sum of one product of attribute pairs in the database, exactly even if the sum does
+     * not fit in a long.
+     * @return the result of the query, holding a single aggregate
+     */
+    default AggregateResult computeOneAggregateOfNaturalJoinExactly() {
+        return AggregateResult.ofLongs(computeOneAggregateOfNaturalJoin());
+    }
+
+    /**
+     * Run a query computing some aggregates of the natural join of the relations in the database, exactly even if some
+     * do not fit in a long.
+     * @param query the aggregates to compute
+     * @return the result of the query, holding the aggregates in the order the query lists them
+     * @throws IllegalArgumentException if the query names an attribute that is not in the database, or is grouped
+     * @throws UnsupportedOperationException if the algorithm only computes a fixed set of aggregates
+     */
+    default AggregateResult computeAggregatesOfNaturalJoin(AggregateQuery query) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot run arbitrary aggregate queries.");
+    }
+
+    /**
+     * Run a query computing some aggregates of the natural join of the relations in the database for each value of
+     * the attribute it groups by, exactly even if some do not fit in a long.
+     * @param query the aggregates to compute and the attribute to group by
+     * @return the result of the query, holding the aggregates of each value of the attribute that appears in the join
+     * @throws IllegalArgumentException if the query names an attribute that is not in the database, or is not grouped
+     * @throws UnsupportedOperationException if the algorithm cannot group its results
+     */
+    default GroupedAggregateResult computeGroupedAggregatesOfNaturalJoin(AggregateQuery query) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot run grouped aggregate queries.");
+    }
 }
@@ -1,114 +1,324 @@
 package org.candidate697229.algorithms;
 
+import org.candidate697229.codegen.TupleKernel;
 import org.candidate697229.database.Database;
+import org.candidate697229.database.DatabaseCatalog;
+import org.candidate697229.join.JoinPlan;
 import org.candidate697229.join.LeapfrogTriejoin;
+import org.candidate697229.structures.ColumnBlocks;
 import org.candidate697229.structures.Iterator;
-import org.candidate697229.structures.SequentialIterator;
+import org.candidate697229.structures.LongRowHashMap;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
 
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
 import static org.candidate697229.util.Configuration.USE_EXAMPLE_DATABASE;
+import static org.candidate697229.util.Configuration.USE_PARALLEL_EXECUTION;
 
 /**
  * Implementation of aggregation with the first improvement.
  */
 public class AggOne implements AggAlgorithm {
-    private final int[][] attributePairs;
-    private final LeapfrogTriejoin leapfrogTriejoin;
-    private final Iterator[] iterators;
-    private int[] returnPositions;
-    private long[][] tuples;
+    private final Database database;
+    private final int[][] allPairs;
+    private final int[][] firstPair;
+    private final Supplier<TupleKernel> allPairsKernel;
+    private final Supplier<TupleKernel> firstPairKernel;
+    private final JoinPlan plan;
+    private final ThreadLocal<Execution> executions;
 
     /**
      * Construction a new instance of this algorithm.
      * @param scaleFactor the scaleFactor to run on
      */
     public AggOne(int scaleFactor) {
-        Database database = Database.makeFromDirectory(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor);
-        attributePairs = database.getAllPairsOfAttributes().toArray(new int[0][]);
-        iterators = new Iterator[database.getRelations().size()];
+        this(DatabaseCatalog.get(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor));
+    }
+
+    /**
+     * Construct a new instance of this algorithm over a database that has already been read in. The instance can be
+     * queried any number of times, from any number of threads at once, and never modifies the database.
+     * @param database the database to run on
+     */
+    public AggOne(Database database) {
+        this.database = database;
+        allPairs = AggregateQuery.allPairs(database).resolve(database);
+        firstPair = AggregateQuery.firstPair(database).resolve(database);
+        allPairsKernel = KernelSource.tupleKernel(allPairs);
+        firstPairKernel = KernelSource.tupleKernel(firstPair);
+        TupleStorage[] relations = new TupleStorage[database.getRelations().size()];
         for (int i = 0; i < database.getRelations().size(); ++i)
-            iterators[i] = new SequentialIterator(database.getRelations().get(i).getTuples());
-        leapfrogTriejoin = new LeapfrogTriejoin(iterators, database.getAllExplicitJoinConditions());
-        returnPositions = new int[iterators.length];
-        tuples = new long[iterators.length][];
+            relations[i] = database.getRelations().get(i).getTuples();
+        plan = new JoinPlan(relations, database.getAllExplicitJoinConditions());
+        executions = ThreadLocal.withInitial(() -> new Execution(plan.open()));
     }
 
     @Override
     public long[] computeAllAggregatesOfNaturalJoin() {
-        long[] result = new long[attributePairs.length];
-
-        copyAllTuples();
-        while (!leapfrogTriejoin.overallAtEnd()) {
-            int agg = 0;
-            for (int[] attributePair : attributePairs)
-                result[agg++] += calculateFromInstruction(attributePair);
-            advanceToNextTuple();
-        }
-
-        return result;
+        return computeAllAggregatesOfNaturalJoinExactly().toLongArrayExact();
     }
 
     @Override
     public long computeOneAggregateOfNaturalJoin() {
-        long result = 0;
+        return computeOneAggregateOfNaturalJoinExactly().longValueExact(0);
+    }
 
-        copyAllTuples();
-        while (!leapfrogTriejoin.overallAtEnd()) {
-            result += calculateFromInstruction(attributePairs[0]);
-            advanceToNextTuple();
-        }
+    @Override
+    public AggregateResult computeAllAggregatesOfNaturalJoinExactly() {
+        return compute(allPairs, allPairsKernel.get());
+    }
+
+    @Override
+    public AggregateResult computeOneAggregateOfNaturalJoinExactly() {
+        return compute(firstPair, firstPairKernel.get());
+    }
+
+    @Override
+    public AggregateResult computeAggregatesOfNaturalJoin(AggregateQuery query) {
+        query.requireUngrouped();
+        int[][] instructions = query.resolve(database);
+        return compute(instructions, KernelSource.tupleKernel(instructions).get());
+    }
+
+    @Override
+    public GroupedAggregateResult computeGroupedAggregatesOfNaturalJoin(AggregateQuery query) {
+        int[][] instructions = query.resolve(database);
+        int[] groupPosition = query.resolveGroupBy(database);
+        TupleKernel kernel = KernelSource.tupleKernel(instructions).get();
+        if (USE_PARALLEL_EXECUTION)
+            return new GroupedAggregateResult(KeyRangeTask.computeInParallel(plan,
+                    () -> new LongRowHashMap(2 * instructions.length),
+                    (from, to) -> new Execution(plan.open(from, to))
+                            .computeGrouped(instructions, kernel, groupPosition),
+                    GroupedAggregateResult::addAll));
+        return new GroupedAggregateResult(reusedExecution().computeGrouped(instructions, kernel, groupPosition));
+    }
 
-        return result;
+    /**
+     * Compute some aggregates over the join.
+     * @param instructions the instruction for each aggregate (for a description of the form these take, see the
+     *                     addFromInstruction method below)
+     * @param kernel the kernel generated from the instructions, or null to interpret them
+     * @return the result of the query
+     */
+    private AggregateResult compute(int[][] instructions, TupleKernel kernel) {
+        if (USE_PARALLEL_EXECUTION)
+            return new AggregateResult(KeyRangeTask.computeInParallel(plan, instructions.length,
+                    (from, to) -> new Execution(plan.open(from, to)).compute(instructions, kernel)));
+        return new AggregateResult(reusedExecution().compute(instructions, kernel));
     }
 
     /**
-     * Copy all the tuples at the current position of each iterator to the tuples variable.
+     * Get the execution over the whole of every relation kept for the current thread, rewound to the start.
+     * @return an execution ready to run
      */
-    private void copyAllTuples() {
-        for (int i = 0; i < iterators.length; ++i)
-            tuples[i] = iterators[i].value();
+    private Execution reusedExecution() {
+        Execution execution = executions.get();
+        execution.reset();
+        return execution;
     }
 
     /**
-     * Advance the iterators to the next tuple, by either iterating in tuple-nested loop join style over tuples with
-     * the same join keys, or using the leapfrog triejoin to move to the next matching join keys if we have exhaused
-     * all tuples with the current join keys.
+     * A single run of the algorithm over some ranges of the relations, holding the iterators and join it moves along.
+     * An execution belongs to one thread at a time, and can be reset to run again.
+     *
+     * The attributes of the current tuples are read from the blocks of their values over each relation (see
+     * ColumnBlocks), at the position of the row each iterator is on, which the execution finds again whenever it moves
+     * the iterators.
      */
-    private void advanceToNextTuple() {
-        for (int i = 0; i < iterators.length; ++i) {
-            if (iterators[i].isNextInBlock()) {
-                /*
-                 * If we reach here, i is the first iterator that we can advance without changing the join keys, so we
-                 * do this and then rewind any iterators before this to get all combinations with tuples from these.
-                 */
-                iterators[i].nextInBlock();
-                tuples[i] = iterators[i].value();
-                returnPositions[i]++;
-                for (int j = 0; j < i; ++j) {
-                    iterators[j].back(returnPositions[j]);
-                    returnPositions[j] = 0;
-                    tuples[j] = iterators[j].value();
+    private class Execution {
+        private final Iterator[] iterators;
+        private final LeapfrogTriejoin leapfrogTriejoin;
+        private final int[] returnPositions;
+        private final int[] rows;
+        private final ColumnBlocks[] blocks;
+        private final long[][][] columns;
+
+        /**
+         * Construct an execution.
+         * @param leapfrogTriejoin the join to move along, positioned at its first result
+         */
+        Execution(LeapfrogTriejoin leapfrogTriejoin) {
+            this.leapfrogTriejoin = leapfrogTriejoin;
+            iterators = leapfrogTriejoin.getIterators();
+            returnPositions = new int[iterators.length];
+            rows = new int[iterators.length];
+            blocks = new ColumnBlocks[iterators.length];
+            columns = new long[iterators.length][][];
+        }
+
+        /**
+         * Rewind the execution back to the first result of the join.
+         */
+        void reset() {
+            leapfrogTriejoin.reset();
+            Arrays.fill(returnPositions, 0);
+        }
+
+        /**
+         * Set up the blocks of the values of every attribute some instructions read, and of the attribute grouped by.
+         * @param instructions the instruction for each aggregate
+         * @param groupPosition the relation and position within that relation of the attribute to group by, or null
+         *                      if the aggregates are not grouped
+         */
+        private void readColumns(int[][] instructions, int[] groupPosition) {
+            boolean[][] isRead = new boolean[iterators.length][];
+            for (int i = 0; i < iterators.length; ++i)
+                isRead[i] = new boolean[plan.getRelation(i).arity()];
+            for (int[] instruction : instructions) {
+                for (int j = 0; j < instruction.length; j += 2)
+                    isRead[instruction[j]][instruction[j + 1]] = true;
+            }
+            if (groupPosition != null)
+                isRead[groupPosition[0]][groupPosition[1]] = true;
+
+            for (int i = 0; i < iterators.length; ++i) {
+                int[] attributes = new int[isRead[i].length];
+                int numOfRead = 0;
+                for (int j = 0; j < isRead[i].length; ++j) {
+                    if (isRead[i][j])
+                        attributes[numOfRead++] = j;
                 }
-                return;
+                blocks[i] = new ColumnBlocks(plan.getRelation(i), Arrays.copyOf(attributes, numOfRead));
+                columns[i] = blocks[i].columns();
             }
         }
 
-        /*
-         * If we reach here, we have finished iterating over combinations of tuples with the current join key, and should
-         * instead use leapfrog triejoin to jump to the next join key in the data (after rewinding all the iterators).
+        /**
+         * Find where the values of the row each iterator is on are in the blocks, after the join has moved them.
          */
-        for (int i = 0; i < iterators.length; ++i)
-            returnPositions[i] = 0;
-        leapfrogTriejoin.overallNext();
-        copyAllTuples();
-    }
+        private void findRows() {
+            for (int i = 0; i < iterators.length; ++i)
+                rows[i] = blocks[i].locate(iterators[i].row());
+        }
 
-    /**
-     * Calculate a product from a set of result tuples of the join.
-     * @param instruction a four-tuple of relation and position in the relation for two attributes we wish to multiply
-     * @return the result of the multiplication
-     */
-    private long calculateFromInstruction(int[] instruction) {
-        return tuples[instruction[0]][instruction[1]] * tuples[instruction[2]][instruction[3]];
+        /**
+         * Compute some aggregates over the join.
+         * @param instructions the instruction for each aggregate
+         * @param kernel the kernel generated from the instructions, or null to interpret them
+         * @return the result of the query, as 128-bit values held as described in Int128
+         */
+        long[] compute(int[][] instructions, TupleKernel kernel) {
+            readColumns(instructions, null);
+            long[] sums = new long[instructions.length];
+            long[] spilled = Int128.newArray(instructions.length);
+
+            findRows();
+            while (!leapfrogTriejoin.overallAtEnd()) {
+                addAggregates(instructions, kernel, sums, spilled);
+                advanceToNextTuple();
+            }
+
+            long[] result = Int128.newArray(instructions.length);
+            Int128.addAccumulated(result, 0, sums, spilled);
+            return result;
+        }
+
+        /**
+         * Compute some aggregates over the join for each value of an attribute.
+         * @param instructions the instruction for each aggregate
+         * @param kernel the kernel generated from the instructions, or null to interpret them
+         * @param groupPosition the relation and position within that relation of the attribute to group by
+         * @return the map from each value of the attribute to the result of the query for that value, as 128-bit
+         *          values held as described in Int128
+         */
+        LongRowHashMap computeGrouped(int[][] instructions, TupleKernel kernel, int[] groupPosition) {
+            readColumns(instructions, groupPosition);
+            LongRowHashMap groups = new LongRowHashMap(2 * instructions.length);
+            long[] groupColumn = columns[groupPosition[0]][groupPosition[1]];
+            long[] sums = new long[instructions.length];
+            long[] spilled = Int128.newArray(instructions.length);
+
+            findRows();
+            while (!leapfrogTriejoin.overallAtEnd()) {
+                int agg = groups.findOrInsert(groupColumn[rows[groupPosition[0]]]) * instructions.length;
+                addAggregates(instructions, kernel, sums, spilled);
+                Int128.addAccumulated(groups.values(), agg, sums, spilled);
+                advanceToNextTuple();
+            }
+
+            return groups;
+        }
+
+        /**
+         * Advance the iterators to the next tuple, by either iterating in tuple-nested loop join style over tuples with
+         * the same join keys, or using the leapfrog triejoin to move to the next matching join keys if we have exhaused
+         * all tuples with the current join keys.
+         */
+        private void advanceToNextTuple() {
+            for (int i = 0; i < iterators.length; ++i) {
+                if (iterators[i].isNextInBlock()) {
+                    /*
+                     * If we reach here, i is the first iterator that we can advance without changing the join keys, so
+                     * we do this and then rewind any iterators before this to get all combinations with tuples from these.
+                     */
+                    iterators[i].nextInBlock();
+                    rows[i] = blocks[i].locate(iterators[i].row());
+                    returnPositions[i]++;
+                    for (int j = 0; j < i; ++j) {
+                        iterators[j].back(returnPositions[j]);
+                        rows[j] = blocks[j].locate(iterators[j].row());
+                        returnPositions[j] = 0;
+                    }
+                    return;
+                }
+            }
+
+            /*
+             * If we reach here, we have finished iterating over combinations of tuples with the current join key, and
+             * should instead use leapfrog triejoin to jump to the next join key in the data (after rewinding all the
+             * iterators).
+             */
+            long tuplesInBlock = 1;
+            for (int i = 0; i < iterators.length; ++i) {
+                if (COLLECT_JOIN_STATISTICS)
+                    tuplesInBlock *= returnPositions[i] + 1;
+                iterators[i].back(returnPositions[i]);
+                returnPositions[i] = 0;
+            }
+            if (COLLECT_JOIN_STATISTICS)
+                leapfrogTriejoin.countEnumeratedTuples(tuplesInBlock);
+            leapfrogTriejoin.overallNext();
+            findRows();
+        }
+
+        /**
+         * Add what the tuples the iterators are currently positioned at contribute to each aggregate.
+         * @param instructions the instruction for each aggregate
+         * @param kernel the kernel generated from the instructions, or null to interpret them
+         * @param sums the aggregates accumulated in longs, as described in Int128.accumulate
+         * @param spilled the 128-bit values the aggregates spill into
+         */
+        private void addAggregates(int[][] instructions, TupleKernel kernel, long[] sums, long[] spilled) {
+            if (kernel != null) {
+                kernel.addAggregates(columns, rows, sums, spilled);
+                return;
+            }
+            for (int agg = 0; agg < instructions.length; ++agg)
+                addFromInstruction(sums, spilled, agg, instructions[agg]);
+        }
+
+        /**
+         * Calculate a product from the tuples the iterators are currently positioned at, and add it to an aggregate.
+         * @param sums the aggregates accumulated in longs, as described in Int128.accumulate
+         * @param spilled the 128-bit values the aggregates spill into
+         * @param aggregate the index of the aggregate to add to
+         * @param instruction a relation and position in the relation for each attribute we wish to multiply, which is
+         *                    a four-tuple for a SUM(A*B), a pair for a SUM(A) and empty for a COUNT
+         */
+        private void addFromInstruction(long[] sums, long[] spilled, int aggregate, int[] instruction) {
+            if (instruction.length == 4)
+                Int128.accumulateProduct(sums, spilled, aggregate,
+                        columns[instruction[0]][instruction[1]][rows[instruction[0]]],
+                        columns[instruction[2]][instruction[3]][rows[instruction[2]]]);
+            else if (instruction.length == 2)
+                Int128.accumulate(sums, spilled, aggregate,
+                        columns[instruction[0]][instruction[1]][rows[instruction[0]]]);
+            else
+                Int128.accumulate(sums, spilled, aggregate, 1);
+        }
     }
 }
-
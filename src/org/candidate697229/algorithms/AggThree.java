@@ -0,0 +1,454 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.database.Database;
+import org.candidate697229.database.DatabaseCatalog;
+import org.candidate697229.database.KeyAggregates;
+import org.candidate697229.database.Relation;
+import org.candidate697229.join.JoinTree;
+import org.candidate697229.structures.LongRowHashMap;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.candidate697229.util.Configuration.USE_EXAMPLE_DATABASE;
+import static org.candidate697229.util.Configuration.USE_KEY_AGGREGATES;
+import static org.candidate697229.util.Configuration.USE_PARALLEL_EXECUTION;
+
+/**
+ * Implementation of aggregation over a join tree, which computes the aggregates of each subtree bottom-up rather than
+ * enumerating the join, so that for an acyclic join its work grows with the size of the relations rather than the size
+ * of the join.
+ *
+ * The aggregates of a set of tuples over some attributes are held together as one element of the covariance ring: the
+ * COUNT, SUM(A) for each attribute A and SUM(A*B) for each pair of attributes A and B. The element of the join of two
+ * sets over disjoint attributes is the product of their elements, which is found from the elements alone. Each
+ * relation therefore sends its parent the sum, for each value of the key it is joined to its parent on, of the products
+ * of its tuples with that key and the elements its children sent for them, leaving out the key attributes (which the
+ * parent holds itself). The sum of the elements at the root holds every aggregate of the join.
+ */
+public class AggThree implements AggAlgorithm {
+    private final Database database;
+    private final JoinTree tree;
+    private final int[] numberOfJoinAttributes;
+    private final boolean[] isOverKeyAggregates;
+    private final CompiledQuery allPairs;
+    private final CompiledQuery firstPair;
+
+    /**
+     * Construct a new instance of this algorithm.
+     * @param scaleFactor the scaleFactor to run on
+     */
+    public AggThree(int scaleFactor) {
+        this(DatabaseCatalog.get(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor));
+    }
+
+    /**
+     * Construct a new instance of this algorithm over a database that has already been read in, joined along the join
+     * tree chosen by JoinTree.choose. The instance can be queried any number of times, from any number of threads at
+     * once, and never modifies the database (apart from building the per-key aggregates the relations keep).
+     * @param database the database to run on
+     * @throws IllegalArgumentException if the join of the relations is cyclic
+     */
+    public AggThree(Database database) {
+        this(database, JoinTree.choose(attributesOf(database)));
+    }
+
+    /**
+     * Construct a new instance of this algorithm over a database that has already been read in, joined along a given
+     * join tree.
+     * @param database the database to run on
+     * @param tree the join tree of the relations of the database
+     */
+    public AggThree(Database database, JoinTree tree) {
+        this.database = database;
+        this.tree = tree;
+        List<List<String>> attributes = attributesOf(database);
+        numberOfJoinAttributes = new int[attributes.size()];
+        isOverKeyAggregates = new boolean[attributes.size()];
+        for (int i = 0; i < attributes.size(); ++i) {
+            /*
+             * A relation can be read through its per-key aggregates if the attributes it shares with other relations
+             * (which are the keys it is joined to its parent and children on) are the ones it is sorted on first.
+             */
+            boolean[] isShared = new boolean[attributes.get(i).size()];
+            for (int j = 0; j < attributes.size(); ++j) {
+                for (int k = 0; j != i && k < isShared.length; ++k)
+                    isShared[k] |= attributes.get(j).contains(attributes.get(i).get(k));
+            }
+            while (numberOfJoinAttributes[i] < isShared.length && isShared[numberOfJoinAttributes[i]])
+                numberOfJoinAttributes[i]++;
+            boolean isLeading = true;
+            for (int k = numberOfJoinAttributes[i]; k < isShared.length; ++k)
+                isLeading &= !isShared[k];
+            isOverKeyAggregates[i] = USE_KEY_AGGREGATES && isLeading;
+        }
+        allPairs = new CompiledQuery(AggregateQuery.allPairs(database));
+        firstPair = new CompiledQuery(AggregateQuery.firstPair(database));
+    }
+
+    /**
+     * Get the attribute names of each relation in a database.
+     * @param database the database
+     * @return the attribute names of each relation
+     */
+    private static List<List<String>> attributesOf(Database database) {
+        return database.getRelations().stream().map(Relation::getAttributes).collect(Collectors.toList());
+    }
+
+    @Override
+    public long[] computeAllAggregatesOfNaturalJoin() {
+        return computeAllAggregatesOfNaturalJoinExactly().toLongArrayExact();
+    }
+
+    @Override
+    public long computeOneAggregateOfNaturalJoin() {
+        return computeOneAggregateOfNaturalJoinExactly().longValueExact(0);
+    }
+
+    @Override
+    public AggregateResult computeAllAggregatesOfNaturalJoinExactly() {
+        return compute(allPairs);
+    }
+
+    @Override
+    public AggregateResult computeOneAggregateOfNaturalJoinExactly() {
+        return compute(firstPair);
+    }
+
+    @Override
+    public AggregateResult computeAggregatesOfNaturalJoin(AggregateQuery query) {
+        query.requireUngrouped();
+        return compute(new CompiledQuery(query));
+    }
+
+    /**
+     * Compute the aggregates of a compiled query over the join.
+     * @param query the compiled query
+     * @return the result of the query
+     */
+    private AggregateResult compute(CompiledQuery query) {
+        LongRowHashMap total = computeMessage(query, tree.getRoot());
+        long[] result = Int128.newArray(query.resultIndices.length);
+        for (int i = 0; total.size() > 0 && i < query.resultIndices.length; ++i)
+            Int128.set(result, i, total.values(), query.resultIndices[i]);
+        return new AggregateResult(result);
+    }
+
+    /**
+     * Compute the element a relation sends its parent: for each value of the key it is joined to its parent on, the
+     * sum of the products of its tuples with that key and the elements its children sent for them.
+     * @param query the compiled query
+     * @param relation the relation
+     * @return the map from each key to its element over the attributes of the message of the relation (see
+     *          CompiledQuery), as 128-bit values held as described in Int128, which for the root has a single entry
+     *          with an empty key unless the join is empty
+     */
+    private LongRowHashMap computeMessage(CompiledQuery query, int relation) {
+        int[] children = tree.getChildren(relation);
+        LongRowHashMap[] messages = new LongRowHashMap[children.length];
+        IntStream childIndices = IntStream.range(0, children.length);
+        (USE_PARALLEL_EXECUTION ? childIndices.parallel() : childIndices)
+                .forEach(c -> messages[c] = computeMessage(query, children[c]));
+
+        Relation source = database.getRelations().get(relation);
+        TupleStorage rows = isOverKeyAggregates[relation] ? source.getKeyAggregates(numberOfJoinAttributes[relation],
+                query.keyAggregateColumns[relation]) : source.getTuples();
+        int[] keyColumns = tree.getKeyColumns(relation);
+        int[] projection = query.projections[relation];
+        int size = query.layoutSizes[relation];
+        LongRowHashMap result = new LongRowHashMap(keyColumns.length, 2 * projection.length);
+
+        long[] element = Int128.newArray(elementWidth(size));
+        long[] key = new long[keyColumns.length];
+
+        /*
+         * The element of a row is the product of parts over disjoint attributes: the row itself, followed by the
+         * element each child sent for it.
+         */
+        long[][] parts = new long[children.length + 1][];
+        int[] offsets = new int[children.length + 1];
+        int[] sizes = new int[children.length + 1];
+        int[] starts = new int[children.length + 1];
+        sizes[0] = query.ownAttributes[relation].length;
+        parts[0] = Int128.newArray(elementWidth(sizes[0]));
+        for (int c = 0; c < children.length; ++c) {
+            parts[c + 1] = messages[c].values();
+            sizes[c + 1] = query.messageSizes[children[c]];
+            starts[c + 1] = query.childStarts[relation][c];
+        }
+        long[] countProducts = Int128.newArray(parts.length * (parts.length + 1));
+        long[][] childKeys = new long[children.length][];
+        int[] childEntries = new int[children.length];
+        for (int c = 0; c < children.length; ++c)
+            childKeys[c] = new long[tree.getParentKeyColumns(children[c]).length];
+
+        rows:
+        for (int row = 0; row < rows.size(); ++row) {
+            /*
+             * Find the element each child sent for the keys of this row, skipping the row if any child has none (as
+             * then the row joins with nothing).
+             */
+            for (int c = 0; c < children.length; ++c) {
+                int[] columns = tree.getParentKeyColumns(children[c]);
+                for (int k = 0; k < columns.length; ++k)
+                    childKeys[c][k] = rows.get(row, columns[k]);
+                childEntries[c] = messages[c].find(childKeys[c]);
+                if (childEntries[c] < 0)
+                    continue rows;
+            }
+
+            setToRow(query, relation, rows, row, parts[0]);
+            for (int c = 0; c < children.length; ++c)
+                offsets[c + 1] = childEntries[c] * elementWidth(sizes[c + 1]);
+            multiply(element, size, parts, offsets, sizes, starts, countProducts);
+
+            for (int k = 0; k < keyColumns.length; ++k)
+                key[k] = rows.get(row, keyColumns[k]);
+            int index = result.findOrInsert(key) * projection.length;
+            long[] values = result.values();
+            for (int j = 0; j < projection.length; ++j)
+                Int128.add(values, index + j, element, projection[j]);
+        }
+        return result;
+    }
+
+    /**
+     * Set an element to that of a row of a relation, over the attributes of the relation itself that the query uses.
+     * @param query the compiled query
+     * @param relation the relation
+     * @param rows the rows of the relation, which are its per-key aggregates or its tuples
+     * @param row the row
+     * @param element the element, as 128-bit values held as described in Int128
+     */
+    private void setToRow(CompiledQuery query, int relation, TupleStorage rows, int row, long[] element) {
+        int[] attributes = query.ownAttributes[relation];
+        int size = attributes.length;
+        if (isOverKeyAggregates[relation]) {
+            /*
+             * The per-key aggregates hold the COUNT and then both halves of each SUM the element needs, in the columns
+             * listed by the compiled query in the same order as the element.
+             */
+            int[] columns = query.keyAggregateColumns[relation];
+            Int128.set(element, 0, rows.get(row, columns[0]));
+            for (int j = 1; j < columns.length; ++j)
+                Int128.set(element, j, rows.get(row, columns[j]), rows.get(row, columns[j] + 1));
+        } else {
+            Int128.set(element, 0, 1);
+            for (int a = 0; a < attributes.length; ++a) {
+                long value = rows.get(row, attributes[a]);
+                Int128.set(element, 1 + a, value);
+                for (int b = a; b < attributes.length; ++b) {
+                    Int128.set(element, pairIndex(size, a, b), 0);
+                    Int128.addProduct(element, pairIndex(size, a, b), value, rows.get(row, attributes[b]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Set an element to the product of parts over disjoint attributes, each taking up a contiguous range of its layout.
+     * For parts (c_i, s_i, Q_i), the COUNT of the product is the product of the c_i, and every other aggregate is the
+     * product of one aggregate of one or two of the parts with the COUNTs of all the others:
+     * - SUM(A) for A in part i is s_i(A) times the COUNTs of every part but i,
+     * - SUM(A*B) for A and B in part i is Q_i(A, B) times the COUNTs of every part but i,
+     * - SUM(A*B) for A in part i and B in part j is s_i(A) s_j(B) times the COUNTs of every part but i and j.
+     * @param element the element to set, as 128-bit values held as described in Int128
+     * @param size the number of attributes in the layout of the element
+     * @param parts the array holding each part
+     * @param offsets the index of the first 128-bit value of each part in its array
+     * @param sizes the number of attributes of each part
+     * @param starts the position in the layout of the element of the first attribute of each part
+     * @param countProducts a buffer for the products of the COUNTs, holding a 128-bit value for each part and each pair
+     *                      of parts
+     */
+    private static void multiply(long[] element, int size, long[][] parts, int[] offsets, int[] sizes, int[] starts,
+                                 long[] countProducts) {
+        /*
+         * Work out the product of the COUNTs of every part but each part, and of every part but each pair of parts.
+         */
+        int numOfParts = parts.length;
+        for (int i = 0; i < numOfParts; ++i) {
+            for (int j = i; j < numOfParts; ++j) {
+                int index = numOfParts + i * numOfParts + j;
+                Int128.set(countProducts, index, 1);
+                for (int k = 0; k < numOfParts; ++k) {
+                    if (k != i && k != j)
+                        Int128.multiply(countProducts, index, parts[k], offsets[k]);
+                }
+            }
+            Int128.set(countProducts, i, countProducts, numOfParts + i * numOfParts + i);
+        }
+
+        Int128.set(element, 0, parts[0], offsets[0]);
+        Int128.multiply(element, 0, countProducts, 0);
+        for (int i = 0; i < numOfParts; ++i) {
+            for (int a = 0; a < sizes[i]; ++a) {
+                int x = starts[i] + a;
+                Int128.set(element, 1 + x, parts[i], offsets[i] + 1 + a);
+                Int128.multiply(element, 1 + x, countProducts, i);
+                for (int b = a; b < sizes[i]; ++b) {
+                    int index = pairIndex(size, x, starts[i] + b);
+                    Int128.set(element, index, parts[i], offsets[i] + pairIndex(sizes[i], a, b));
+                    Int128.multiply(element, index, countProducts, i);
+                }
+                for (int j = i + 1; j < numOfParts; ++j) {
+                    for (int b = 0; b < sizes[j]; ++b) {
+                        int index = pairIndex(size, x, starts[j] + b);
+                        Int128.set(element, index, parts[i], offsets[i] + 1 + a);
+                        Int128.multiply(element, index, parts[j], offsets[j] + 1 + b);
+                        Int128.multiply(element, index, countProducts, numOfParts + i * numOfParts + j);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of aggregates in an element over some attributes.
+     * @param size the number of attributes
+     * @return the number of aggregates, which is one COUNT, a SUM for each attribute and a SUM for each pair
+     */
+    private static int elementWidth(int size) {
+        return 1 + size + (size * (size + 1)) / 2;
+    }
+
+    /**
+     * Get the index in an element of the SUM of the product of a pair of attributes, which come after the COUNT and the
+     * SUM of each attribute in order of the first attribute and then the second.
+     * @param size the number of attributes of the element
+     * @param first the position of the first attribute in the layout of the element
+     * @param second the position of the second attribute, which is not before the first
+     * @return the index of the SUM of the product in the element
+     */
+    private static int pairIndex(int size, int first, int second) {
+        return 1 + size + first * size - (first * (first - 1)) / 2 + (second - first);
+    }
+
+    /**
+     * Plan of the elements computed for a query. Only the attributes the query mentions are kept in the elements, laid
+     * out for each relation as the attributes of the relation itself, in order, followed by the attributes of the
+     * message of each child in turn. The message of a relation has the same attributes apart from those it shares with
+     * its parent. By the running intersection property, the attributes of a relation and the messages of its children
+     * are disjoint, and the layout of the root holds each attribute the query mentions exactly once. For a relation
+     * read through its per-key aggregates, the columns holding the aggregates of its own attributes are listed too, so
+     * only those need computing.
+     */
+    private class CompiledQuery {
+        private final int[][] ownAttributes;
+        private final int[] layoutSizes;
+        private final int[] messageSizes;
+        private final int[][] childStarts;
+        private final int[][] projections;
+        private final int[] resultIndices;
+        private final int[][] keyAggregateColumns;
+
+        /**
+         * Compile a query.
+         * @param query the query
+         * @throws IllegalArgumentException if the query names an attribute that is not in the database
+         */
+        CompiledQuery(AggregateQuery query) {
+            query.resolve(database);
+            Set<String> used = new TreeSet<>();
+            for (AggregateQuery.Term term : query.getTerms())
+                used.addAll(term.getAttributes());
+
+            int numOfRelations = tree.size();
+            ownAttributes = new int[numOfRelations][];
+            layoutSizes = new int[numOfRelations];
+            messageSizes = new int[numOfRelations];
+            childStarts = new int[numOfRelations][];
+            projections = new int[numOfRelations][];
+            keyAggregateColumns = new int[numOfRelations][];
+            List<List<String>> layouts = new ArrayList<>();
+            for (int i = 0; i < numOfRelations; ++i)
+                layouts.add(null);
+            List<List<String>> messages = new ArrayList<>(layouts);
+            compileSubtree(tree.getRoot(), used, layouts, messages);
+
+            List<String> rootLayout = layouts.get(tree.getRoot());
+            int rootSize = rootLayout.size();
+            resultIndices = new int[query.size()];
+            for (int i = 0; i < query.size(); ++i) {
+                List<String> attributes = query.getTerms().get(i).getAttributes();
+                if (attributes.size() == 1)
+                    resultIndices[i] = 1 + rootLayout.indexOf(attributes.get(0));
+                else if (attributes.size() == 2) {
+                    int first = rootLayout.indexOf(attributes.get(0));
+                    int second = rootLayout.indexOf(attributes.get(1));
+                    resultIndices[i] = pairIndex(rootSize, Math.min(first, second), Math.max(first, second));
+                }
+            }
+        }
+
+        /**
+         * Lay out the elements of a relation and of every relation below it.
+         * @param relation the relation at the top of the subtree
+         * @param used the names of the attributes the query mentions
+         * @param layouts the list to set the names of the attributes in the layout of each relation in
+         * @param messages the list to set the names of the attributes in the message of each relation in
+         */
+        private void compileSubtree(int relation, Set<String> used, List<List<String>> layouts,
+                                    List<List<String>> messages) {
+            List<String> attributes = database.getRelations().get(relation).getAttributes();
+            List<String> layout = new ArrayList<>();
+            List<Integer> own = new ArrayList<>();
+            for (int a = 0; a < attributes.size(); ++a) {
+                if (used.contains(attributes.get(a))) {
+                    layout.add(attributes.get(a));
+                    own.add(a);
+                }
+            }
+            ownAttributes[relation] = own.stream().mapToInt(Integer::intValue).toArray();
+
+            /*
+             * Find the columns of the per-key aggregates holding the COUNT and the SUMs over the attributes of the
+             * relation itself, in the order they come in its element.
+             */
+            int[] attributesUsed = ownAttributes[relation];
+            int numOfKeys = numberOfJoinAttributes[relation];
+            keyAggregateColumns[relation] = new int[elementWidth(attributesUsed.length)];
+            keyAggregateColumns[relation][0] = KeyAggregates.countColumn(numOfKeys);
+            for (int a = 0; a < attributesUsed.length; ++a) {
+                keyAggregateColumns[relation][1 + a] = KeyAggregates.sumColumn(numOfKeys, attributesUsed[a]);
+                for (int b = a; b < attributesUsed.length; ++b)
+                    keyAggregateColumns[relation][pairIndex(attributesUsed.length, a, b)] = KeyAggregates.productColumn(
+                            numOfKeys, attributes.size(), attributesUsed[a], attributesUsed[b]);
+            }
+
+            int[] children = tree.getChildren(relation);
+            childStarts[relation] = new int[children.length];
+            for (int c = 0; c < children.length; ++c) {
+                compileSubtree(children[c], used, layouts, messages);
+                childStarts[relation][c] = layout.size();
+                layout.addAll(messages.get(children[c]));
+            }
+
+            List<String> message = new ArrayList<>(layout);
+            for (int column : tree.getKeyColumns(relation))
+                message.remove(attributes.get(column));
+            layouts.set(relation, layout);
+            messages.set(relation, message);
+            layoutSizes[relation] = layout.size();
+            messageSizes[relation] = message.size();
+
+            /*
+             * Find where each aggregate of the message is in the element of the relation.
+             */
+            int[] positions = message.stream().mapToInt(layout::indexOf).toArray();
+            projections[relation] = new int[elementWidth(positions.length)];
+            for (int a = 0; a < positions.length; ++a) {
+                projections[relation][1 + a] = 1 + positions[a];
+                for (int b = a; b < positions.length; ++b)
+                    projections[relation][pairIndex(positions.length, a, b)] =
+                            pairIndex(layout.size(), positions[a], positions[b]);
+            }
+        }
+    }
+}
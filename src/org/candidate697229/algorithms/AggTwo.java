@@ -1,43 +1,68 @@
 package org.candidate697229.algorithms;
 
+import org.candidate697229.codegen.SummedTupleKernel;
 import org.candidate697229.database.Database;
+import org.candidate697229.database.DatabaseCatalog;
+import org.candidate697229.database.KeyAggregates;
 import org.candidate697229.database.Relation;
+import org.candidate697229.join.JoinPlan;
 import org.candidate697229.join.LeapfrogTriejoin;
+import org.candidate697229.structures.ColumnBlocks;
 import org.candidate697229.structures.Iterator;
-import org.candidate697229.structures.SequentialIterator;
+import org.candidate697229.structures.LongRowHashMap;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+import org.candidate697229.util.ProductSumBlock;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static org.candidate697229.util.Configuration.USE_EXAMPLE_DATABASE;
+import static org.candidate697229.util.Configuration.USE_KEY_AGGREGATES;
+import static org.candidate697229.util.Configuration.USE_PARALLEL_EXECUTION;
+import static org.candidate697229.util.Configuration.USE_PRODUCT_SUM_BLOCKS;
 
 /**
  * Implementation of aggregation with both improvements.
  */
 public class AggTwo implements AggAlgorithm {
-    private final List<int[]> instructions;
+    private final Database database;
     private final int[] numberOfJoinAttributes;
-    private final LeapfrogTriejoin leapfrogTriejoin;
-    private final long[][] summedTuple;
-    private final Iterator[] iterators;
+    private final int[] numberOfAttributes;
+    private final CompiledQuery allPairs;
+    private final CompiledQuery firstPair;
+    private final List<List<int[]>> joinConditions;
+    private final JoinPlan plan;
+    private final ThreadLocal<Execution> allPairsExecutions;
+    private final ThreadLocal<Execution> firstPairExecutions;
 
     /**
      * Construct a new instance of this algorithm.
      * @param scaleFactor the scaleFactor to run on
      */
     public AggTwo(int scaleFactor) {
-        Database database = Database.makeFromDirectory(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor);
-        instructions = getInstructions(database);
+        this(DatabaseCatalog.get(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor));
+    }
+
+    /**
+     * Construct a new instance of this algorithm over a database that has already been read in. The instance can be
+     * queried any number of times, from any number of threads at once, and never modifies the database (apart from
+     * building the per-key aggregates the relations keep).
+     * @param database the database to run on
+     */
+    public AggTwo(Database database) {
+        this.database = database;
         numberOfJoinAttributes = new int[database.getRelations().size()];
-        summedTuple = new long[database.getRelations().size()][];
-        iterators = new Iterator[database.getRelations().size()];
-        for (int i = 0; i < database.getRelations().size(); ++i)
-            iterators[i] = new SequentialIterator(database.getRelations().get(i).getTuples());
-        leapfrogTriejoin = new LeapfrogTriejoin(iterators, database.getAllExplicitJoinConditions());
+        numberOfAttributes = new int[database.getRelations().size()];
+        joinConditions = database.getAllExplicitJoinConditions();
         for (int i = 0; i < database.getRelations().size(); ++i) {
-            Relation relation = database.getRelations().get(i);
-            List<List<int[]>> joinInstructions = database.getAllExplicitJoinConditions().stream()
+            List<List<int[]>> joinInstructions = joinConditions.stream()
                     .filter(instructions -> instructions.size() > 1).collect(Collectors.toList());
             for (List<int[]> positions : joinInstructions) {
                 for (int[] position : positions) {
@@ -45,159 +70,664 @@ public class AggTwo implements AggAlgorithm {
                         numberOfJoinAttributes[i]++;
                 }
             }
-            int numOfAttributes = relation.getAttributes().size();
-            summedTuple[i] = new long[numberOfJoinAttributes[i] + 1 + numOfAttributes +
-                    ((numOfAttributes * (numOfAttributes + 1)) / 2)];
+            numberOfAttributes[i] = database.getRelations().get(i).getAttributes().size();
         }
+
+        /*
+         * With per-key aggregates, each relation is replaced in the join by its table of per-key aggregates, which has
+         * the same join keys but only one row per key.
+         */
+        TupleStorage[] relations = new TupleStorage[database.getRelations().size()];
+        for (int i = 0; i < database.getRelations().size(); ++i) {
+            Relation relation = database.getRelations().get(i);
+            relations[i] = USE_KEY_AGGREGATES ? relation.getKeyAggregates(numberOfJoinAttributes[i]) : relation.getTuples();
+        }
+        plan = new JoinPlan(relations, joinConditions);
+        allPairs = new CompiledQuery(AggregateQuery.allPairs(database));
+        firstPair = new CompiledQuery(AggregateQuery.firstPair(database));
+        allPairsExecutions = ThreadLocal.withInitial(() -> new Execution(plan.open(), relationsOf(plan), allPairs, USE_KEY_AGGREGATES));
+        firstPairExecutions = ThreadLocal.withInitial(() -> new Execution(plan.open(), relationsOf(plan), firstPair, USE_KEY_AGGREGATES));
     }
 
     @Override
     public long[] computeAllAggregatesOfNaturalJoin() {
-        long[] result = new long[instructions.size()];
-        while (!leapfrogTriejoin.overallAtEnd()) {
-            calculateSummedTuple();
-            long countProduct = 1;
-            for (int i = 0; i < summedTuple.length; ++i)
-                countProduct *= summedTuple[i][numberOfJoinAttributes[i]];
-            int pos = 0;
-            for (int[] instruction : instructions)
-                result[pos++] += calculateFromInstruction(instruction, countProduct);
-            leapfrogTriejoin.overallNext();
-        }
-        return result;
+        return computeAllAggregatesOfNaturalJoinExactly().toLongArrayExact();
     }
 
     @Override
     public long computeOneAggregateOfNaturalJoin() {
-        long result = 0;
-        while (!leapfrogTriejoin.overallAtEnd()) {
-            calculateSummedTuple();
-            long countProduct = 1;
-            for (int i = 0; i < summedTuple.length; ++i)
-                countProduct *= summedTuple[i][numberOfJoinAttributes[i]];
-            result += calculateFromInstruction(instructions.get(0), countProduct);
-            leapfrogTriejoin.overallNext();
-        }
-        return result;
+        return computeOneAggregateOfNaturalJoinExactly().longValueExact(0);
+    }
+
+    @Override
+    public AggregateResult computeAllAggregatesOfNaturalJoinExactly() {
+        return compute(allPairs, allPairsExecutions);
+    }
+
+    @Override
+    public AggregateResult computeOneAggregateOfNaturalJoinExactly() {
+        return compute(firstPair, firstPairExecutions);
+    }
+
+    @Override
+    public AggregateResult computeAggregatesOfNaturalJoin(AggregateQuery query) {
+        query.requireUngrouped();
+        return compute(new CompiledQuery(query), null);
+    }
+
+    @Override
+    public GroupedAggregateResult computeGroupedAggregatesOfNaturalJoin(AggregateQuery query) {
+        query.resolveGroupBy(database);
+        CompiledQuery compiledQuery = new CompiledQuery(query);
+        JoinPlan queryPlan = compiledQuery.plan;
+        SummedTupleKernel kernel = compiledQuery.kernel.get();
+        if (USE_PARALLEL_EXECUTION)
+            return new GroupedAggregateResult(KeyRangeTask.computeInParallel(queryPlan,
+                    () -> new LongRowHashMap(2 * compiledQuery.instructions.size()),
+                    (from, to) -> new Execution(queryPlan.open(from, to), relationsOf(queryPlan), compiledQuery, USE_KEY_AGGREGATES)
+                            .computeGrouped(kernel),
+                    GroupedAggregateResult::addAll));
+        return new GroupedAggregateResult(
+                new Execution(queryPlan.open(), relationsOf(queryPlan), compiledQuery, USE_KEY_AGGREGATES).computeGrouped(kernel));
     }
 
     /**
-     * For each relation, iterate over the tuples with the current join key, and compute the partial aggregates we will
-     * need into the two-dimensional array summedTuple.
+     * Compute the aggregates of a compiled query over the join.
+     * @param query the compiled query
+     * @param executions the executions over the whole of every relation kept for each thread for this query, or null
+     *                   to make a new one
+     * @return the result of the query
      */
-    private void calculateSummedTuple() {
-        for (int i = 0; i < iterators.length; ++i) {
-            /*
-             * Copy the join key into the start of the summed tuple, recording if it has changed or not
-             */
-            boolean didChangeJoinKey = false;
-            for (int j = 0; j < numberOfJoinAttributes[i]; ++j) {
-                if (summedTuple[i][j] != iterators[i].value()[j]) {
-                    summedTuple[i][j] = iterators[i].value()[j];
-                    didChangeJoinKey = true;
+    private AggregateResult compute(CompiledQuery query, ThreadLocal<Execution> executions) {
+        SummedTupleKernel kernel = query.kernel.get();
+        if (USE_PARALLEL_EXECUTION)
+            return new AggregateResult(KeyRangeTask.computeInParallel(query.plan, query.instructions.size(),
+                    (from, to) -> new Execution(query.plan.open(from, to), relationsOf(query.plan), query, USE_KEY_AGGREGATES).compute(kernel)));
+        if (executions == null)
+            return new AggregateResult(new Execution(query.plan.open(), relationsOf(query.plan), query, USE_KEY_AGGREGATES).compute(kernel));
+        Execution execution = executions.get();
+        execution.reset();
+        return new AggregateResult(execution.compute(kernel));
+    }
+
+    /**
+     * Compute the sum of each product of attribute pairs over a join of the per-key aggregates of each relation, which
+     * may be any ranges or versions of the per-key aggregates rather than the ones this instance was constructed over.
+     * @param leapfrogTriejoin the join of the per-key aggregates, positioned at its first result
+     * @param relations the per-key aggregates of each relation the join is over
+     * @return the result of the query over that join, as 128-bit values held as described in Int128
+     */
+    long[] computeAllOverKeyAggregates(LeapfrogTriejoin leapfrogTriejoin, TupleStorage[] relations) {
+        return new Execution(leapfrogTriejoin, relations, allPairs, true).compute(allPairs.kernel.get());
+    }
+
+    /**
+     * Get the tuples of every relation a plan joins.
+     * @param plan the plan
+     * @return the tuples of each relation
+     */
+    private static TupleStorage[] relationsOf(JoinPlan plan) {
+        TupleStorage[] relations = new TupleStorage[plan.getNumberOfRelations()];
+        for (int i = 0; i < relations.length; ++i)
+            relations[i] = plan.getRelation(i);
+        return relations;
+    }
+
+    /**
+     * Get the number of join attributes of a relation, which are its leading attributes and the key of its per-key
+     * aggregates.
+     * @param relation the index of the relation
+     * @return the number of join attributes
+     */
+    int getNumberOfJoinAttributes(int relation) {
+        return numberOfJoinAttributes[relation];
+    }
+
+    /**
+     * A single run of the algorithm over some ranges of the relations, holding the iterators and join it moves along
+     * and the partial aggregates for the current join key. An execution belongs to one thread at a time, and can be
+     * reset to run again.
+     *
+     * The partial aggregates are exact 128-bit values, as a SUM over a block of tuples can overflow a long even when
+     * the aggregates of the join do not. Almost all of them fit in a long, though, so summedTuple holds their low 64
+     * bits, which are all the generated kernel and the instructions need, and summedHigh holds their high 64 bits,
+     * which are only read for a relation marked as wide because one of its partial aggregates does not fit in a long.
+     *
+     * The attributes are read from the blocks of their values over each relation (see ColumnBlocks), set up when the
+     * execution is constructed, at the position of the row each iterator is on.
+     */
+    private class Execution {
+        private final Iterator[] iterators;
+        private final ColumnBlocks[] columnBlocks;
+        private final long[][][] columns;
+        private final LeapfrogTriejoin leapfrogTriejoin;
+        private final CompiledQuery query;
+        private final long[][] summedTuple;
+        private final long[][] summedHigh;
+        private final boolean[] isWide;
+        private final long[][] sums;
+        private final long[][] longSums;
+        private final long[][] spilledSums;
+        private final long[] aggregateSums;
+        private final long[] spilledAggregates;
+        private final long[] factor;
+        private final boolean[] isSummed;
+        private final long[][] currentTuple;
+        private final ProductSumBlock[] blocks;
+        private final long[] countProducts;
+        private final long[] longCountProducts;
+        private final long[] term;
+        private final boolean isOverKeyAggregates;
+        private final LongRowHashMap groupPartials;
+        private SummedTupleKernel kernel;
+
+        /**
+         * Construct an execution.
+         * @param leapfrogTriejoin the join to move along, positioned at its first result
+         * @param relations the tuples (or per-key aggregates) of each relation the join is over
+         * @param query the query to compute
+         * @param isOverKeyAggregates true if the join is of the per-key aggregates of each relation rather than its
+         *                            tuples
+         */
+        Execution(LeapfrogTriejoin leapfrogTriejoin, TupleStorage[] relations, CompiledQuery query,
+                  boolean isOverKeyAggregates) {
+            this.leapfrogTriejoin = leapfrogTriejoin;
+            this.query = query;
+            this.isOverKeyAggregates = isOverKeyAggregates;
+            iterators = leapfrogTriejoin.getIterators();
+            summedTuple = new long[iterators.length][];
+            summedHigh = new long[iterators.length][];
+            isWide = new boolean[iterators.length];
+            sums = new long[iterators.length][];
+            longSums = new long[iterators.length][];
+            spilledSums = new long[iterators.length][];
+            factor = Int128.newArray(1);
+            isSummed = new boolean[iterators.length];
+            currentTuple = new long[iterators.length][];
+            blocks = new ProductSumBlock[iterators.length];
+            for (int i = 0; i < iterators.length; ++i) {
+                summedTuple[i] = new long[numberOfJoinAttributes[i] + query.keyAggregateColumns[i].length];
+                summedHigh[i] = new long[summedTuple[i].length];
+                sums[i] = Int128.newArray(query.keyAggregateColumns[i].length);
+                longSums[i] = new long[query.keyAggregateColumns[i].length];
+                spilledSums[i] = Int128.newArray(query.keyAggregateColumns[i].length);
+                currentTuple[i] = new long[numberOfAttributes[i]];
+                blocks[i] = new ProductSumBlock(numberOfAttributes[i], query.usedAttributes[i]);
+            }
+            countProducts = Int128.newArray(iterators.length * iterators.length);
+            longCountProducts = new long[iterators.length * iterators.length];
+            term = Int128.newArray(1);
+            aggregateSums = new long[query.instructions.size()];
+            spilledAggregates = Int128.newArray(query.instructions.size());
+            groupPartials = query.isGroupedWithinBlocks ?
+                    new LongRowHashMap(2 * query.keyAggregateColumns[query.groupRelation].length) : null;
+            columnBlocks = new ColumnBlocks[iterators.length];
+            columns = new long[iterators.length][][];
+            for (int i = 0; i < iterators.length; ++i) {
+                columnBlocks[i] = new ColumnBlocks(relations[i], readAttributes(i));
+                columns[i] = columnBlocks[i].columns();
+            }
+        }
+
+        /**
+         * Find the attributes of a relation this execution reads: the join key, and either the partial aggregates the
+         * query needs if the relation is joined through its per-key aggregates, or the attributes the query uses if it
+         * is joined through its tuples.
+         * @param relation the index of the relation
+         * @return the positions of the attributes read, in order
+         */
+        private int[] readAttributes(int relation) {
+            TreeSet<Integer> attributes = new TreeSet<>();
+            for (int j = 0; j < numberOfJoinAttributes[relation]; ++j)
+                attributes.add(j);
+            if (isOverKeyAggregates && !(query.isGroupedWithinBlocks && relation == query.groupRelation)) {
+                int[] keyAggregateColumns = query.keyAggregateColumns[relation];
+                attributes.add(keyAggregateColumns[0]);
+                for (int j = 1; j < keyAggregateColumns.length; ++j) {
+                    attributes.add(keyAggregateColumns[j]);
+                    attributes.add(keyAggregateColumns[j] + 1);
                 }
+            } else {
+                for (int j : query.usedAttributes[relation])
+                    attributes.add(j);
             }
+            return attributes.stream().mapToInt(Integer::intValue).toArray();
+        }
 
-            /*
-             * If the join key hasn't changed for this relation, we needn't recompute the partial aggregates,
-             * so we can just move on to the next relation.
-             */
-            if (!didChangeJoinKey)
-                continue;
+        /**
+         * Rewind the execution back to the first result of the join, forgetting the partial aggregates.
+         */
+        void reset() {
+            leapfrogTriejoin.reset();
+            Arrays.fill(isSummed, false);
+        }
 
-            /*
-             * Reset the COUNT and all the SUMs to 0.
-             */
-            for (int j = numberOfJoinAttributes[i]; j < summedTuple[i].length; ++j)
-                summedTuple[i][j] = 0;
+        /**
+         * Compute the aggregates of the query over the join.
+         * @param kernel the kernel generated for the query, or null to interpret its instructions
+         * @return the result of the query, as 128-bit values held as described in Int128
+         */
+        long[] compute(SummedTupleKernel kernel) {
+            this.kernel = kernel;
+            while (!leapfrogTriejoin.overallAtEnd()) {
+                calculateSummedTuple();
+                addAggregates();
+                leapfrogTriejoin.overallNext();
+            }
+            long[] result = Int128.newArray(query.instructions.size());
+            Int128.addAccumulated(result, 0, aggregateSums, spilledAggregates);
+            return result;
+        }
 
-            while (true) {
-                long[] tuple = iterators[i].value();
-                int k = numberOfJoinAttributes[i];
+        /**
+         * Compute the aggregates of the query over the join for each value of the attribute it groups by. When that is
+         * a join attribute, each result of the join falls in a single group. Otherwise the partial aggregates of the
+         * relation holding it are summed separately for each of its values, and each result of the join adds to every
+         * group found in that relation's block of tuples.
+         * @param kernel the kernel generated for the query, or null to interpret its instructions
+         * @return the map from each value of the grouping attribute to the result of the query for that value, as
+         *          128-bit values held as described in Int128
+         */
+        LongRowHashMap computeGrouped(SummedTupleKernel kernel) {
+            this.kernel = kernel;
+            int g = query.groupRelation;
+            int numOfPartials = query.keyAggregateColumns[g].length;
+            LongRowHashMap groups = new LongRowHashMap(2 * query.instructions.size());
+            while (!leapfrogTriejoin.overallAtEnd()) {
+                calculateSummedTuple();
+                if (!query.isGroupedWithinBlocks) {
+                    int index = groups.findOrInsert(summedTuple[g][query.groupAttribute]) * query.instructions.size();
+                    addAggregates();
+                    Int128.addAccumulated(groups.values(), index, aggregateSums, spilledAggregates);
+                } else {
+                    for (int entry = 0; entry < groupPartials.size(); ++entry) {
+                        setPartials(g, groupPartials.values(), entry * numOfPartials);
+                        int index = groups.findOrInsert(groupPartials.keyAt(entry)) * query.instructions.size();
+                        addAggregates();
+                        Int128.addAccumulated(groups.values(), index, aggregateSums, spilledAggregates);
+                    }
+                }
+                leapfrogTriejoin.overallNext();
+            }
+            return groups;
+        }
+
+        /**
+         * Add what the current result of the join contributes to each aggregate of the query, from the partial
+         * aggregates in summedTuple, to the aggregates accumulated in aggregateSums (see Int128.accumulate).
+         */
+        private void addAggregates() {
+            boolean isAnyWide = false;
+            for (boolean isRelationWide : isWide)
+                isAnyWide |= isRelationWide;
+            if (kernel != null && !isAnyWide &&
+                    kernel.addAggregates(summedTuple, longCountProducts, aggregateSums, spilledAggregates))
+                return;
+            for (int position : query.countProducts)
+                calculateCountProduct(position / iterators.length, position % iterators.length);
+            int pos = 0;
+            for (int[] instruction : query.instructions)
+                addFromInstruction(spilledAggregates, pos++, instruction);
+        }
+
+        /**
+         * Calculate the product of the COUNT aggregates of every relation apart from one or two, into position
+         * (i * number of relations + k) of countProducts. Leaving relations out of the product, rather than dividing
+         * the product of all the COUNTs by them, keeps every intermediate value no larger than it has to be.
+         * @param i the index of the first relation to leave out
+         * @param k the index of the second relation to leave out, which is i to leave out only one relation
+         */
+        private void calculateCountProduct(int i, int k) {
+            int position = i * iterators.length + k;
+            Int128.set(countProducts, position, 1);
+            for (int j = 0; j < iterators.length; ++j) {
+                if (j != i && j != k)
+                    Int128.multiply(countProducts, position, summedTuple[j][numberOfJoinAttributes[j]]);
+            }
+        }
+
+        /**
+         * For each relation, iterate over the tuples with the current join key, and compute the partial aggregates the
+         * query needs into the two-dimensional array summedTuple (see CompiledQuery for their layout), or for a relation
+         * grouped within its blocks, into groupPartials for each value of the grouping attribute.
+         */
+        private void calculateSummedTuple() {
+            for (int i = 0; i < iterators.length; ++i) {
+                long[][] relationColumns = columns[i];
+                int row = columnBlocks[i].locate(iterators[i].row());
 
                 /*
-                 * Increment the COUNT by one.
+                 * Copy the join key into the start of the summed tuple, recording if it has changed or not (or if
+                 * there is nothing summed yet)
                  */
-                summedTuple[i][k++]++;
+                boolean didChangeJoinKey = !isSummed[i];
+                isSummed[i] = true;
+                for (int j = 0; j < numberOfJoinAttributes[i]; ++j) {
+                    if (summedTuple[i][j] != relationColumns[j][row]) {
+                        summedTuple[i][j] = relationColumns[j][row];
+                        didChangeJoinKey = true;
+                    }
+                }
 
                 /*
-                 * Adjust all aggregates of the form SUM(A) for a single attribute A.
+                 * If the join key hasn't changed for this relation, we needn't recompute the partial aggregates,
+                 * so we can just move on to the next relation.
                  */
-                for (long attribute : tuple) summedTuple[i][k++] += attribute;
+                if (!didChangeJoinKey)
+                    continue;
 
+                /*
+                 * If we are joining the per-key aggregates, the row we are on already holds the partial aggregates: the
+                 * COUNT, and then both halves of each SUM.
+                 */
+                boolean isGroupedWithinBlock = query.isGroupedWithinBlocks && i == query.groupRelation;
+                if (isOverKeyAggregates && !isGroupedWithinBlock) {
+                    int[] keyAggregateColumns = query.keyAggregateColumns[i];
+                    int offset = numberOfJoinAttributes[i];
+                    boolean isRelationWide = false;
+                    summedTuple[i][offset] = relationColumns[keyAggregateColumns[0]][row];
+                    for (int j = 1; j < keyAggregateColumns.length; ++j) {
+                        long high = relationColumns[keyAggregateColumns[j]][row];
+                        long low = relationColumns[keyAggregateColumns[j] + 1][row];
+                        summedTuple[i][offset + j] = low;
+                        summedHigh[i][offset + j] = high;
+                        isRelationWide |= high != (low >> 63);
+                    }
+                    isWide[i] = isRelationWide;
+                    continue;
+                }
 
                 /*
-                 * Adjust all aggregates of the form SUM(A*B) for a pair of attributes A and B, with A preceding or equal to B.
+                 * Reset the COUNT and all the SUMs to 0.
                  */
-                for (int a = 0; a < tuple.length; a++) {
-                    for (int b = a; b < tuple.length; b++)
-                        summedTuple[i][k++] += tuple[a] * tuple[b];
+                Arrays.fill(sums[i], 0);
+                if (isGroupedWithinBlock)
+                    groupPartials.clear();
+
+                long[] tuple = currentTuple[i];
+                int[] usedAttributes = query.usedAttributes[i];
+                int[] summedAttributes = query.summedAttributes[i];
+                int[] firstFactors = query.firstFactors[i];
+                int[] secondFactors = query.secondFactors[i];
+                if (USE_PRODUCT_SUM_BLOCKS && !isGroupedWithinBlock) {
+                    /*
+                     * Gather the block of tuples into columns, adding them to the aggregates whenever the buffer fills
+                     * up and once more at the end of the block.
+                     */
+                    ProductSumBlock block = blocks[i];
+                    while (true) {
+                        for (int j : usedAttributes)
+                            block.set(j, relationColumns[j][row]);
+                        if (block.endTuple())
+                            block.addTo(sums[i], 0, summedAttributes, firstFactors, secondFactors);
+                        if (!iterators[i].isNextInBlock())
+                            break;
+                        iterators[i].nextInBlock();
+                        row = columnBlocks[i].locate(iterators[i].row());
+                    }
+                    block.addTo(sums[i], 0, summedAttributes, firstFactors, secondFactors);
+                    setPartials(i, sums[i], 0);
+                    continue;
                 }
+                while (true) {
+                    /*
+                     * Read the attributes the query uses into a buffer once, rather than going back to the storage for
+                     * every pair.
+                     */
+                    for (int j : usedAttributes)
+                        tuple[j] = relationColumns[j][row];
+                    long[] partials = longSums[i];
+                    long[] spilled = spilledSums[i];
+                    int k = 0;
+
+                    /*
+                     * Increment the COUNT by one.
+                     */
+                    Int128.accumulate(partials, spilled, k++, 1);
+
+                    /*
+                     * Adjust the aggregates of the form SUM(A) for a single attribute A.
+                     */
+                    for (int a : summedAttributes)
+                        Int128.accumulate(partials, spilled, k++, tuple[a]);
+
+                    /*
+                     * Adjust the aggregates of the form SUM(A*B) for a pair of attributes A and B, with A preceding or
+                     * equal to B.
+                     */
+                    for (int p = 0; p < firstFactors.length; ++p)
+                        Int128.accumulateProduct(partials, spilled, k++, tuple[firstFactors[p]],
+                                tuple[secondFactors[p]]);
 
-                if (!iterators[i].isNextInBlock())
-                    break;
-                iterators[i].nextInBlock();
+                    /*
+                     * A relation grouped within its blocks moves what the tuple added to the sums of its group.
+                     */
+                    if (isGroupedWithinBlock)
+                        Int128.addAccumulated(groupPartials.values(), groupPartials.findOrInsert(
+                                tuple[query.groupAttribute]) * (groupPartials.rowWidth() / 2), partials, spilled);
+
+                    if (!iterators[i].isNextInBlock())
+                        break;
+                    iterators[i].nextInBlock();
+                    row = columnBlocks[i].locate(iterators[i].row());
+                }
+                if (!isGroupedWithinBlock) {
+                    Int128.addAccumulated(sums[i], 0, longSums[i], spilledSums[i]);
+                    setPartials(i, sums[i], 0);
+                }
             }
         }
-    }
 
-    /**
-     * Calculate the adjustment to make to an overall aggregate from an instruction.
-     * The instruction is an array that can take one of two forms:
-     * - It begins with a 0, then has a pair consisting of the two dimensions of the position in the summed tuple
-     * to multiply the count by after dividing it by the count in the relation this position corresponds to.
-     * - It begins with a 1, then has two pairs, giving the two positions in the summed tuple to multiply the
-     * count by after dividing it by the count in both relations these positions point to.
-     *
-     * @param instruction  the instruction to use to calculate the adjustment from the partial aggregates
-     * @param countProduct the product of all the COUNT aggregates for the current join key
-     * @return the adjustment to make to an overall aggregate
-     */
-    private long calculateFromInstruction(int[] instruction, long countProduct) {
-        if (instruction[0] == 0)
-            return (countProduct / summedTuple[instruction[1]][numberOfJoinAttributes[instruction[1]]]) *
-                    summedTuple[instruction[1]][instruction[2] + numberOfJoinAttributes[instruction[1]]];
-        return ((countProduct / summedTuple[instruction[1]][numberOfJoinAttributes[instruction[1]]])
-                / summedTuple[instruction[3]][numberOfJoinAttributes[instruction[3]]])
-                * summedTuple[instruction[1]][instruction[2] + numberOfJoinAttributes[instruction[1]]]
-                * summedTuple[instruction[3]][instruction[4] + numberOfJoinAttributes[instruction[3]]];
-    }
+        /**
+         * Set the partial aggregates of a relation in its summed tuple from 128-bit sums, marking the relation as wide
+         * if any of them does not fit in a long.
+         * @param relation the index of the relation
+         * @param partials the array holding the COUNT and then each SUM, as 128-bit values held as described in Int128
+         * @param index the index of the COUNT in the array
+         */
+        private void setPartials(int relation, long[] partials, int index) {
+            int offset = numberOfJoinAttributes[relation];
+            boolean isRelationWide = false;
+            for (int j = 0; j < query.keyAggregateColumns[relation].length; ++j) {
+                summedTuple[relation][offset + j] = partials[2 * (index + j) + 1];
+                summedHigh[relation][offset + j] = partials[2 * (index + j)];
+                isRelationWide |= !Int128.fitsInLong(partials, index + j);
+            }
+            isWide[relation] = isRelationWide;
+        }
 
-    /**
-     * Get a list of instructions for calculating overall aggregates from the partial aggregates in a given database.
-     * @param database the database to consider
-     * @return a list of instructions
-     *          (for a description of the form these instructions take, see the calculateFromInstruction method above)
-     */
-    private List<int[]> getInstructions(Database database) {
-        List<int[]> distinctPairs = database.getAllPairsOfAttributes();
-        List<int[]> instructions = new ArrayList<>();
-
-        for (int[] pair : distinctPairs) {
-            int[] instruction;
-            if (pair[0] == pair[2])
-                instruction = new int[]{0, pair[0], 1 +
-                        database.getRelations().get(pair[0]).getAttributes().size() +
-                        calculatePosition(pair[1], database.getRelations().get(pair[0]).getAttributes().size()) +
-                        (pair[3] - pair[1])};
-            else
-                instruction = new int[]{1, pair[0], 1 + pair[1], pair[2], 1 + pair[3]};
-            instructions.add(instruction);
+        /**
+         * Calculate the adjustment to make to an overall aggregate from an instruction, and add it to the aggregate.
+         * The instruction is an array that can take one of two forms:
+         * - It begins with a 0, then has a pair consisting of the two dimensions of the position in the summed tuple
+         * to multiply by the product of the COUNTs in every other relation.
+         * - It begins with a 1, then has two pairs, giving the two positions in the summed tuple to multiply by the
+         * product of the COUNTs in every relation apart from the two these positions point to.
+         * The count products needed must already have been calculated by calculateCountProduct.
+         *
+         * @param result      the 128-bit aggregates, held as described in Int128
+         * @param aggregate   the index of the aggregate to add to
+         * @param instruction the instruction to use to calculate the adjustment from the partial aggregates
+         */
+        private void addFromInstruction(long[] result, int aggregate, int[] instruction) {
+            int i = instruction[1];
+            if (instruction[0] == 0) {
+                Int128.set(term, 0, countProducts, i * iterators.length + i);
+                multiplyTermBy(i, instruction[2]);
+            } else {
+                int k = instruction[3];
+                Int128.set(term, 0, countProducts, i * iterators.length + k);
+                multiplyTermBy(i, instruction[2]);
+                multiplyTermBy(k, instruction[4]);
+            }
+            Int128.add(result, aggregate, term, 0);
         }
 
-        return instructions;
+        /**
+         * Multiply the term being calculated by a partial aggregate of a relation, reading its high 64 bits only if the
+         * relation is wide.
+         * @param relation the index of the relation
+         * @param partial the position of the partial aggregate after the join key in the summed tuple
+         */
+        private void multiplyTermBy(int relation, int partial) {
+            int position = numberOfJoinAttributes[relation] + partial;
+            if (!isWide[relation]) {
+                Int128.multiply(term, 0, summedTuple[relation][position]);
+                return;
+            }
+            Int128.set(factor, 0, summedHigh[relation][position], summedTuple[relation][position]);
+            Int128.multiply(term, 0, factor, 0);
+        }
     }
 
     /**
-     * Calculate the position at which the aggregate SUM(A*A) can be found in the tuple of partial aggregates.
-     * @param k the index of the relation A
-     * @param relationSize the size of the relation
-     * @return the position in the summed tuple for the relation at which SUM(A*A) can be found
+     * An aggregate query compiled against the database: the partial aggregates each relation needs to have summed for
+     * each join key, and the instructions (and the kernel generated from them, if any) for combining them into the
+     * aggregates of the query.
+     *
+     * After its join key, the summed tuple of relation i holds its COUNT, then SUM(A) for each attribute A in
+     * summedAttributes[i], then SUM(A*B) for each pair of attributes A and B in firstFactors[i] and secondFactors[i].
+     * Only the attributes the query mentions are summed, and only the products of attributes of the same relation it
+     * asks for, as the product of attributes of different relations is found from their separate sums.
+     *
+     * A query grouped by a join attribute runs over the same join as any other. A query grouped by any other attribute
+     * needs the tuples of the relation holding it, so that relation is joined through its tuples even when the others
+     * are joined through their per-key aggregates.
      */
-    private int calculatePosition(int k, int relationSize) {
-        int result = 0;
-        for (int i = 0; i < k; ++i)
-            result += (relationSize - i);
-        return result;
+    private class CompiledQuery {
+        private final List<int[]> instructions = new ArrayList<>();
+        private final int groupRelation;
+        private final int groupAttribute;
+        private final boolean isGroupedWithinBlocks;
+        private final JoinPlan plan;
+        private final int[] countProducts;
+        private final Supplier<SummedTupleKernel> kernel;
+        private final int[][] usedAttributes;
+        private final int[][] summedAttributes;
+        private final int[][] firstFactors;
+        private final int[][] secondFactors;
+        private final int[][] keyAggregateColumns;
+
+        /**
+         * Compile a query.
+         * @param query the query
+         * @throws IllegalArgumentException if the query names an attribute that is not in the database
+         */
+        CompiledQuery(AggregateQuery query) {
+            int[][] terms = query.resolve(database);
+            int numOfRelations = numberOfAttributes.length;
+            int[] groupPosition = query.getGroupBy() == null ? new int[]{-1, -1} :
+                    query.resolveGroupBy(database);
+            groupRelation = groupPosition[0];
+            groupAttribute = groupPosition[1];
+            isGroupedWithinBlocks = groupRelation >= 0 && groupAttribute >= numberOfJoinAttributes[groupRelation];
+            if (isGroupedWithinBlocks && USE_KEY_AGGREGATES) {
+                TupleStorage[] relations = new TupleStorage[numOfRelations];
+                for (int i = 0; i < numOfRelations; ++i)
+                    relations[i] = i == groupRelation ? database.getRelations().get(i).getTuples() :
+                            AggTwo.this.plan.getRelation(i);
+                plan = new JoinPlan(relations, joinConditions);
+            } else
+                plan = AggTwo.this.plan;
+
+            /*
+             * Collect the partial aggregates each relation needs, each product held as a single number A * arity + B.
+             */
+            List<List<Integer>> sums = new ArrayList<>(numOfRelations);
+            List<List<Integer>> products = new ArrayList<>(numOfRelations);
+            for (int i = 0; i < numOfRelations; ++i) {
+                sums.add(new ArrayList<>());
+                products.add(new ArrayList<>());
+            }
+            for (int[] term : terms) {
+                if (term.length == 2)
+                    addIfAbsent(sums.get(term[0]), term[1]);
+                else if (term.length == 4 && term[0] == term[2])
+                    addIfAbsent(products.get(term[0]), Math.min(term[1], term[3]) * numberOfAttributes[term[0]] +
+                            Math.max(term[1], term[3]));
+                else if (term.length == 4) {
+                    addIfAbsent(sums.get(term[0]), term[1]);
+                    addIfAbsent(sums.get(term[2]), term[3]);
+                }
+            }
+
+            /*
+             * Turn each aggregate into an instruction, as described in addFromInstruction, remembering which products
+             * of COUNTs it needs.
+             */
+            Set<Integer> neededCountProducts = new LinkedHashSet<>();
+            for (int[] term : terms) {
+                int[] instruction;
+                if (term.length == 0)
+                    instruction = new int[]{0, 0, 0};
+                else if (term.length == 2)
+                    instruction = new int[]{0, term[0], 1 + sums.get(term[0]).indexOf(term[1])};
+                else if (term[0] == term[2])
+                    instruction = new int[]{0, term[0], 1 + sums.get(term[0]).size() + products.get(term[0]).indexOf(
+                            Math.min(term[1], term[3]) * numberOfAttributes[term[0]] + Math.max(term[1], term[3]))};
+                else
+                    instruction = new int[]{1, term[0], 1 + sums.get(term[0]).indexOf(term[1]),
+                            term[2], 1 + sums.get(term[2]).indexOf(term[3])};
+                int k = instruction[0] == 0 ? instruction[1] : instruction[3];
+                neededCountProducts.add(instruction[1] * numOfRelations + k);
+                instructions.add(instruction);
+            }
+            countProducts = neededCountProducts.stream().mapToInt(Integer::intValue).toArray();
+            kernel = KernelSource.summedTupleKernel(numberOfJoinAttributes, countProducts, instructions);
+
+            usedAttributes = new int[numOfRelations][];
+            summedAttributes = new int[numOfRelations][];
+            firstFactors = new int[numOfRelations][];
+            secondFactors = new int[numOfRelations][];
+            keyAggregateColumns = new int[numOfRelations][];
+            for (int i = 0; i < numOfRelations; ++i) {
+                int arity = numberOfAttributes[i];
+                Set<Integer> used = new TreeSet<>(sums.get(i));
+                if (i == groupRelation)
+                    used.add(groupAttribute);
+                summedAttributes[i] = sums.get(i).stream().mapToInt(Integer::intValue).toArray();
+                firstFactors[i] = new int[products.get(i).size()];
+                secondFactors[i] = new int[products.get(i).size()];
+                for (int p = 0; p < firstFactors[i].length; ++p) {
+                    firstFactors[i][p] = products.get(i).get(p) / arity;
+                    secondFactors[i][p] = products.get(i).get(p) % arity;
+                    used.add(firstFactors[i][p]);
+                    used.add(secondFactors[i][p]);
+                }
+                usedAttributes[i] = used.stream().mapToInt(Integer::intValue).toArray();
+
+                /*
+                 * The per-key aggregates hold every partial aggregate, laid out as described in KeyAggregates, with
+                 * each SUM listed by the column holding its high 64 bits. Only these columns need to be computed.
+                 */
+                keyAggregateColumns[i] = new int[1 + summedAttributes[i].length + firstFactors[i].length];
+                int j = 0;
+                keyAggregateColumns[i][j++] = KeyAggregates.countColumn(numberOfJoinAttributes[i]);
+                for (int a : summedAttributes[i])
+                    keyAggregateColumns[i][j++] = KeyAggregates.sumColumn(numberOfJoinAttributes[i], a);
+                for (int p = 0; p < firstFactors[i].length; ++p)
+                    keyAggregateColumns[i][j++] = KeyAggregates.productColumn(numberOfJoinAttributes[i], arity,
+                            firstFactors[i][p], secondFactors[i][p]);
+                if (USE_KEY_AGGREGATES && !(isGroupedWithinBlocks && i == groupRelation)) {
+                    try {
+                        database.getRelations().get(i).getKeyAggregates(numberOfJoinAttributes[i],
+                                keyAggregateColumns[i]);
+                    } catch (ArithmeticException e) {
+                        // Each column is computed on its own once read instead, failing only the queries reading a SUM
+                        // that overflows.
+                    }
+                }
+            }
+        }
+
+        /**
+         * Add a value to a list if it is not already in it.
+         * @param list the list
+         * @param value the value to add
+         */
+        private void addIfAbsent(List<Integer> list, int value) {
+            if (!list.contains(value))
+                list.add(value);
+        }
     }
 }
@@ -0,0 +1,246 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.database.Database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable description of an aggregate query over the natural join of the relations of a database, as a list of the
+ * aggregates to compute. Each aggregate is a COUNT(*), a SUM(A) of one attribute or a SUM(A*B) of the product of two
+ * attributes, with attributes named as in the relations (an attribute shared by several relations is the join
+ * attribute, and so has the same value in all of them).
+ *
+ * A query may also group the join by an attribute, computing the aggregates separately for each of its values.
+ *
+ * Algorithms compile a query into a plan that only computes what its aggregates need, so asking for a few aggregates
+ * costs less than asking for all of them.
+ */
+public final class AggregateQuery {
+    private final List<Term> terms;
+    private final String groupBy;
+
+    /**
+     * Construct a query.
+     * @param terms the aggregates to compute
+     * @param groupBy the name of the attribute to group by, or null to aggregate over the whole join
+     */
+    private AggregateQuery(List<Term> terms, String groupBy) {
+        this.terms = Collections.unmodifiableList(terms);
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Make a query computing some aggregates.
+     * @param terms the aggregates to compute, in the order they are returned in
+     * @return the query
+     * @throws IllegalArgumentException if there are no aggregates
+     */
+    public static AggregateQuery of(Term... terms) {
+        return of(Arrays.asList(terms));
+    }
+
+    /**
+     * Make a query computing some aggregates.
+     * @param terms the aggregates to compute, in the order they are returned in
+     * @return the query
+     * @throws IllegalArgumentException if there are no aggregates
+     */
+    public static AggregateQuery of(List<Term> terms) {
+        if (terms.isEmpty())
+            throw new IllegalArgumentException("An aggregate query must compute at least one aggregate.");
+        return new AggregateQuery(new ArrayList<>(terms), null);
+    }
+
+    /**
+     * Make the query computing the sum of each product of attribute pairs in a database (symmetric pairs appear only
+     * once), in the order given by Database.getAttributeNamePairs.
+     * @param database the database
+     * @return the query
+     */
+    public static AggregateQuery allPairs(Database database) {
+        return of(database.getAttributeNamePairs().stream()
+                .map(pair -> Term.sumOfProduct(pair.getFirst(), pair.getSecond()))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Make the query computing the sum of the first product of attribute pairs in a database, which is the square of
+     * its first attribute.
+     * @param database the database
+     * @return the query
+     */
+    public static AggregateQuery firstPair(Database database) {
+        String attribute = database.getRelations().get(0).getAttributes().get(0);
+        return of(Term.sumOfProduct(attribute, attribute));
+    }
+
+    /**
+     * Make a query computing the same aggregates as this one for each value of an attribute.
+     * @param attribute the name of the attribute to group by
+     * @return the grouped query
+     */
+    public AggregateQuery groupBy(String attribute) {
+        return new AggregateQuery(terms, attribute);
+    }
+
+    /**
+     * Get the attribute the query groups by.
+     * @return the name of the attribute, or null if the query aggregates over the whole join
+     */
+    public String getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Get the aggregates the query computes.
+     * @return the aggregates, in the order they are returned in
+     */
+    public List<Term> getTerms() {
+        return terms;
+    }
+
+    /**
+     * Get the number of aggregates the query computes.
+     * @return the number of aggregates
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Find where the attributes of each aggregate are in a database.
+     * @param database the database the query is over
+     * @return for each aggregate, the relation and position within that relation of each of its attributes, in
+     *          turn (so an empty array for a COUNT, a pair for a SUM(A) and a 4-tuple for a SUM(A*B))
+     * @throws IllegalArgumentException if an attribute is not in the database
+     */
+    int[][] resolve(Database database) {
+        int[][] positions = new int[terms.size()][];
+        for (int i = 0; i < positions.length; ++i) {
+            List<String> attributes = terms.get(i).getAttributes();
+            positions[i] = new int[2 * attributes.size()];
+            for (int j = 0; j < attributes.size(); ++j) {
+                int[] position = database.getAttributePosition(attributes.get(j));
+                positions[i][2 * j] = position[0];
+                positions[i][2 * j + 1] = position[1];
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Find where the attribute the query groups by is in a database.
+     * @param database the database the query is over
+     * @return a pair of integers giving the relation and position within that relation of the attribute
+     * @throws IllegalArgumentException if the query is not grouped, or the attribute is not in the database
+     */
+    int[] resolveGroupBy(Database database) {
+        if (groupBy == null)
+            throw new IllegalArgumentException("The query " + this + " has no GROUP BY.");
+        return database.getAttributePosition(groupBy);
+    }
+
+    /**
+     * Check that the query aggregates over the whole join, for the algorithms that return a single result.
+     * @throws IllegalArgumentException if the query is grouped
+     */
+    void requireUngrouped() {
+        if (groupBy != null)
+            throw new IllegalArgumentException("The query " + this + " is grouped by " + groupBy +
+                    ", so has a result for each group.");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof AggregateQuery && terms.equals(((AggregateQuery) other).terms) &&
+                Objects.equals(groupBy, ((AggregateQuery) other).groupBy);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * terms.hashCode() + Objects.hashCode(groupBy);
+    }
+
+    /**
+     * Format the query as the list of its aggregates, in the same way as they would appear in a SQL SELECT clause.
+     * @return the aggregates separated by commas
+     */
+    @Override
+    public String toString() {
+        return terms.stream().map(Term::toString).collect(Collectors.joining(","));
+    }
+
+    /**
+     * A single aggregate of a query.
+     */
+    public static final class Term {
+        private final List<String> attributes;
+
+        /**
+         * Construct an aggregate.
+         * @param attributes the attributes multiplied together and summed, which is none for a COUNT
+         */
+        private Term(String... attributes) {
+            this.attributes = Collections.unmodifiableList(Arrays.asList(attributes));
+        }
+
+        /**
+         * Make the aggregate COUNT(*), the number of tuples in the join.
+         * @return the aggregate
+         */
+        public static Term count() {
+            return new Term();
+        }
+
+        /**
+         * Make the aggregate SUM(A), the sum of an attribute over the join.
+         * @param attribute the name of the attribute A
+         * @return the aggregate
+         */
+        public static Term sum(String attribute) {
+            return new Term(attribute);
+        }
+
+        /**
+         * Make the aggregate SUM(A*B), the sum of the product of two attributes over the join.
+         * @param first the name of the attribute A
+         * @param second the name of the attribute B, which may be the same as A
+         * @return the aggregate
+         */
+        public static Term sumOfProduct(String first, String second) {
+            return new Term(first, second);
+        }
+
+        /**
+         * Get the attributes multiplied together and summed.
+         * @return no attributes for a COUNT, one for a SUM(A) or two for a SUM(A*B)
+         */
+        public List<String> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Term && attributes.equals(((Term) other).attributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return attributes.hashCode();
+        }
+
+        /**
+         * Format the aggregate as it would appear in a SQL SELECT clause.
+         * @return the aggregate as a string
+         */
+        @Override
+        public String toString() {
+            return attributes.isEmpty() ? "COUNT(*)" : "SUM(" + String.join("*", attributes) + ")";
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.util.Int128;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Exact result of an aggregate query, holding each aggregate as a signed 128-bit integer so that sums which overflow
+ * a long are still given correctly.
+ */
+public final class AggregateResult {
+    private final long[] values;
+
+    /**
+     * Construct a result.
+     * @param values the aggregates, as 128-bit values held as described in Int128 (the array is not copied)
+     */
+    AggregateResult(long[] values) {
+        this.values = values;
+    }
+
+    /**
+     * Construct a result from aggregates that fit in a long.
+     * @param values the aggregates
+     * @return the result holding the aggregates
+     */
+    static AggregateResult ofLongs(long... values) {
+        long[] wideValues = Int128.newArray(values.length);
+        for (int i = 0; i < values.length; ++i)
+            Int128.set(wideValues, i, values[i]);
+        return new AggregateResult(wideValues);
+    }
+
+    /**
+     * Get the number of aggregates in the result.
+     * @return the number of aggregates
+     */
+    public int size() {
+        return Int128.size(values);
+    }
+
+    /**
+     * Get the high 64 bits of an aggregate.
+     * @param index the index of the aggregate
+     * @return the high 64 bits of its value, as a signed long
+     */
+    public long getHigh(int index) {
+        return values[2 * index];
+    }
+
+    /**
+     * Get the low 64 bits of an aggregate.
+     * @param index the index of the aggregate
+     * @return the low 64 bits of its value, as an unsigned long
+     */
+    public long getLow(int index) {
+        return values[2 * index + 1];
+    }
+
+    /**
+     * Get an aggregate as a long.
+     * @param index the index of the aggregate
+     * @return the value of the aggregate
+     * @throws ArithmeticException if the aggregate does not fit in a long
+     */
+    public long longValueExact(int index) {
+        return Int128.longValueExact(values, index);
+    }
+
+    /**
+     * Get an aggregate as a BigInteger, for arithmetic that may not fit in 128 bits.
+     * @param index the index of the aggregate
+     * @return the value of the aggregate
+     */
+    public BigInteger bigIntegerValue(int index) {
+        return Int128.toBigInteger(values, index);
+    }
+
+    /**
+     * Get every aggregate as a long.
+     * @return the values of the aggregates
+     * @throws ArithmeticException if any aggregate does not fit in a long
+     */
+    public long[] toLongArrayExact() {
+        long[] result = new long[size()];
+        for (int i = 0; i < result.length; ++i)
+            result[i] = longValueExact(i);
+        return result;
+    }
+
+    /**
+     * Format an aggregate in decimal.
+     * @param index the index of the aggregate
+     * @return the aggregate as a string
+     */
+    public String toString(int index) {
+        return Int128.fitsInLong(values, index) ? Long.toString(getLow(index)) : Int128.toBigInteger(values, index).toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof AggregateResult && Arrays.equals(values, ((AggregateResult) other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    /**
+     * Format the aggregates in decimal, in the same way as Arrays.toString formats an array of longs.
+     * @return the aggregates as a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("[");
+        for (int i = 0; i < size(); ++i) {
+            if (i > 0)
+                result.append(", ");
+            result.append(toString(i));
+        }
+        return result.append("]").toString();
+    }
+}
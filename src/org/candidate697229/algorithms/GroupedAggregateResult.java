@@ -0,0 +1,114 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.structures.LongRowHashMap;
+import org.candidate697229.util.Int128;
+
+import java.util.Arrays;
+
+/**
+ * Exact result of an aggregate query with a GROUP BY, holding the aggregates of each value of the grouping attribute
+ * that appears in the join, in increasing order of the values.
+ */
+public final class GroupedAggregateResult {
+    private final long[] keys;
+    private final AggregateResult[] results;
+
+    /**
+     * Construct a result from the groups collected in a map.
+     * @param groups the map from each value of the grouping attribute to its aggregates, as 128-bit values held as
+     *               described in Int128
+     */
+    GroupedAggregateResult(LongRowHashMap groups) {
+        Integer[] entries = new Integer[groups.size()];
+        for (int entry = 0; entry < entries.length; ++entry)
+            entries[entry] = entry;
+        Arrays.sort(entries, (first, second) -> Long.compare(groups.keyAt(first), groups.keyAt(second)));
+
+        keys = new long[entries.length];
+        results = new AggregateResult[entries.length];
+        for (int i = 0; i < entries.length; ++i) {
+            int offset = entries[i] * groups.rowWidth();
+            keys[i] = groups.keyAt(entries[i]);
+            results[i] = new AggregateResult(Arrays.copyOfRange(groups.values(), offset, offset + groups.rowWidth()));
+        }
+    }
+
+    /**
+     * Add the aggregates of every group in one map to the same group in another, for merging partial results.
+     * @param groups the map to add to
+     * @param other the map to add, with rows of the same width
+     * @return the map added to
+     */
+    static LongRowHashMap addAll(LongRowHashMap groups, LongRowHashMap other) {
+        int numOfAggregates = groups.rowWidth() / 2;
+        for (int entry = 0; entry < other.size(); ++entry) {
+            int index = groups.findOrInsert(other.keyAt(entry)) * numOfAggregates;
+            long[] values = groups.values();
+            for (int i = 0; i < numOfAggregates; ++i)
+                Int128.add(values, index + i, other.values(), entry * numOfAggregates + i);
+        }
+        return groups;
+    }
+
+    /**
+     * Get the number of groups.
+     * @return the number of distinct values of the grouping attribute in the join
+     */
+    public int numberOfGroups() {
+        return keys.length;
+    }
+
+    /**
+     * Get the value of the grouping attribute of a group.
+     * @param group the index of the group, in increasing order of the values
+     * @return the value of the grouping attribute
+     */
+    public long getKey(int group) {
+        return keys[group];
+    }
+
+    /**
+     * Get the aggregates of a group.
+     * @param group the index of the group, in increasing order of the values
+     * @return the aggregates of the group
+     */
+    public AggregateResult get(int group) {
+        return results[group];
+    }
+
+    /**
+     * Find the aggregates of a value of the grouping attribute.
+     * @param key the value of the grouping attribute
+     * @return the aggregates of the group, or null if the value does not appear in the join
+     */
+    public AggregateResult find(long key) {
+        int group = Arrays.binarySearch(keys, key);
+        return group < 0 ? null : results[group];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof GroupedAggregateResult && Arrays.equals(keys, ((GroupedAggregateResult) other).keys) &&
+                Arrays.equals(results, ((GroupedAggregateResult) other).results);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(keys) + Arrays.hashCode(results);
+    }
+
+    /**
+     * Format the groups as a list of each value of the grouping attribute and its aggregates.
+     * @return the groups as a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("{");
+        for (int i = 0; i < keys.length; ++i) {
+            if (i > 0)
+                result.append(", ");
+            result.append(keys[i]).append("=").append(results[i]);
+        }
+        return result.append("}").toString();
+    }
+}
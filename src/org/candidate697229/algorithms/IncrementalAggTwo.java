@@ -0,0 +1,221 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.database.Database;
+import org.candidate697229.database.KeyAggregateTable;
+import org.candidate697229.join.LeapfrogTriejoin;
+import org.candidate697229.structures.ColumnarStorage;
+import org.candidate697229.structures.Iterator;
+import org.candidate697229.structures.SequentialIterator;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Maintained view of the aggregates computed by AggTwo, which is kept up to date as tuples are added to and taken
+ * away from the relations instead of being recomputed from the whole database.
+ *
+ * Every result of joining the per-key aggregates uses exactly one row from each relation, so the result of the query
+ * is a sum over the rows of any one relation. When a batch of tuples changes some keys of a relation, the view takes
+ * away what the old rows of those keys contributed and adds what the new rows contribute, each found by joining that
+ * single row with the per-key aggregates of the other relations. Before joining, each other relation is narrowed down
+ * by binary search to the rows whose key agrees with the changed row on the leading key attributes the two share. A
+ * relation whose first key attribute is not joined with the changed relation cannot be narrowed, and is only reached
+ * through the seeks of the join, so each changed key takes time that grows with the number of results of joining its
+ * row with the other relations, and logarithmically with the size of the relations the join seeks into.
+ * Changing the per-key aggregates themselves also moves the rows after a key that appears, and occasionally compacts
+ * them, as described in KeyAggregateTable.
+ *
+ * The view keeps its own copy of the per-key aggregates, so the database it was constructed from is never changed.
+ * As that copy changes, it cannot be sorted in another order, so it is joined on the join variables in an order that
+ * follows the positions of the join attributes.
+ * All methods are synchronized, so batches are applied one at a time.
+ */
+public class IncrementalAggTwo implements AggAlgorithm {
+    private final AggTwo aggTwo;
+    private final List<List<int[]>> joinConditions;
+    private final int[][][] boundKeyAttributes;
+    private final KeyAggregateTable[] tables;
+    private final long[] result;
+
+    /**
+     * Construct a view over a database, computing the aggregates over it once in full.
+     * @param database the database to start from
+     */
+    public IncrementalAggTwo(Database database) {
+        aggTwo = new AggTwo(database);
+        joinConditions = database.getAllExplicitJoinConditions(false);
+        tables = new KeyAggregateTable[database.getRelations().size()];
+        for (int i = 0; i < tables.length; ++i)
+            tables[i] = new KeyAggregateTable(database.getRelations().get(i), aggTwo.getNumberOfJoinAttributes(i));
+        boundKeyAttributes = new int[tables.length][tables.length][];
+        for (int relation = 0; relation < tables.length; ++relation) {
+            for (int i = 0; i < tables.length; ++i)
+                boundKeyAttributes[relation][i] = findBoundKeyAttributes(relation, i);
+        }
+        AggregateResult initialResult = aggTwo.computeAllAggregatesOfNaturalJoinExactly();
+        result = Int128.newArray(initialResult.size());
+        for (int i = 0; i < initialResult.size(); ++i) {
+            result[2 * i] = initialResult.getHigh(i);
+            result[2 * i + 1] = initialResult.getLow(i);
+        }
+    }
+
+    @Override
+    public long[] computeAllAggregatesOfNaturalJoin() {
+        return computeAllAggregatesOfNaturalJoinExactly().toLongArrayExact();
+    }
+
+    @Override
+    public long computeOneAggregateOfNaturalJoin() {
+        return computeOneAggregateOfNaturalJoinExactly().longValueExact(0);
+    }
+
+    @Override
+    public synchronized AggregateResult computeAllAggregatesOfNaturalJoinExactly() {
+        return new AggregateResult(result.clone());
+    }
+
+    @Override
+    public synchronized AggregateResult computeOneAggregateOfNaturalJoinExactly() {
+        return new AggregateResult(new long[]{result[0], result[1]});
+    }
+
+    /**
+     * Add some tuples to a relation.
+     * @param relation the index of the relation in the database
+     * @param insertedTuples the tuples to add, each holding a value for every attribute of the relation
+     */
+    public void insert(int relation, List<long[]> insertedTuples) {
+        apply(relation, insertedTuples, Collections.emptyList());
+    }
+
+    /**
+     * Take some tuples away from a relation.
+     * @param relation the index of the relation in the database
+     * @param deletedTuples the tuples to take away, each of which must be in the relation
+     */
+    public void delete(int relation, List<long[]> deletedTuples) {
+        apply(relation, Collections.emptyList(), deletedTuples);
+    }
+
+    /**
+     * Add some tuples to and take some tuples away from a relation, updating the aggregates. Either the whole batch is
+     * applied or, if it is invalid, none of it is.
+     * @param relation the index of the relation in the database
+     * @param insertedTuples the tuples to add, each holding a value for every attribute of the relation
+     * @param deletedTuples the tuples to take away, each of which must be in the relation
+     * @throws IllegalArgumentException if a tuple has the wrong number of attributes, or more tuples are taken away
+     *                                  from a key than it has
+     */
+    public synchronized void apply(int relation, List<long[]> insertedTuples, List<long[]> deletedTuples) {
+        KeyAggregateTable table = tables[relation];
+        SortedMap<long[], long[]> changedRows = table.changedRows(insertedTuples, deletedTuples);
+        long[] newResult = result.clone();
+        for (long[] newRow : changedRows.values()) {
+            Int128.subtractAll(newResult, contributionOf(relation, table.getRow(newRow)));
+            Int128.addAll(newResult, contributionOf(relation, newRow));
+        }
+        table.update(changedRows);
+        System.arraycopy(newResult, 0, result, 0, result.length);
+    }
+
+    /**
+     * Find the attributes of one relation that give values to the leading attributes of the key of another, when they
+     * are joined.
+     * @param relation the index of the relation giving the values
+     * @param other the index of the relation whose key is given values
+     * @return the position in the first relation of the attribute joined with each attribute of the key of the other
+     *          relation in turn, for as many attributes of the key as have one
+     */
+    private int[] findBoundKeyAttributes(int relation, int other) {
+        int[] attributes = new int[tables[other].getNumberOfKeyAttributes()];
+        int numOfBound = 0;
+        while (numOfBound < attributes.length) {
+            int attribute = -1;
+            for (List<int[]> positions : joinConditions) {
+                boolean hasKeyAttribute = false;
+                for (int[] position : positions)
+                    hasKeyAttribute |= position[0] == other && position[1] == numOfBound;
+                for (int[] position : positions) {
+                    if (hasKeyAttribute && position[0] == relation)
+                        attribute = position[1];
+                }
+            }
+            if (attribute < 0)
+                break;
+            attributes[numOfBound++] = attribute;
+        }
+        return Arrays.copyOf(attributes, numOfBound);
+    }
+
+    /**
+     * Compute what a single row of the per-key aggregates of a relation contributes to the aggregates, by joining it
+     * with the per-key aggregates of every other relation. Each other relation is first narrowed down by binary search
+     * to the rows whose key agrees with the row on the join variables the two share, for as many of the leading
+     * attributes of its key as the row gives values to.
+     * @param relation the index of the relation
+     * @param row the row of per-key aggregates, or null if there is none
+     * @return the contribution to each aggregate, as 128-bit values held as described in Int128
+     */
+    private long[] contributionOf(int relation, long[] row) {
+        long[] contribution = Int128.newArray(Int128.size(result));
+        if (row == null || row[tables[relation].getNumberOfKeyAttributes()] == 0)
+            return contribution;
+
+        Iterator[] iterators = new Iterator[tables.length];
+        TupleStorage[] storages = new TupleStorage[tables.length];
+        for (int i = 0; i < tables.length; ++i) {
+            if (i == relation) {
+                long[][] columns = new long[row.length][1];
+                for (int j = 0; j < row.length; ++j)
+                    columns[j][0] = row[j];
+                storages[i] = new ColumnarStorage(columns);
+                iterators[i] = new SequentialIterator(storages[i]);
+                continue;
+            }
+
+            int from = 0;
+            int to = tables[i].size();
+            int[] bound = boundKeyAttributes[relation][i];
+            for (int j = 0; j < bound.length && from < to; ++j) {
+                long key = row[bound[j]];
+                from = search(tables[i], j, from, to, key, false);
+                to = search(tables[i], j, from, to, key, true);
+            }
+            if (from == to)
+                return contribution;
+            storages[i] = tables[i];
+            iterators[i] = new SequentialIterator(tables[i], from, to);
+        }
+        return aggTwo.computeAllOverKeyAggregates(new LeapfrogTriejoin(iterators, joinConditions), storages);
+    }
+
+    /**
+     * Binary search a range of rows that all agree on the attributes before a given one, and so are sorted on it.
+     * @param table the table to search
+     * @param column the attribute to search on
+     * @param from the position of the first row in the range
+     * @param to the position after the last row in the range
+     * @param key the value to search for
+     * @param isAfter false to find the first row whose value is at least the key, or true to find the first row whose
+     *                value is greater than it
+     * @return the position of the row found, or to if there is none
+     */
+    private static int search(TupleStorage table, int column, int from, int to, long key, boolean isAfter) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long value = table.get(middle, column);
+            if (value < key || (isAfter && value == key))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
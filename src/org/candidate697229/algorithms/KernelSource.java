@@ -0,0 +1,187 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.codegen.KernelCompiler;
+import org.candidate697229.codegen.SummedTupleKernel;
+import org.candidate697229.codegen.TupleKernel;
+import org.candidate697229.util.Int128;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.candidate697229.util.Configuration.USE_GENERATED_KERNELS;
+
+/**
+ * Generator for kernels specialized to a query: instead of going through the instructions for each aggregate on every
+ * result of the join, a kernel carries out the instructions as straight-line code with every index a constant, so the
+ * JIT compiler sees short methods with no loops or branches to inline and optimize.
+ */
+class KernelSource {
+    /**
+     * The largest number of aggregates to carry out in one generated method of a TupleKernel, which keeps each method
+     * well below the size above which the JIT compiler will not compile it at all.
+     */
+    private static final int AGGREGATES_PER_METHOD = 64;
+
+    /**
+     * The largest number of steps to carry out in one generated method of a SummedTupleKernel. Each step calls into
+     * Int128, which the JIT compiler only inlines while the method it inlines into is small enough.
+     */
+    private static final int STEPS_PER_METHOD = 16;
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private KernelSource() {
+    }
+
+    /**
+     * Generate the kernel carrying out the instructions of AggOne.
+     * @param instructions the instruction for each aggregate, a relation and position in the relation for each
+     *                     attribute to multiply (so a four-tuple for a SUM(A*B), a pair for a SUM(A) and empty for a
+     *                     COUNT)
+     * @return the supplier of the kernel (see KernelCompiler.compile), which supplies null whenever the kernel is not
+     *          generated or compiled yet, in which case the instructions must be interpreted
+     */
+    static Supplier<TupleKernel> tupleKernel(int[][] instructions) {
+        if (!USE_GENERATED_KERNELS || !KernelCompiler.isAvailable())
+            return () -> null;
+        StringBuilder body = new StringBuilder();
+        List<String> chunks = new ArrayList<>();
+        for (int from = 0; from < instructions.length; from += AGGREGATES_PER_METHOD) {
+            String name = "addAggregates" + chunks.size();
+            chunks.add(name);
+            body.append("    private static void ").append(name)
+                    .append("(long[][][] columns, int[] rows, long[] sums, long[] spilled) {\n");
+
+            /*
+             * Read each attribute the aggregates need once, however many of them need it.
+             */
+            StringBuilder reads = new StringBuilder();
+            StringBuilder adds = new StringBuilder();
+            Set<String> read = new HashSet<>();
+            for (int aggregate = from; aggregate < Math.min(from + AGGREGATES_PER_METHOD, instructions.length);
+                 ++aggregate) {
+                int[] instruction = instructions[aggregate];
+                String[] factors = new String[instruction.length / 2];
+                for (int j = 0; j < instruction.length; j += 2) {
+                    factors[j / 2] = "value" + instruction[j] + "_" + instruction[j + 1];
+                    if (read.add(factors[j / 2]))
+                        reads.append("        long ").append(factors[j / 2]).append(" = columns[")
+                                .append(instruction[j]).append("][").append(instruction[j + 1]).append("][rows[")
+                                .append(instruction[j]).append("]];\n");
+                }
+                if (factors.length == 2)
+                    adds.append("        Int128.accumulateProduct(sums, spilled, ").append(aggregate).append(", ")
+                            .append(factors[0]).append(", ").append(factors[1]).append(");\n");
+                else
+                    adds.append("        Int128.accumulate(sums, spilled, ").append(aggregate).append(", ")
+                            .append(factors.length == 1 ? factors[0] : "1L").append(");\n");
+            }
+            body.append(reads).append(adds).append("    }\n\n");
+        }
+        body.append("    @Override\n");
+        body.append("    public void addAggregates(long[][][] columns, int[] rows, long[] sums, long[] spilled) {\n");
+        for (String chunk : chunks)
+            body.append("        ").append(chunk).append("(columns, rows, sums, spilled);\n");
+        body.append("    }\n");
+        return KernelCompiler.compile(TupleKernel.class, body.toString(), Int128.class);
+    }
+
+    /**
+     * Generate the kernel carrying out the instructions of AggTwo, along with the products of COUNTs they need.
+     * @param numberOfJoinAttributes the number of join attributes of each relation, which come before its COUNT in its
+     *                               summed tuple
+     * @param countProducts the positions (i * number of relations + k) of the products of COUNTs the instructions
+     *                      need, leaving out relations i and k
+     * @param instructions the instruction for each aggregate, in the form described in AggTwo.addFromInstruction
+     * @return the supplier of the kernel (see KernelCompiler.compile), which supplies null whenever the kernel is not
+     *          generated or compiled yet, in which case the instructions must be interpreted
+     */
+    static Supplier<SummedTupleKernel> summedTupleKernel(int[] numberOfJoinAttributes, int[] countProducts,
+                                                         List<int[]> instructions) {
+        if (!USE_GENERATED_KERNELS || !KernelCompiler.isAvailable())
+            return () -> null;
+        int numOfRelations = numberOfJoinAttributes.length;
+        StringBuilder locals = new StringBuilder();
+        for (int i = 0; i < numOfRelations; ++i)
+            locals.append("        long[] summed").append(i).append(" = summedTuple[").append(i).append("];\n");
+
+        List<String> countSteps = new ArrayList<>();
+        for (int position : countProducts) {
+            int i = position / numOfRelations;
+            int k = position % numOfRelations;
+            String product = "1L";
+            for (int j = 0; j < numOfRelations; ++j) {
+                String count = "summed" + j + "[" + numberOfJoinAttributes[j] + "]";
+                if (j != i && j != k)
+                    product = product.equals("1L") ? count : "Math.multiplyExact(" + product + ", " + count + ")";
+            }
+            countSteps.add("        countProducts[" + position + "] = " + product + ";\n");
+        }
+
+        /*
+         * With the products of COUNTs held as longs, each aggregate adds the exact product of two or three longs.
+         */
+        List<String> aggregateSteps = new ArrayList<>();
+        for (int aggregate = 0; aggregate < instructions.size(); ++aggregate) {
+            int[] instruction = instructions.get(aggregate);
+            int i = instruction[1];
+            int k = instruction[0] == 0 ? i : instruction[3];
+            StringBuilder step = new StringBuilder("        Int128.accumulateProduct(sums, spilled, ").append(aggregate)
+                    .append(", countProducts[").append(i * numOfRelations + k).append("], summed").append(i)
+                    .append("[").append(instruction[2] + numberOfJoinAttributes[i]).append("]");
+            if (instruction[0] != 0)
+                step.append(", summed").append(k).append("[").append(instruction[4] + numberOfJoinAttributes[k])
+                        .append("]");
+            aggregateSteps.add(step.append(");\n").toString());
+        }
+
+        StringBuilder body = new StringBuilder();
+        List<String> countMethods = appendMethods(body, "multiplyCounts",
+                "long[][] summedTuple, long[] countProducts", locals.toString(), countSteps);
+        List<String> aggregateMethods = appendMethods(body, "addAggregates",
+                "long[][] summedTuple, long[] countProducts, long[] sums, long[] spilled", locals.toString(),
+                aggregateSteps);
+        body.append("    @Override\n");
+        body.append("    public boolean addAggregates(long[][] summedTuple, long[] countProducts, long[] sums, ")
+                .append("long[] spilled) {\n");
+        body.append("        try {\n");
+        for (String method : countMethods)
+            body.append("            ").append(method).append("(summedTuple, countProducts);\n");
+        body.append("        } catch (ArithmeticException e) {\n");
+        body.append("            return false;\n");
+        body.append("        }\n");
+        for (String method : aggregateMethods)
+            body.append("        ").append(method).append("(summedTuple, countProducts, sums, spilled);\n");
+        body.append("        return true;\n");
+        body.append("    }\n");
+        return KernelCompiler.compile(SummedTupleKernel.class, body.toString(), Int128.class);
+    }
+
+    /**
+     * Generate private static methods carrying out some steps in order, with a limited number of steps per method.
+     * @param body the source of the kernel to add the methods to
+     * @param prefix the name of the methods, before their number
+     * @param parameters the parameter list of the methods
+     * @param locals the declarations each method starts with
+     * @param steps the statements of each step
+     * @return the names of the methods, in the order to call them in
+     */
+    private static List<String> appendMethods(StringBuilder body, String prefix, String parameters, String locals,
+                                              List<String> steps) {
+        List<String> methods = new ArrayList<>();
+        for (int from = 0; from < steps.size(); from += STEPS_PER_METHOD) {
+            String name = prefix + methods.size();
+            methods.add(name);
+            body.append("    private static void ").append(name).append("(").append(parameters).append(") {\n")
+                    .append(locals);
+            for (String step : steps.subList(from, Math.min(from + STEPS_PER_METHOD, steps.size())))
+                body.append(step);
+            body.append("    }\n\n");
+        }
+        return methods;
+    }
+}
@@ -0,0 +1,173 @@
+package org.candidate697229.algorithms;
+
+import org.candidate697229.join.JoinPlan;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+import static org.candidate697229.util.Configuration.PARALLEL_GRAIN_SIZE;
+
+/**
+ * Fork/join task that computes a vector of aggregates over the join by splitting the domain of the first join variable
+ * into key ranges that are joined independently, then adding up the vectors computed for each range. The aggregates
+ * are 128-bit values, held as described in Int128, or any other partial result that can be merged, such as the
+ * aggregates of each group of a GROUP BY query.
+ *
+ * The relations containing the first join variable (which is always the first attribute each of them is sorted on) are
+ * restricted to the rows falling in the key range, while all other relations are used in full. A range is split at the
+ * key of the median row of its largest relation, so keys with many rows end up in ranges of their own and skewed data
+ * still spreads evenly across the workers.
+ */
+class KeyRangeTask<T> extends RecursiveTask<T> {
+    /**
+     * Interface for computing the aggregates over the join of some ranges of rows.
+     * @param <T> the type of the aggregates
+     */
+    interface Worker<T> {
+        /**
+         * Compute the aggregates over the join of the given row ranges, which are all non-empty.
+         * @param from the position of the first row to use in each relation
+         * @param to the position after the last row to use in each relation
+         * @return the aggregates
+         */
+        T compute(int[] from, int[] to);
+    }
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPlan plan;
+    private final int[] from;
+    private final int[] to;
+    private final Supplier<T> empty;
+    private final Worker<T> worker;
+    private final BinaryOperator<T> merge;
+
+    /**
+     * Construct a task for a key range.
+     * @param plan the plan of the join
+     * @param from the position of the first row in the key range for each relation
+     * @param to the position after the last row in the key range for each relation
+     * @param empty the supplier of the aggregates of an empty join
+     * @param worker the worker computing the aggregates for a range that is not split any further
+     * @param merge the function adding the aggregates of the right range to those of the left, returning the sum
+     */
+    private KeyRangeTask(JoinPlan plan, int[] from, int[] to, Supplier<T> empty, Worker<T> worker,
+                         BinaryOperator<T> merge) {
+        this.plan = plan;
+        this.from = from;
+        this.to = to;
+        this.empty = empty;
+        this.worker = worker;
+        this.merge = merge;
+    }
+
+    /**
+     * Compute the aggregates over the whole join, in parallel on the common fork/join pool.
+     * @param plan the plan of the join
+     * @param resultSize the number of aggregates in the vector
+     * @param worker the worker computing the aggregates for a range of rows
+     * @return the vector of 128-bit aggregates
+     */
+    static long[] computeInParallel(JoinPlan plan, int resultSize, Worker<long[]> worker) {
+        return computeInParallel(plan, () -> Int128.newArray(resultSize), worker, (left, right) -> {
+            Int128.addAll(left, right);
+            return left;
+        });
+    }
+
+    /**
+     * Compute aggregates of any kind over the whole join, in parallel on the common fork/join pool.
+     * @param plan the plan of the join
+     * @param empty the supplier of the aggregates of an empty join
+     * @param worker the worker computing the aggregates for a range of rows
+     * @param merge the function adding the aggregates of one range to those of another, returning the sum
+     * @param <T> the type of the aggregates
+     * @return the aggregates
+     */
+    static <T> T computeInParallel(JoinPlan plan, Supplier<T> empty, Worker<T> worker, BinaryOperator<T> merge) {
+        int[] from = new int[plan.getNumberOfRelations()];
+        int[] to = new int[plan.getNumberOfRelations()];
+        for (int i = 0; i < to.length; ++i)
+            to[i] = plan.getRelation(i).size();
+        return ForkJoinPool.commonPool().invoke(new KeyRangeTask<>(plan, from, to, empty, worker, merge));
+    }
+
+    @Override
+    protected T compute() {
+        int largest = -1;
+        long work = 0;
+        for (int i = 0; i < from.length; ++i) {
+            if (from[i] == to[i])
+                return empty.get();
+            if (plan.isPartitioned(i)) {
+                work += to[i] - from[i];
+                if (largest < 0 || to[i] - from[i] > to[largest] - from[largest])
+                    largest = i;
+            }
+        }
+
+        if (largest < 0 || work <= PARALLEL_GRAIN_SIZE)
+            return worker.compute(from, to);
+        TupleStorage largestRelation = plan.getRelation(largest);
+        long splitKey = findSplitKey(largestRelation, from[largest], to[largest]);
+        if (splitKey == largestRelation.get(from[largest], largestRelation.sortColumn(0)))
+            return worker.compute(from, to);
+
+        int[] split = new int[from.length];
+        int[] rightFrom = from.clone();
+        for (int i = 0; i < from.length; ++i) {
+            split[i] = plan.isPartitioned(i) ? lowerBound(plan.getRelation(i), from[i], to[i], splitKey) : to[i];
+            if (plan.isPartitioned(i))
+                rightFrom[i] = split[i];
+        }
+
+        KeyRangeTask<T> left = new KeyRangeTask<>(plan, from, split, empty, worker, merge);
+        KeyRangeTask<T> right = new KeyRangeTask<>(plan, rightFrom, to, empty, worker, merge);
+        invokeAll(left, right);
+        return merge.apply(left.join(), right.join());
+    }
+
+    /**
+     * Find a key to split a range at, which is the key of the median row, or if every row in the first half of the
+     * range has that same key, the first key after it.
+     * @param tuples the tuples of the relation to split
+     * @param from the position of the first row in the range
+     * @param to the position after the last row in the range
+     * @return the smallest key of the right half of the split, which is equal to the first key in the range if the range
+     *          consists of a single key and cannot be split
+     */
+    private static long findSplitKey(TupleStorage tuples, int from, int to) {
+        int column = tuples.sortColumn(0);
+        long medianKey = tuples.get((from + to) >>> 1, column);
+        if (medianKey != tuples.get(from, column))
+            return medianKey;
+        int end = lowerBound(tuples, from, to, medianKey + 1);
+        return end == to ? medianKey : tuples.get(end, column);
+    }
+
+    /**
+     * Binary search for the first row in a range whose first attribute in the sort order is at least a given key.
+     * @param tuples the tuples to search
+     * @param from the position of the first row in the range
+     * @param to the position after the last row in the range
+     * @param key the key to search for
+     * @return the position of the first row with a first attribute at least key, or to if there is none
+     */
+    static int lowerBound(TupleStorage tuples, int from, int to, long key) {
+        int column = tuples.sortColumn(0);
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tuples.get(middle, column) < key)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+}
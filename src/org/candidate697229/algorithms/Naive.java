@@ -2,6 +2,8 @@ package org.candidate697229.algorithms;
 
 import org.candidate697229.database.Database;
 import org.candidate697229.database.Relation;
+import org.candidate697229.structures.LongRowHashMap;
+import org.candidate697229.util.Int128;
 import org.candidate697229.util.SQLiteHelper;
 
 import java.util.stream.Collectors;
@@ -24,45 +26,78 @@ public class Naive implements AggAlgorithm {
 
     @Override
     public long[] computeAllAggregatesOfNaturalJoin() {
-        return SQLiteHelper.runQuery(USE_EXAMPLE_DATABASE ? "example-database.db" : "housing/housing-" + scaleFactor + ".db", buildQueryAll());
+        Database database = emptyDatabase();
+        return runQuery(database, AggregateQuery.allPairs(database));
     }
 
     @Override
     public long computeOneAggregateOfNaturalJoin() {
-        return SQLiteHelper.runQuery(USE_EXAMPLE_DATABASE ? "example-database.db" : "housing/housing-" + scaleFactor + ".db", buildQueryOne())[0];
+        Database database = emptyDatabase();
+        return runQuery(database, AggregateQuery.firstPair(database))[0];
+    }
+
+    @Override
+    public AggregateResult computeAggregatesOfNaturalJoin(AggregateQuery query) {
+        Database database = emptyDatabase();
+        query.requireUngrouped();
+        query.resolve(database);
+        return AggregateResult.ofLongs(runQuery(database, query));
+    }
+
+    @Override
+    public GroupedAggregateResult computeGroupedAggregatesOfNaturalJoin(AggregateQuery query) {
+        Database database = emptyDatabase();
+        query.resolve(database);
+        query.resolveGroupBy(database);
+        StringBuilder sql = new StringBuilder("SELECT ").append(query.getGroupBy()).append(",").append(query);
+        buildNaturalJoin(database, sql);
+        sql.append(" GROUP BY ").append(query.getGroupBy()).append(";");
+
+        LongRowHashMap groups = new LongRowHashMap(2 * query.size());
+        for (long[] row : SQLiteHelper.runQueryForRows(databaseFile(), sql.toString())) {
+            int index = groups.findOrInsert(row[0]) * query.size();
+            for (int i = 0; i < query.size(); ++i)
+                Int128.set(groups.values(), index + i, row[i + 1]);
+        }
+        return new GroupedAggregateResult(groups);
+    }
+
+    /**
+     * Get the schema of the database, without reading in any tuples.
+     * @return the database, not populated with tuples
+     */
+    private Database emptyDatabase() {
+        return Database.makeFromDirectory(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor, false);
+    }
+
+    /**
+     * Run a query against the SQLite database.
+     * @param database the schema of the database
+     * @param query the aggregates to compute
+     * @return the result of the query
+     */
+    private long[] runQuery(Database database, AggregateQuery query) {
+        return SQLiteHelper.runQuery(databaseFile(), buildQuery(database, query));
     }
 
     /**
-     * Build a query for computing all aggregates.
-     *
-     * @return a SQL query for computing the sum of all products of pairs of attributes in the table
+     * Get the file holding the SQLite database to run on.
+     * @return the name of the file
      */
-    private String buildQueryAll() {
-        Database database = Database.makeFromDirectory(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor, false);
-        StringBuilder query = new StringBuilder("SELECT ");
-        database.getAttributeNamePairs().forEach(attributePair -> query
-                .append("SUM(")
-                .append(attributePair.getFirst())
-                .append("*")
-                .append(attributePair.getSecond())
-                .append("),"));
-        buildNaturalJoin(database, query.deleteCharAt(query.lastIndexOf(",")));
-        return query.toString();
+    private String databaseFile() {
+        return USE_EXAMPLE_DATABASE ? "example-database.db" : "housing/housing-" + scaleFactor + ".db";
     }
 
     /**
-     * Build a query for computing one aggregate.
-     * @return a SQL query for computing the sum of a products of pairs of attributes in the table
+     * Build a SQL query computing some aggregates of the natural join of all tables.
+     * @param database the database to get the tables from
+     * @param query the aggregates to compute
+     * @return a SQL query for computing the aggregates
      */
-    private String buildQueryOne() {
-        Database database = Database.makeFromDirectory(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + scaleFactor, false);
-        StringBuilder query = new StringBuilder("SELECT SUM(");
-        query.append(database.getRelations().get(0).getAttributes().get(0))
-                .append("*")
-                .append(database.getRelations().get(0).getAttributes().get(0))
-                .append(")");
-        buildNaturalJoin(database, query);
-        return query.toString();
+    private String buildQuery(Database database, AggregateQuery query) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(query);
+        buildNaturalJoin(database, sql);
+        return sql.append(";").toString();
     }
 
     /**
@@ -74,7 +109,6 @@ public class Naive implements AggAlgorithm {
         query.append(" FROM ")
                 .append(database.getRelations().stream()
                         .map(Relation::getName)
-                        .collect(Collectors.joining(" NATURAL JOIN ")))
-                .append(";");
+                        .collect(Collectors.joining(" NATURAL JOIN ")));
     }
 }
@@ -0,0 +1,14 @@
+package org.candidate697229.benchmarking;
+
+import org.candidate697229.algorithms.AggAlgorithm;
+import org.candidate697229.algorithms.AggThree;
+
+/**
+ * Class to run queries over a join tree.
+ */
+class AggThreeRunner extends QueryRunner {
+    @Override
+    AggAlgorithm getAlgorithm(int database) {
+        return new AggThree(database);
+    }
+}
@@ -0,0 +1,139 @@
+package org.candidate697229.benchmarking;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Class collecting the measurements of the benchmarker, summarised by their minimum, median, 95th percentile and mean
+ * over the repeats of each query, and writing them out as CSV and JSON so they can be loaded straight into a
+ * spreadsheet or script. Metrics that are worked out from other metrics rather than measured directly are marked as
+ * derived.
+ */
+class BenchmarkReport {
+    private final List<Row> rows = new ArrayList<>();
+
+    /**
+     * Add a metric measured over every repeat of a query.
+     * @param runner the name of the runner the query was run by
+     * @param scale the scale factor of the database the query was run on
+     * @param query the name of the query
+     * @param metric the name of the metric
+     * @param unit the unit the metric is measured in
+     * @param values the value of the metric on each repeat, which must not be empty
+     */
+    void add(String runner, int scale, String query, String metric, String unit, long[] values) {
+        rows.add(new Row(runner, scale, query, metric, unit, false, values));
+    }
+
+    /**
+     * Add a metric worked out from other metrics over every repeat of a query, rather than measured directly.
+     * @param runner the name of the runner the query was run by
+     * @param scale the scale factor of the database the query was run on
+     * @param query the name of the query
+     * @param metric the name of the metric
+     * @param unit the unit the metric is measured in
+     * @param values the value of the metric on each repeat, which must not be empty
+     */
+    void addDerived(String runner, int scale, String query, String metric, String unit, long[] values) {
+        rows.add(new Row(runner, scale, query, metric, unit, true, values));
+    }
+
+    /**
+     * Write every metric added so far to a CSV file and a JSON file, replacing them if they exist.
+     * @param path the path of the files, without their extensions
+     */
+    void write(String path) {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(path + ".csv"),
+                StandardCharsets.UTF_8))) {
+            csv.println("runner,scale,query,metric,unit,derived,min,median,p95,mean");
+            for (Row row : rows)
+                csv.println(row.runner + "," + row.scale + "," + row.query + "," + row.metric + "," + row.unit + "," +
+                        row.isDerived + "," + row.percentile(0) + "," + row.percentile(0.5) + "," +
+                        row.percentile(0.95) + "," + row.mean());
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while writing the benchmark results to " + path + ".csv", e);
+        }
+
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(Paths.get(path + ".json"),
+                StandardCharsets.UTF_8))) {
+            json.println("[");
+            for (int i = 0; i < rows.size(); ++i) {
+                Row row = rows.get(i);
+                json.println("  {\"runner\": \"" + row.runner + "\", \"scale\": " + row.scale + ", \"query\": \"" +
+                        row.query + "\", \"metric\": \"" + row.metric + "\", \"unit\": \"" + row.unit + "\", " +
+                        "\"derived\": " + row.isDerived + ", \"min\": " + row.percentile(0) + ", \"median\": " +
+                        row.percentile(0.5) + ", \"p95\": " + row.percentile(0.95) + ", \"mean\": " + row.mean() +
+                        ", \"runs\": [" +
+                        Arrays.stream(row.values).mapToObj(Long::toString).collect(Collectors.joining(", ")) + "]}" +
+                        (i + 1 < rows.size() ? "," : ""));
+            }
+            json.println("]");
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while writing the benchmark results to " + path + ".json", e);
+        }
+    }
+
+    /**
+     * Class holding a metric measured over every repeat of a query.
+     */
+    private static class Row {
+        private final String runner;
+        private final int scale;
+        private final String query;
+        private final String metric;
+        private final String unit;
+        private final boolean isDerived;
+        private final long[] values;
+        private final long[] sortedValues;
+
+        /**
+         * Construct a new row.
+         * @param runner the name of the runner the query was run by
+         * @param scale the scale factor of the database the query was run on
+         * @param query the name of the query
+         * @param metric the name of the metric
+         * @param unit the unit the metric is measured in
+         * @param isDerived true if the metric is worked out from other metrics rather than measured directly
+         * @param values the value of the metric on each repeat
+         */
+        Row(String runner, int scale, String query, String metric, String unit, boolean isDerived, long[] values) {
+            this.runner = runner;
+            this.scale = scale;
+            this.query = query;
+            this.metric = metric;
+            this.unit = unit;
+            this.isDerived = isDerived;
+            this.values = values.clone();
+            sortedValues = values.clone();
+            Arrays.sort(sortedValues);
+        }
+
+        /**
+         * Get a percentile of the values, by the nearest-rank method, so it is always one of the values.
+         * @param fraction the percentile as a fraction between 0 and 1, with 0 giving the minimum
+         * @return the smallest value at least that fraction of the values are less than or equal to
+         */
+        long percentile(double fraction) {
+            int rank = (int) Math.ceil(fraction * sortedValues.length);
+            return sortedValues[Math.max(0, rank - 1)];
+        }
+
+        /**
+         * Get the mean of the values.
+         * @return the mean, rounded down to the nearest integer
+         */
+        long mean() {
+            long sum = 0;
+            for (long value : values)
+                sum += value;
+            return Math.floorDiv(sum, values.length);
+        }
+    }
+}
@@ -1,20 +1,31 @@
 package org.candidate697229.benchmarking;
 
 import org.candidate697229.database.Database;
+import org.candidate697229.database.DatabaseCatalog;
+import org.candidate697229.util.PhaseTimer;
 import org.candidate697229.util.SQLiteHelper;
 
 import java.io.File;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.ToLongFunction;
 
 import static org.candidate697229.util.Configuration.*;
 
 /**
- * Class that benchmarks the three solutions and outputs timing information.
+ * Class that benchmarks the four solutions and outputs timing information.
  */
 public class Benchmarker {
     /**
-     * Run the benchmarking script and output times in milliseconds.
+     * Run the benchmarking script and output times in milliseconds. LOAD lines give the time to load the database and
+     * prepare the algorithm, which is small once the database is in the shared catalog, and TIME lines give the time
+     * to run the query itself.
+     *
+     * After each scale factor, the results so far are also written in more detail to the CSV and JSON files named by
+     * BENCHMARK_RESULTS_FILE: the minimum, median, 95th percentile and mean over the repeats of the time to load, the
+     * time spent in each phase timed by PhaseTimer, the time to join and aggregate, the bytes allocated and the time
+     * spent in garbage collection. The first, untimed run of each scale factor starts with the database dropped from
+     * the shared catalog, so it is the only run that loads it, and it is written out on its own as the cold run.
      *
      * @param args ignored, does not accept any command-line arguments
      */
@@ -29,42 +40,98 @@ public class Benchmarker {
                 System.out.println("... Naive database for database number " + (USE_EXAMPLE_DATABASE ? "TEST" : i) + " already exists, skipping creation");
         }
 
-        List<QueryRunner> queryRunners = Arrays.asList(new NaiveRunner(), new AggOneRunner(), new AggTwoRunner());
+        List<QueryRunner> queryRunners = Arrays.asList(new NaiveRunner(), new AggOneRunner(), new AggTwoRunner(),
+                new AggThreeRunner());
 
+        BenchmarkReport report = new BenchmarkReport();
         experiment:
         for (QueryRunner runner : queryRunners) {
             long experimentStart = System.currentTimeMillis();
+            String runnerName = runner.getClass().getSimpleName();
             for (int i = 1; i <= (USE_EXAMPLE_DATABASE ? 1 : NUM_OF_SCALES); ++i) {
                 GCAndWait();
-                runner.runQueryAll(i);
+                DatabaseCatalog.remove(USE_EXAMPLE_DATABASE ? "example-database" : "housing/housing-" + i);
+                RunMeasurement coldRun = runner.runQueryAll(i);
                 GCAndWait();
                 runner.runQueryOne(i);
-                long[] allAggregatesTimes = new long[REPEATS_PER_SCALE];
-                long[] oneAggregateTimes = new long[REPEATS_PER_SCALE];
+                RunMeasurement[] allAggregatesRuns = new RunMeasurement[REPEATS_PER_SCALE];
+                RunMeasurement[] oneAggregateRuns = new RunMeasurement[REPEATS_PER_SCALE];
                 for (int j = 0; j < REPEATS_PER_SCALE; ++j) {
-                    allAggregatesTimes[j] = runner.runQueryAll(i);
+                    allAggregatesRuns[j] = runner.runQueryAll(i);
                     GCAndWait();
-                    oneAggregateTimes[j] = runner.runQueryOne(i);
+                    oneAggregateRuns[j] = runner.runQueryOne(i);
                     GCAndWait();
                     if ((System.currentTimeMillis() - experimentStart) > (TIMEOUT_SECONDS * 1000L))
                         continue experiment;
                 }
-                System.out.println("TIME\t" + runner.getClass().getSimpleName() + "\t" + i + "\tAll\t" + average(allAggregatesTimes));
-                System.out.println("TIME\t" + runner.getClass().getSimpleName() + "\t" + i + "\tOne\t" + average(oneAggregateTimes));
+                long[] allAggregatesLoadTimes = extract(allAggregatesRuns, run -> run.loadNanos);
+                long[] allAggregatesTimes = extract(allAggregatesRuns, run -> run.queryNanos);
+                long[] oneAggregateLoadTimes = extract(oneAggregateRuns, run -> run.loadNanos);
+                long[] oneAggregateTimes = extract(oneAggregateRuns, run -> run.queryNanos);
+                System.out.println("LOAD\t" + runnerName + "\t" + i + "\tAll\t" + averageMillis(allAggregatesLoadTimes));
+                System.out.println("LOAD\t" + runnerName + "\t" + i + "\tOne\t" + averageMillis(oneAggregateLoadTimes));
+                System.out.println("TIME\t" + runnerName + "\t" + i + "\tAll\t" + averageMillis(allAggregatesTimes));
+                System.out.println("TIME\t" + runnerName + "\t" + i + "\tOne\t" + averageMillis(oneAggregateTimes));
+
+                /*
+                 * The join and the aggregation are interleaved within each query, and timing them apart on every
+                 * result of the join would slow the join down, so they are told apart by the two queries instead: the
+                 * query computing one aggregate is taken as the time to join, and the rest of the time taken by the
+                 * query computing all the aggregates as the time to aggregate.
+                 */
+                long[] aggregateTimes = new long[REPEATS_PER_SCALE];
+                for (int j = 0; j < REPEATS_PER_SCALE; ++j)
+                    aggregateTimes[j] = Math.max(0, allAggregatesTimes[j] - oneAggregateTimes[j]);
+                addToReport(report, runnerName, i, "All-cold", new RunMeasurement[]{coldRun});
+                addToReport(report, runnerName, i, "All", allAggregatesRuns);
+                report.addDerived(runnerName, i, "All", "join", "ns", oneAggregateTimes);
+                report.addDerived(runnerName, i, "All", "aggregate", "ns", aggregateTimes);
+                addToReport(report, runnerName, i, "One", oneAggregateRuns);
+                report.write(BENCHMARK_RESULTS_FILE);
             }
         }
     }
 
+    /**
+     * Add the measurements of every repeat of a query to the report.
+     * @param report the report to add to
+     * @param runner the name of the runner the query was run by
+     * @param scale the scale factor of the database the query was run on
+     * @param query the name of the query
+     * @param runs the measurement of each repeat
+     */
+    private static void addToReport(BenchmarkReport report, String runner, int scale, String query,
+                                    RunMeasurement[] runs) {
+        report.add(runner, scale, query, "load", "ns", extract(runs, run -> run.loadNanos));
+        for (PhaseTimer.Phase phase : PhaseTimer.Phase.values())
+            report.add(runner, scale, query, phase.name().toLowerCase(), "ns",
+                    extract(runs, run -> run.phaseNanos[phase.ordinal()]));
+        report.add(runner, scale, query, "query", "ns", extract(runs, run -> run.queryNanos));
+        if (runs[0].allocatedBytes >= 0)
+            report.add(runner, scale, query, "allocated", "bytes", extract(runs, run -> run.allocatedBytes));
+        report.add(runner, scale, query, "gc", "ms", extract(runs, run -> run.gcMillis));
+    }
+
+    /**
+     * Get one of the measurements of each run.
+     * @param runs the runs
+     * @param measurement the measurement to get from a run
+     * @return the measurement of each run
+     */
+    private static long[] extract(RunMeasurement[] runs, ToLongFunction<RunMeasurement> measurement) {
+        return Arrays.stream(runs).mapToLong(measurement).toArray();
+    }
+
     /**
      * Calculate an average of a tuple of times.
-     * @param times the times to average
-     * @return an average time, rounded down to the nearest integer
+     * @param times the times to average, in nanoseconds
+     * @return an average time in milliseconds, rounded down to the nearest integer
      */
-    private static long average(long[] times) {
+    private static long averageMillis(long[] times) {
         long sum = 0;
         for (long time : times)
             sum += time;
-        return Math.floorDiv(sum, times.length);
+        return Math.floorDiv(sum, times.length * 1000000L);
     }
 
     /**
@@ -1,8 +1,7 @@
 package org.candidate697229.benchmarking;
 
 import org.candidate697229.algorithms.AggAlgorithm;
-
-import java.util.Arrays;
+import org.candidate697229.algorithms.AggregateResult;
 
 import static org.candidate697229.util.Configuration.OUTPUT_RESULTS;
 
@@ -13,31 +12,37 @@ abstract class QueryRunner {
     /**
      * Run a query computing the sum of each product of attribute pairs on a database.
      * @param database the scale factor of the database to run on
-     * @return the time to run the query
+     * @return the measurement of the run, with the time to load the database and prepare the algorithm separate from
+     *          the time to run the query
      */
-    long runQueryAll(int database) {
-        long start = System.currentTimeMillis();
+    RunMeasurement runQueryAll(int database) {
+        RunMeasurement.Meter meter = new RunMeasurement.Meter();
         AggAlgorithm algorithm = getAlgorithm(database);
-        long[] result = algorithm.computeAllAggregatesOfNaturalJoin();
+        meter.loaded();
+        AggregateResult result = algorithm.computeAllAggregatesOfNaturalJoinExactly();
+        RunMeasurement measurement = meter.finished();
         if (OUTPUT_RESULTS)
             System.out.println("RESULT\t" + getClass().getSimpleName() + "\t"
-                    + database + "\tAll\t" + Arrays.toString(result));
-        return System.currentTimeMillis() - start;
+                    + database + "\tAll\t" + result);
+        return measurement;
     }
 
     /**
      * Run a query computing the sum of one product of attribute pairs on a database.
      * @param database the scale factor of the database to run on
-     * @return the time to run the query
+     * @return the measurement of the run, with the time to load the database and prepare the algorithm separate from
+     *          the time to run the query
      */
-    long runQueryOne(int database) {
-        long start = System.currentTimeMillis();
+    RunMeasurement runQueryOne(int database) {
+        RunMeasurement.Meter meter = new RunMeasurement.Meter();
         AggAlgorithm algorithm = getAlgorithm(database);
-        long result = algorithm.computeOneAggregateOfNaturalJoin();
+        meter.loaded();
+        AggregateResult result = algorithm.computeOneAggregateOfNaturalJoinExactly();
+        RunMeasurement measurement = meter.finished();
         if (OUTPUT_RESULTS)
             System.out.println("RESULT\t" + getClass().getSimpleName() + "\t"
-                    + database + "\tOne\t" + result);
-        return System.currentTimeMillis() - start;
+                    + database + "\tOne\t" + result.toString(0));
+        return measurement;
     }
 
     abstract AggAlgorithm getAlgorithm(int database);
@@ -0,0 +1,124 @@
+package org.candidate697229.benchmarking;
+
+import org.candidate697229.util.PhaseTimer;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class holding what was measured over a single run of a query: the time to load the database and prepare the
+ * algorithm, the time to run the query, the time spent in each phase timed by PhaseTimer, the bytes allocated on the
+ * heap and the time spent in garbage collection.
+ */
+class RunMeasurement {
+    final long loadNanos;
+    final long queryNanos;
+    final long[] phaseNanos;
+    final long allocatedBytes;
+    final long gcMillis;
+
+    /**
+     * Construct a new run measurement.
+     * @param loadNanos the number of nanoseconds taken to load the database and prepare the algorithm
+     * @param queryNanos the number of nanoseconds taken to run the query
+     * @param phaseNanos the number of nanoseconds spent in each phase, indexed by the ordinal of the phase
+     * @param allocatedBytes the number of bytes allocated on the heap, or -1 if the JVM cannot measure them
+     * @param gcMillis the number of milliseconds spent in garbage collection
+     */
+    private RunMeasurement(long loadNanos, long queryNanos, long[] phaseNanos, long allocatedBytes, long gcMillis) {
+        this.loadNanos = loadNanos;
+        this.queryNanos = queryNanos;
+        this.phaseNanos = phaseNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.gcMillis = gcMillis;
+    }
+
+    /**
+     * Class that measures a run as it happens: readings are taken when it is constructed, at the start of the run,
+     * and again as each part of the run ends.
+     */
+    static class Meter {
+        private final long start;
+        private final long[] phasesAtStart;
+        private final Map<Long, Long> allocatedAtStart;
+        private final long gcAtStart;
+        private long loaded;
+
+        /**
+         * Start measuring a run.
+         */
+        Meter() {
+            phasesAtStart = PhaseTimer.read();
+            allocatedAtStart = allocatedBytesByThread();
+            gcAtStart = gcMillis();
+            start = System.nanoTime();
+        }
+
+        /**
+         * Record that the database has been loaded and the algorithm prepared, and the query is about to be run.
+         */
+        void loaded() {
+            loaded = System.nanoTime();
+        }
+
+        /**
+         * Record that the query has finished.
+         * @return the measurement of the run
+         */
+        RunMeasurement finished() {
+            long finished = System.nanoTime();
+            long[] phaseNanos = PhaseTimer.read();
+            for (int phase = 0; phase < phaseNanos.length; ++phase)
+                phaseNanos[phase] -= phasesAtStart[phase];
+
+            /*
+             * Allocations are summed over every thread alive at the end of the run, as the algorithms do part of
+             * their work on the common fork/join pool, counting threads started during the run from zero.
+             */
+            long allocated = -1;
+            Map<Long, Long> allocatedAtEnd = allocatedBytesByThread();
+            if (allocatedAtStart != null && allocatedAtEnd != null) {
+                allocated = 0;
+                for (Map.Entry<Long, Long> thread : allocatedAtEnd.entrySet())
+                    allocated += thread.getValue() - allocatedAtStart.getOrDefault(thread.getKey(), 0L);
+            }
+            return new RunMeasurement(loaded - start, finished - loaded, phaseNanos, allocated,
+                    gcMillis() - gcAtStart);
+        }
+    }
+
+    /**
+     * Read the number of bytes each live thread has allocated on the heap so far.
+     * @return the bytes allocated by each thread, keyed by the ID of the thread, or null if the JVM cannot measure them
+     */
+    private static Map<Long, Long> allocatedBytesByThread() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled())
+            return null;
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = allocations.getThreadAllocatedBytes(ids);
+        Map<Long, Long> bytesByThread = new HashMap<>();
+        for (int i = 0; i < ids.length; ++i) {
+            if (bytes[i] >= 0)
+                bytesByThread.put(ids[i], bytes[i]);
+        }
+        return bytesByThread;
+    }
+
+    /**
+     * Read the total time spent in garbage collection so far, over every collector.
+     * @return the number of milliseconds spent in garbage collection
+     */
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, collector.getCollectionTime());
+        return millis;
+    }
+}
@@ -0,0 +1,196 @@
+package org.candidate697229.codegen;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.candidate697229.util.Configuration.KERNEL_COMPILE_THRESHOLD;
+
+/**
+ * Class that provides static methods for compiling generated Java source into a class at runtime, with the compiler
+ * of the JDK the program is running on, and loading it straight from memory.
+ *
+ * Compiling is slow next to running a query, so a kernel is only compiled once a body has been asked for
+ * KERNEL_COMPILE_THRESHOLD times, and then on a background thread, with callers interpreting in the meantime. Each
+ * kernel is compiled once per distinct body and then shared. Every kernel has a class loader of its own, so only the
+ * MAX_KERNELS most recently used bodies are kept, and the classes of the others are unloaded once nothing uses them.
+ * When the program runs on a JRE without a compiler, or a body fails to compile, callers fall back to interpreting.
+ */
+public class KernelCompiler {
+    private static final String PACKAGE = KernelCompiler.class.getPackage().getName();
+    private static final JavaCompiler COMPILER = ToolProvider.getSystemJavaCompiler();
+    private static final int MAX_KERNELS = 64;
+    private static final Map<String, Compilation> KERNELS = new LinkedHashMap<String, Compilation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Compilation> eldest) {
+            return size() > MAX_KERNELS;
+        }
+    };
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "kernel-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicInteger NEXT_CLASS_NUMBER = new AtomicInteger();
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private KernelCompiler() {
+    }
+
+    /**
+     * Check if kernels can be compiled at all.
+     * @return true if the program is running on a JDK with a system Java compiler
+     */
+    public static boolean isAvailable() {
+        return COMPILER != null;
+    }
+
+    /**
+     * Prepare a public final class implementing an interface, to be compiled once it has been asked for often enough.
+     * Each call to get on the supplier returned counts as asking for the body, and supplies an instance of the class
+     * once it has been compiled, or null while it has not (or never will be), in which case the caller must interpret
+     * instead. The supplier keeps hold of the instance once it has one.
+     * @param type the public interface the class implements
+     * @param body the members of the class, as Java source
+     * @param imports the classes the body refers to by their simple names
+     * @param <T> the type of the interface
+     * @return the supplier of the instance
+     */
+    public static <T> Supplier<T> compile(Class<T> type, String body, Class<?>... imports) {
+        if (COMPILER == null)
+            return () -> null;
+        String key = type.getName() + "\n" + body;
+        return new Supplier<T>() {
+            private volatile T instance;
+
+            @Override
+            public T get() {
+                if (instance == null)
+                    instance = type.cast(request(key, type, body, imports));
+                return instance;
+            }
+        };
+    }
+
+    /**
+     * Count a request for a body, starting to compile it in the background once it has been asked for often enough.
+     * @param key the key of the body in KERNELS
+     * @param type the interface the class implements
+     * @param body the members of the class, as Java source
+     * @param imports the classes the body refers to by their simple names
+     * @return the instance of the class, or null if it has not been compiled
+     */
+    private static Object request(String key, Class<?> type, String body, Class<?>[] imports) {
+        Compilation compilation;
+        synchronized (KERNELS) {
+            compilation = KERNELS.computeIfAbsent(key, k -> new Compilation());
+            if (compilation.numOfRequests == KERNEL_COMPILE_THRESHOLD ||
+                    ++compilation.numOfRequests < KERNEL_COMPILE_THRESHOLD)
+                return compilation.instance;
+        }
+        BACKGROUND.execute(() -> compilation.instance = load(type, body, imports));
+        return null;
+    }
+
+    /**
+     * Compile a class and make an instance of it.
+     * @param type the interface the class implements
+     * @param body the members of the class, as Java source
+     * @param imports the classes the body refers to by their simple names
+     * @return the instance, or null if the body does not compile
+     */
+    private static Object load(Class<?> type, String body, Class<?>[] imports) {
+        String simpleName = "Generated" + type.getSimpleName() + NEXT_CLASS_NUMBER.getAndIncrement();
+        String className = PACKAGE + "." + simpleName;
+        StringBuilder source = new StringBuilder("package ").append(PACKAGE).append(";\n\n");
+        for (Class<?> imported : imports)
+            source.append("import ").append(imported.getName()).append(";\n");
+        source.append("\npublic final class ").append(simpleName).append(" implements ").append(type.getName())
+                .append(" {\n").append(body).append("}\n");
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+        StandardJavaFileManager standardFileManager = COMPILER.getStandardFileManager(diagnostics, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standardFileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension),
+                        kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+                        classFiles.put(name, classFile);
+                        return classFile;
+                    }
+                };
+            }
+        };
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        boolean isCompiled;
+        try {
+            isCompiled = COMPILER.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-g:none", "-proc:none", "-classpath", System.getProperty("java.class.path")),
+                    null, Collections.singletonList(sourceFile)).call();
+            fileManager.close();
+        } catch (IOException e) {
+            throw new InternalError("Failed to compile generated class " + className, e);
+        }
+        if (!isCompiled)
+            return null;
+
+        ClassLoader loader = new ClassLoader(type.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream classFile = classFiles.get(name);
+                if (classFile == null)
+                    throw new ClassNotFoundException(name);
+                byte[] bytes = classFile.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return loader.loadClass(className).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * What is known of one body: how often it has been asked for and, once it has been compiled, the instance of its
+     * class.
+     */
+    private static class Compilation {
+        private int numOfRequests;
+        private volatile Object instance;
+    }
+}
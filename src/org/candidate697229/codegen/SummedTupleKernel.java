@@ -0,0 +1,21 @@
+package org.candidate697229.codegen;
+
+/**
+ * Kernel adding what the current result of a join contributes to each aggregate of a query, from the partial
+ * aggregates summed over the block of tuples each relation has for the current join key, as AggTwo does for every
+ * result of the join.
+ */
+public interface SummedTupleKernel {
+    /**
+     * Add the contribution of the current result of the join to each aggregate. The products of COUNTs the aggregates
+     * need are computed as longs first, and if one of them does not fit in a long (which takes a join of more than
+     * 2^63 results) nothing is added, leaving the caller to compute the contribution some other way.
+     * @param summedTuple the join key then the partial aggregates of each relation, laid out as AggTwo sums them
+     * @param countProducts space for the product of the COUNTs of every relation but i and k, at position
+     *                      (i * number of relations + k), which the kernel fills in as it needs them
+     * @param sums the aggregates accumulated in longs, as described in Int128.accumulate
+     * @param spilled the 128-bit values the aggregates spill into
+     * @return true if the contribution was added, or false if a product of COUNTs overflows a long
+     */
+    boolean addAggregates(long[][] summedTuple, long[] countProducts, long[] sums, long[] spilled);
+}
@@ -0,0 +1,16 @@
+package org.candidate697229.codegen;
+
+/**
+ * Kernel adding what the current result of a join contributes to each aggregate of a query, from the tuples the
+ * iterators of the join are positioned at, as AggOne does for every result of the join.
+ */
+public interface TupleKernel {
+    /**
+     * Add the product each aggregate sums, over the current tuples of the join, to the aggregate.
+     * @param columns the values of each attribute of each relation the aggregates read (see ColumnBlocks)
+     * @param rows the position of the current tuple of each relation in the values of its attributes
+     * @param sums the aggregates accumulated in longs, as described in Int128.accumulate
+     * @param spilled the 128-bit values the aggregates spill into
+     */
+    void addAggregates(long[][][] columns, int[] rows, long[] sums, long[] spilled);
+}
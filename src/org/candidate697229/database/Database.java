@@ -6,20 +6,22 @@ import java.io.File;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static org.candidate697229.util.Configuration.USE_COST_BASED_JOIN_ORDER;
 import static org.candidate697229.util.Configuration.USE_EXAMPLE_DATABASE;
+import static org.candidate697229.util.Configuration.USE_SORTED_PERMUTATIONS;
 
 /**
  * Class representing a database (set of relations).
  */
 public class Database {
-    private List<Relation> relations;
+    private final List<Relation> relations;
 
     /**
      * Create a database.
      * @param relations the relations in the database (need not be populate with tuples yet)
      */
     private Database(List<Relation> relations) {
-        this.relations = relations;
+        this.relations = Collections.unmodifiableList(relations);
     }
 
     /**
@@ -78,11 +80,12 @@ public class Database {
 
     /**
      * Read in a database matching the schema in the relations from a directory containing a .tbl for each relation.
+     * The relations are read in concurrently.
      *
      * @param directoryName the directory to read the databse from
      */
     private void readFromDirectory(String directoryName) {
-        relations.forEach(relation -> relation.readFromFile(new File(directoryName, relation.getName() + ".tbl")));
+        relations.parallelStream().forEach(relation -> relation.readFromFile(new File(directoryName, relation.getName() + ".tbl")));
     }
 
     /**
@@ -94,6 +97,17 @@ public class Database {
         return relations;
     }
 
+    /**
+     * Estimate how much heap memory the database takes up.
+     * @return the estimated number of bytes of heap used by all the relations
+     */
+    public long estimatedHeapBytes() {
+        long bytes = 0;
+        for (Relation relation : relations)
+            bytes += relation.estimatedHeapBytes();
+        return bytes;
+    }
+
     /**
      * Get all pairs of attribute names in the database (symmetric pairs appear only once).
      *
@@ -137,6 +151,22 @@ public class Database {
         return attributePairs;
     }
 
+    /**
+     * Find where an attribute first appears in the database, which is where its values are read from (if it appears in
+     * several relations, it is a join attribute and has the same value in all of them).
+     * @param attribute the name of the attribute
+     * @return a pair of integers giving the relation and attribute within that relation
+     * @throws IllegalArgumentException if no relation has the attribute
+     */
+    public int[] getAttributePosition(String attribute) {
+        for (int i = 0; i < relations.size(); ++i) {
+            int j = relations.get(i).getAttributes().indexOf(attribute);
+            if (j >= 0)
+                return new int[]{i, j};
+        }
+        throw new IllegalArgumentException("No relation has the attribute " + attribute + ".");
+    }
+
     /**
      * Find where each attribute appears in the database.
      * @return a map from each attribute name to a list of positions it appears in, where each position takes the form
@@ -157,12 +187,31 @@ public class Database {
     }
 
     /**
-     * Get the explicit conditions in the natural join of the all the relations in this database.
+     * Get the explicit conditions in the natural join of the all the relations in this database, in the order the join
+     * variables should be joined in. If cost-based join ordering is enabled and the database is populated, this is the
+     * order with the lowest estimated cost (see JoinOrderOptimizer), and otherwise it is based on the positions of the
+     * join attributes in the relations. The order never requires a relation held out of core to be sorted in another
+     * order, so if any relation is, every relation meets its join attributes in the order of their positions.
      * @return the explicit join conditions, as a list of lists of pairs, with each pair of integers representing a
      *          relation and attribute within that relation that should be equal to all others in the same list
      */
     public List<List<int[]>> getAllExplicitJoinConditions() {
-        return findAttributePositions().values().stream()
+        boolean isAnyOutOfCore = relations.stream()
+                .anyMatch(relation -> relation.getTuples() != null && relation.getTuples().isOutOfCore());
+        return getAllExplicitJoinConditions(USE_SORTED_PERMUTATIONS && !isAnyOutOfCore);
+    }
+
+    /**
+     * Get the explicit conditions in the natural join of the all the relations in this database, in the order the join
+     * variables should be joined in, as for getAllExplicitJoinConditions() but choosing whether the order may require
+     * relations to be joined through copies sorted in another order (see SortedPermutations).
+     * @param canResort whether the relations can be sorted in another order, which if false restricts the order to
+     *                  one where each relation meets its join attributes in the order of their positions
+     * @return the explicit join conditions, as a list of lists of pairs, with each pair of integers representing a
+     *          relation and attribute within that relation that should be equal to all others in the same list
+     */
+    public List<List<int[]>> getAllExplicitJoinConditions(boolean canResort) {
+        List<List<int[]>> joinConditions = findAttributePositions().values().stream()
                 .filter(positions -> positions.size() > 1)
                 .sorted((positionsOne, positionsTwo) -> {
                     for (int[] positionOne : positionsOne) {
@@ -173,5 +222,8 @@ public class Database {
                     }
                     return Integer.compare(positionsTwo.size(), positionsOne.size());
             }).collect(Collectors.toList());
+        if (USE_COST_BASED_JOIN_ORDER && relations.stream().allMatch(relation -> relation.getTuples() != null))
+            return JoinOrderOptimizer.chooseOrder(this, joinConditions, canResort);
+        return joinConditions;
     }
 }
@@ -0,0 +1,108 @@
+package org.candidate697229.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.candidate697229.util.Configuration.CATALOG_HEAP_BUDGET_BYTES;
+
+/**
+ * Process-wide catalog of loaded databases, so that each database directory is read in once and then shared by every
+ * algorithm that runs on it. Databases are kept in order of last use, and when the databases held take up more heap
+ * than the configured budget, the least recently used ones are dropped from the catalog (they are read in again if
+ * they are asked for later). The most recently used database is always kept, even if it is over budget by itself.
+ *
+ * A database is read in without holding the lock on the catalog, so reading in one directory does not hold up threads
+ * getting other databases. Threads asking for a directory that is already being read in wait for that read instead of
+ * starting another one.
+ *
+ * Databases handed out by the catalog are shared and must not be modified.
+ */
+public class DatabaseCatalog {
+    private static final Map<String, Database> databases = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<String, CompletableFuture<Database>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private DatabaseCatalog() {
+    }
+
+    /**
+     * Get the database read in from a directory, reading it in if it is not already in the catalog.
+     * @param directoryName the directory to read in the database from
+     * @return the shared database
+     */
+    public static Database get(String directoryName) {
+        CompletableFuture<Database> load = new CompletableFuture<>();
+        CompletableFuture<Database> pending;
+        synchronized (DatabaseCatalog.class) {
+            Database database = databases.get(directoryName);
+            if (database != null)
+                return database;
+            pending = loading.putIfAbsent(directoryName, load);
+        }
+        if (pending != null)
+            return await(pending);
+
+        try {
+            Database database = Database.makeFromDirectory(directoryName);
+            synchronized (DatabaseCatalog.class) {
+                databases.put(directoryName, database);
+                evict();
+                loading.remove(directoryName);
+            }
+            load.complete(database);
+            return database;
+        } catch (RuntimeException | Error e) {
+            loading.remove(directoryName);
+            load.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop a database from the catalog, so that the next get reads it in again, along with anything built for it. A
+     * read of the database that is still in progress is left to finish.
+     * @param directoryName the directory the database was read in from
+     */
+    public static synchronized void remove(String directoryName) {
+        databases.remove(directoryName);
+    }
+
+    /**
+     * Wait for another thread to finish reading in a database.
+     * @param load the future the other thread completes with the database
+     * @return the database
+     */
+    private static Database await(CompletableFuture<Database> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the least recently used databases until the catalog fits within its heap budget or only one database is left.
+     * This is done whenever a database is added, and the heap used is recounted each time, as databases grow when
+     * per-key aggregates are built for them.
+     */
+    private static void evict() {
+        long bytes = 0;
+        for (Database database : databases.values())
+            bytes += database.estimatedHeapBytes();
+        Iterator<Database> leastRecentlyUsed = databases.values().iterator();
+        while (bytes > CATALOG_HEAP_BUDGET_BYTES && databases.size() > 1) {
+            bytes -= leastRecentlyUsed.next().estimatedHeapBytes();
+            leastRecentlyUsed.remove();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.TupleSorter;
+import org.candidate697229.util.PhaseTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort of a .tbl file into its snapshot, for relations too large to parse and sort on the heap. The file
+ * is read in runs of at most a given number of bytes, and each run is parsed, sorted in memory and spilled to a
+ * temporary run file next to the .tbl file. The sorted runs are then merged a row at a time straight into the snapshot,
+ * so at no point is more than one run (and a buffer per run file) held in memory.
+ */
+class ExternalSorter {
+    /**
+     * The largest number of bytes a run can take up, as they are read into a single array.
+     */
+    private static final int MAX_RUN_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * The number of bytes buffered from each run file while merging.
+     */
+    private static final int MERGE_BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private ExternalSorter() {
+    }
+
+    /**
+     * Sort the tuples of a .tbl file lexicographically, and write them to the snapshot of the relation.
+     * @param tableFile the .tbl file to sort
+     * @param attributes the attribute names of the relation
+     * @param runBytes the largest number of bytes of the file to parse and sort in memory at once
+     */
+    static void sortIntoSnapshot(File tableFile, List<String> attributes, long runBytes) {
+        List<File> runs = new ArrayList<>();
+        try {
+            long size = writeRuns(tableFile, attributes.size(), (int) Math.min(runBytes, MAX_RUN_BYTES), runs);
+            if (size > Integer.MAX_VALUE)
+                throw new InternalError("Too many tuples to hold in a relation in " + tableFile);
+            long start = PhaseTimer.start();
+            merge(tableFile, attributes, (int) size, runs);
+            PhaseTimer.stop(PhaseTimer.Phase.SORT, start);
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while sorting a relation out of core", e);
+        } finally {
+            for (File run : runs)
+                run.delete();
+        }
+    }
+
+    /**
+     * Read a .tbl file in runs, writing each run sorted to a run file of its own.
+     * @param tableFile the .tbl file to read
+     * @param arity the number of attributes on each row
+     * @param runBytes the largest number of bytes to read into a run
+     * @param runs the list to add each run file to, as soon as it has been created
+     * @return the number of rows in the file
+     * @throws IOException if reading the file or writing a run fails
+     */
+    private static long writeRuns(File tableFile, int arity, int runBytes, List<File> runs) throws IOException {
+        long numOfRows = 0;
+        try (FileChannel input = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            byte[] bytes = new byte[runBytes];
+            int filled = 0;
+            boolean isAtEnd = false;
+            while (!isAtEnd) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, filled, bytes.length - filled);
+                while (buffer.hasRemaining() && !isAtEnd)
+                    isAtEnd = input.read(buffer) < 0;
+                filled = buffer.position();
+
+                /*
+                 * Only parse up to the end of the last whole line, carrying the rest over to the next run. A line
+                 * longer than a whole run is given a larger array to fit in.
+                 */
+                int end = filled;
+                if (!isAtEnd) {
+                    while (end > 0 && bytes[end - 1] != '\n')
+                        --end;
+                    if (end == 0) {
+                        if (bytes.length == MAX_RUN_BYTES)
+                            throw new InternalError("Line too long to parse in " + tableFile);
+                        bytes = Arrays.copyOf(bytes, (int) Math.min(2L * bytes.length, MAX_RUN_BYTES));
+                        continue;
+                    }
+                }
+
+                long start = PhaseTimer.start();
+                long[][] columns = TableParser.parse(tableFile, bytes, end, arity, numOfRows);
+                PhaseTimer.stop(PhaseTimer.Phase.PARSE, start);
+                int rows = arity == 0 ? 0 : columns[0].length;
+                if (rows > 0) {
+                    start = PhaseTimer.start();
+                    TupleSorter.sort(columns);
+                    File run = File.createTempFile(tableFile.getName() + ".", ".run", tableFile.getParentFile());
+                    runs.add(run);
+                    writeRun(run, columns);
+                    PhaseTimer.stop(PhaseTimer.Phase.SORT, start);
+                    numOfRows += rows;
+                }
+                System.arraycopy(bytes, end, bytes, 0, filled - end);
+                filled -= end;
+            }
+        }
+        return numOfRows;
+    }
+
+    /**
+     * Write a sorted run to a file, row by row with each value as a little-endian long.
+     * @param run the file to write to
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows
+     * @throws IOException if writing fails
+     */
+    private static void writeRun(File run, long[][] columns) throws IOException {
+        try (FileChannel output = FileChannel.open(run.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MERGE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int row = 0; row < columns[0].length; ++row) {
+                for (long[] column : columns) {
+                    if (!buffer.hasRemaining())
+                        flush(output, buffer);
+                    buffer.putLong(column[row]);
+                }
+            }
+            flush(output, buffer);
+        }
+    }
+
+    /**
+     * Merge sorted run files into the snapshot of a relation.
+     * @param tableFile the .tbl file the runs were read from
+     * @param attributes the attribute names of the relation
+     * @param size the number of rows in all the runs together
+     * @param runs the run files
+     * @throws IOException if reading a run or writing the snapshot fails
+     */
+    private static void merge(File tableFile, List<String> attributes, int size, List<File> runs) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                (first, second) -> compareRows(first.row, second.row));
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        SnapshotFile.Writer writer = new SnapshotFile.Writer(tableFile, "", attributes, size);
+        boolean isCommitted = false;
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run, attributes.size());
+                readers.add(reader);
+                if (reader.advance())
+                    queue.add(reader);
+                else
+                    reader.close();
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                writer.append(reader.row);
+                if (reader.advance())
+                    queue.add(reader);
+                else
+                    reader.close();
+            }
+            writer.commit();
+            isCommitted = true;
+        } finally {
+            if (!isCommitted)
+                writer.abandon();
+            for (RunReader reader : readers)
+                reader.close();
+        }
+    }
+
+    /**
+     * Compare two rows lexicographically.
+     * @param first the first row
+     * @param second the second row
+     * @return a negative number, zero or a positive number as the first row is less than, equal to or greater than the
+     *          second
+     */
+    private static int compareRows(long[] first, long[] second) {
+        for (int j = 0; j < first.length; ++j) {
+            int comparison = Long.compare(first[j], second[j]);
+            if (comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+
+    /**
+     * Write out the contents of a buffer and clear it.
+     * @param channel the channel to write to
+     * @param buffer the buffer to write out
+     * @throws IOException if writing fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Reader moving through the rows of a run file in order, through a buffer.
+     */
+    private static class RunReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final long[] row;
+
+        /**
+         * Open a run file, positioned before its first row.
+         * @param run the run file
+         * @param arity the number of attributes on each row
+         * @throws IOException if the file cannot be opened
+         */
+        RunReader(File run, int arity) throws IOException {
+            channel = FileChannel.open(run.toPath(), StandardOpenOption.READ);
+            int rowBytes = arity * Long.BYTES;
+            buffer = ByteBuffer.allocateDirect(Math.max(1, MERGE_BUFFER_BYTES / rowBytes) * rowBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+            row = new long[arity];
+        }
+
+        /**
+         * Move to the next row of the run, reading it into row.
+         * @return true if there was a next row, or false if the run has ended
+         * @throws IOException if reading fails
+         */
+        boolean advance() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read = 0;
+                while (buffer.hasRemaining() && read >= 0)
+                    read = channel.read(buffer);
+                buffer.flip();
+                if (!buffer.hasRemaining())
+                    return false;
+            }
+            for (int j = 0; j < row.length; ++j)
+                row[j] = buffer.getLong();
+            return true;
+        }
+
+        /**
+         * Close the run file.
+         * @throws IOException if closing fails
+         */
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
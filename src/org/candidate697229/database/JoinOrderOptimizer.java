@@ -0,0 +1,230 @@
+package org.candidate697229.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Optimizer choosing the order of the join variables (the join conditions) for the leapfrog triejoin, by estimating
+ * the cost of every valid order from the statistics of the relations and picking the cheapest.
+ *
+ * If relations can be sorted in another order, every order is valid, since each relation is joined through a copy
+ * sorted in the order it meets its join variables in, and the statistics of each relation are collected for that
+ * order. Otherwise (or if a relation has too many join attributes to collect statistics for every order of them), an
+ * order is only valid if each relation meets its join variables in the order of its attributes, as its tuples are
+ * only sorted in that order. The cost of an order is estimated one variable at a time, keeping track of the expected
+ * number of bindings of the variables before it:
+ * - For each binding, the unary leapfrog triejoin seeks each relation about as many times as there are values in the
+ *   smallest of the sets being intersected, which is estimated from the degree histograms of the relations.
+ * - The number of values in the intersection, and so the number of bindings passed on to the next variable, is
+ *   estimated from the average degrees assuming each set is a uniformly chosen subset of one domain of values. Only the
+ *   range between the largest minimum and the smallest maximum of the relations is counted, and the domain is taken to
+ *   be the largest number of distinct values any relation has in that range.
+ */
+class JoinOrderOptimizer {
+    /**
+     * The largest number of join variables for which every order is tried, beyond which the given order is kept.
+     */
+    private static final int MAX_VARIABLES_TO_ORDER = 8;
+
+    /**
+     * The largest number of join attributes a relation may have for its join attributes to be tried in every order.
+     */
+    private static final int MAX_ATTRIBUTES_TO_PERMUTE = 4;
+
+    private final List<Relation> relations;
+    private final List<List<int[]>> joinConditions;
+    private final boolean canPermute;
+    private final int[] order;
+    private final boolean[] isPlaced;
+    private final int[] numOfPlacedInRelation;
+    private final int[][] columnsInOrder;
+    private final RelationStatistics[] statistics;
+    private final int[][] levels;
+    private int[] cheapestOrder;
+    private double cheapestCost = Double.POSITIVE_INFINITY;
+
+    /**
+     * Construct an optimizer.
+     * @param relations the relations of the database, populated with tuples
+     * @param joinConditions the join conditions, in the order to fall back on
+     * @param canResort whether the relations can be joined through copies sorted in another order
+     */
+    private JoinOrderOptimizer(List<Relation> relations, List<List<int[]>> joinConditions, boolean canResort) {
+        this.relations = relations;
+        this.joinConditions = joinConditions;
+        this.order = new int[joinConditions.size()];
+        this.isPlaced = new boolean[joinConditions.size()];
+        this.numOfPlacedInRelation = new int[relations.size()];
+        this.statistics = new RelationStatistics[relations.size()];
+        this.levels = new int[joinConditions.size()][];
+
+        int[] numOfJoinAttributes = new int[relations.size()];
+        for (List<int[]> joinCondition : joinConditions) {
+            for (int[] position : joinCondition)
+                numOfJoinAttributes[position[0]]++;
+        }
+        this.columnsInOrder = new int[relations.size()][];
+        boolean canPermute = canResort;
+        for (int i = 0; i < columnsInOrder.length; ++i) {
+            columnsInOrder[i] = new int[numOfJoinAttributes[i]];
+            canPermute &= numOfJoinAttributes[i] <= MAX_ATTRIBUTES_TO_PERMUTE;
+        }
+        this.canPermute = canPermute;
+    }
+
+    /**
+     * Order the join conditions of a database so that the estimated cost of the leapfrog triejoin is lowest. Where
+     * several orders have the same cost, the earliest in the given order is kept.
+     * @param database the database, populated with tuples
+     * @param joinConditions the join conditions of the database
+     * @param canResort whether the relations can be joined through copies sorted in another order
+     * @return the join conditions in the cheapest order found, or as given if there is no valid order to choose from
+     */
+    static List<List<int[]>> chooseOrder(Database database, List<List<int[]>> joinConditions, boolean canResort) {
+        if (joinConditions.size() <= 1 || joinConditions.size() > MAX_VARIABLES_TO_ORDER)
+            return joinConditions;
+
+        JoinOrderOptimizer optimizer = new JoinOrderOptimizer(database.getRelations(), joinConditions, canResort);
+        optimizer.tryOrders(0);
+        if (optimizer.cheapestOrder == null)
+            return joinConditions;
+        List<List<int[]>> ordered = new ArrayList<>(joinConditions.size());
+        for (int condition : optimizer.cheapestOrder)
+            ordered.add(joinConditions.get(condition));
+        return ordered;
+    }
+
+    /**
+     * Try every valid way of completing the order from a given depth, remembering the cheapest complete order.
+     * @param depth the number of join conditions placed so far
+     */
+    private void tryOrders(int depth) {
+        if (depth == order.length) {
+            double cost = estimateCost();
+            if (cost < cheapestCost) {
+                cheapestCost = cost;
+                cheapestOrder = order.clone();
+            }
+            return;
+        }
+        for (int condition = 0; condition < order.length; ++condition) {
+            if (isPlaced[condition] || !canPlace(condition))
+                continue;
+            isPlaced[condition] = true;
+            order[depth] = condition;
+            for (int[] position : joinConditions.get(condition))
+                numOfPlacedInRelation[position[0]]++;
+            tryOrders(depth + 1);
+            for (int[] position : joinConditions.get(condition))
+                numOfPlacedInRelation[position[0]]--;
+            isPlaced[condition] = false;
+        }
+    }
+
+    /**
+     * Check if a join condition can come next, which is always when relations can be joined through sorted
+     * permutations, and otherwise when it is on the next attribute to be joined in every relation it appears in.
+     * @param condition the index of the join condition
+     * @return true if the join condition can be placed next
+     */
+    private boolean canPlace(int condition) {
+        if (canPermute)
+            return true;
+        for (int[] position : joinConditions.get(condition)) {
+            if (position[1] != numOfPlacedInRelation[position[0]])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Estimate the cost of the leapfrog triejoin with the join conditions in the current order, as the number of seeks
+     * made and bindings found over all variables.
+     * @return the estimated cost
+     */
+    private double estimateCost() {
+        collectStatistics();
+        double cost = 0;
+        double numOfBindings = 1;
+        for (int condition : order) {
+            List<int[]> positions = joinConditions.get(condition);
+            int[] level = levels[condition];
+
+            /*
+             * Only values between the largest minimum and the smallest maximum can be in every relation.
+             */
+            double lowest = Double.NEGATIVE_INFINITY;
+            double highest = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < positions.size(); ++k) {
+                lowest = Math.max(lowest, statistics[positions.get(k)[0]].getMinimum(level[k]));
+                highest = Math.min(highest, statistics[positions.get(k)[0]].getMaximum(level[k]));
+            }
+            if (lowest > highest) {
+                cost += numOfBindings * positions.size();
+                numOfBindings = 0;
+                break;
+            }
+
+            double numOfSharedValues = 0;
+            double smallestDegree = Double.POSITIVE_INFINITY;
+            double productOfDegrees = 1;
+            double smallestFraction = 1;
+            for (int k = 0; k < positions.size(); ++k) {
+                RelationStatistics relation = statistics[positions.get(k)[0]];
+                double fractionInRange = Math.min(1, (highest - lowest + 1) /
+                        ((double) relation.getMaximum(level[k]) - relation.getMinimum(level[k]) + 1));
+                double degree = relation.averageDegree(level[k]) * fractionInRange;
+                numOfSharedValues = Math.max(numOfSharedValues, relation.getDistinctCount(level[k]) * fractionInRange);
+                smallestDegree = Math.min(smallestDegree, degree);
+                productOfDegrees *= degree;
+                smallestFraction = Math.min(smallestFraction, fractionInRange);
+            }
+            numOfSharedValues = Math.max(1, Math.min(highest - lowest + 1, numOfSharedValues));
+
+            cost += numOfBindings * positions.size() *
+                    Math.max(1, expectedSmallestDegree(positions, level) * smallestFraction);
+            numOfBindings *= Math.min(smallestDegree,
+                    productOfDegrees / Math.pow(numOfSharedValues, positions.size() - 1));
+        }
+        return cost + numOfBindings;
+    }
+
+    /**
+     * Look up the statistics of each relation for the order it meets its join attributes in under the current order,
+     * and the level of the trie of each relation each join condition is on.
+     */
+    private void collectStatistics() {
+        int[] numOfLevels = new int[statistics.length];
+        for (int condition : order) {
+            List<int[]> positions = joinConditions.get(condition);
+            levels[condition] = new int[positions.size()];
+            for (int k = 0; k < positions.size(); ++k) {
+                int[] position = positions.get(k);
+                levels[condition][k] = numOfLevels[position[0]];
+                columnsInOrder[position[0]][numOfLevels[position[0]]++] = position[1];
+            }
+        }
+        for (int i = 0; i < statistics.length; ++i)
+            statistics[i] = relations.get(i).getStatistics(columnsInOrder[i]);
+    }
+
+    /**
+     * Estimate the expected size of the smallest of the sets intersected for a join variable, treating the number of
+     * children of each relation's node as independent draws from its degree histogram.
+     * @param positions the relations and attributes joined on the variable
+     * @param level the level of the trie of each relation the variable is on
+     * @return the expected smallest number of children
+     */
+    private double expectedSmallestDegree(List<int[]> positions, int[] level) {
+        double expected = 0;
+        for (int bucket = 0; bucket < Long.SIZE - 1; ++bucket) {
+            double probability = 1;
+            for (int k = 0; k < positions.size(); ++k)
+                probability *= statistics[positions.get(k)[0]].fractionWithDegreeAtLeast(level[k], bucket);
+            if (probability == 0)
+                break;
+            expected += (bucket == 0 ? 1 : (1L << (bucket - 1))) * probability;
+        }
+        return expected;
+    }
+}
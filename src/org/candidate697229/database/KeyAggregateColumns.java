@@ -0,0 +1,108 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.TupleStorage;
+
+import java.util.Arrays;
+
+/**
+ * Per-key aggregates of a relation held in memory (with the layout described in KeyAggregates), whose SUM columns are
+ * only computed once something asks for them. A query names the columns it uses up front so that they are computed
+ * together in a single pass over the relation, and any other column is computed on its own the first time it is read.
+ * A relation with many attributes has far more SUM(A*B) columns than any one query uses, so most are never computed
+ * at all, and a SUM that would overflow 128 bits only fails the queries that use it.
+ */
+class KeyAggregateColumns implements TupleStorage {
+    private final TupleStorage tuples;
+    private final int numOfKeyAttributes;
+    private final int size;
+    private final Column[] columns;
+
+    /**
+     * Construct the per-key aggregates of a relation, computing only the key and COUNT columns.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     */
+    KeyAggregateColumns(TupleStorage tuples, int numOfKeyAttributes) {
+        this.tuples = tuples;
+        this.numOfKeyAttributes = numOfKeyAttributes;
+        this.size = KeyAggregates.countKeys(tuples, numOfKeyAttributes);
+        this.columns = new Column[KeyAggregates.width(numOfKeyAttributes, tuples.arity())];
+        int[] keyAndCount = new int[numOfKeyAttributes + 1];
+        for (int j = 0; j < keyAndCount.length; ++j)
+            keyAndCount[j] = j;
+        build(keyAndCount);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return columns.length;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        Column values = columns[column];
+        if (values == null) {
+            build(new int[]{column});
+            values = columns[column];
+        }
+        return values.values[row];
+    }
+
+    @Override
+    public long[] column(int column) {
+        if (columns[column] == null)
+            build(new int[]{column});
+        return columns[column].values;
+    }
+
+    @Override
+    public synchronized long estimatedHeapBytes() {
+        long bytes = 0;
+        for (Column column : columns)
+            bytes += column == null ? 0 : (long) size * Long.BYTES;
+        return bytes;
+    }
+
+    /**
+     * Compute any of some columns that have not been computed yet, in a single pass over the relation.
+     * @param wantedColumns the positions of the columns
+     * @throws ArithmeticException if a SUM in one of the columns overflows 128 bits
+     */
+    synchronized void build(int[] wantedColumns) {
+        int numOfMissing = 0;
+        int[] missing = new int[wantedColumns.length];
+        for (int column : wantedColumns) {
+            if (columns[column] == null)
+                missing[numOfMissing++] = column;
+        }
+        if (numOfMissing == 0)
+            return;
+
+        long[][] values = KeyAggregates.build(tuples, numOfKeyAttributes, Arrays.copyOf(missing, numOfMissing));
+        for (int j = 0; j < values.length; ++j) {
+            if (values[j] != null && columns[j] == null)
+                columns[j] = new Column(values[j]);
+        }
+    }
+
+    /**
+     * The values of a computed column. Reading a column through a final field means a thread that finds the column
+     * without taking the lock still sees every value written into it.
+     */
+    private static class Column {
+        private final long[] values;
+
+        /**
+         * Construct a column.
+         * @param values the value of each row
+         */
+        Column(long[] values) {
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Per-key aggregates of a relation (with the layout described in KeyAggregates) that can be changed by adding and
+ * taking away tuples, so that they can be kept up to date without reading the relation again. The table is kept sorted
+ * on the key, so it can still be joined in place of the relation.
+ *
+ * The columns are given room to grow past the last row, and keys that appear are merged in from the end, so only the
+ * rows after the first new key are moved and the columns are only copied when they run out of room (to twice their
+ * length). A key whose COUNT falls to zero keeps its row, with every aggregate zero, which contributes nothing to any
+ * aggregate of a join. Once such rows make up more than a fraction of the table, they are all dropped in a single pass
+ * that moves the rest down.
+ * Changing the table is not thread-safe.
+ */
+public class KeyAggregateTable implements TupleStorage {
+    /**
+     * The fewest rows with a COUNT of zero there have to be for them to be dropped, so that small tables are not
+     * compacted on every change.
+     */
+    private static final int MIN_COMPACTION_ROWS = 1024;
+
+    /**
+     * The rows with a COUNT of zero are dropped once there are more of them than the size of the table divided by this.
+     */
+    private static final int COMPACTION_DIVISOR = 8;
+
+    private final int arityOfRelation;
+    private final int numOfKeyAttributes;
+    private final long[][] columns;
+    private int size;
+    private int emptyRows;
+
+    /**
+     * Construct a table holding a copy of the per-key aggregates of a relation.
+     * @param relation the relation
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     */
+    public KeyAggregateTable(Relation relation, int numOfKeyAttributes) {
+        this.arityOfRelation = relation.getAttributes().size();
+        int[] allColumns = new int[KeyAggregates.width(numOfKeyAttributes, arityOfRelation)];
+        for (int j = 0; j < allColumns.length; ++j)
+            allColumns[j] = j;
+        TupleStorage aggregates = relation.getKeyAggregates(numOfKeyAttributes, allColumns);
+        this.numOfKeyAttributes = numOfKeyAttributes;
+        this.size = aggregates.size();
+        this.columns = new long[aggregates.arity()][size];
+        for (int j = 0; j < columns.length; ++j)
+            aggregates.copyColumn(j, 0, size, columns[j]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return columns.length;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        return columns[column][row];
+    }
+
+    @Override
+    public long[] column(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return columns.length == 0 ? 0 : (long) columns.length * columns[0].length * Long.BYTES;
+    }
+
+    /**
+     * Get the number of leading attributes making up the key.
+     * @return the number of key attributes
+     */
+    public int getNumberOfKeyAttributes() {
+        return numOfKeyAttributes;
+    }
+
+    /**
+     * Get the row of per-key aggregates for a key.
+     * @param key the values of the key attributes
+     * @return a copy of the row with this key, or null if there are no tuples with this key
+     */
+    public long[] getRow(long[] key) {
+        int row = find(key);
+        if (row < 0 || columns[numOfKeyAttributes][row] == 0)
+            return null;
+        long[] values = new long[columns.length];
+        for (int j = 0; j < columns.length; ++j)
+            values[j] = columns[j][row];
+        return values;
+    }
+
+    /**
+     * Work out the rows of per-key aggregates that adding and taking away some tuples would lead to, without changing
+     * the table. Only the keys of the given tuples are affected, so this takes time proportional to the number of
+     * tuples given (and logarithmic in the size of the table).
+     * @param insertedTuples the tuples to add, each holding a value for every attribute of the relation
+     * @param deletedTuples the tuples to take away, each of which must be in the relation
+     * @return the new row for each affected key, sorted on the key (a row with a COUNT of zero means the key is gone)
+     * @throws IllegalArgumentException if a tuple has the wrong number of attributes, or more tuples are taken away
+     *                                  from a key than it has
+     */
+    public SortedMap<long[], long[]> changedRows(List<long[]> insertedTuples, List<long[]> deletedTuples) {
+        SortedMap<long[], long[]> rows = new TreeMap<>(KeyAggregateTable::compareKeys);
+        accumulateAll(rows, insertedTuples, 1);
+        accumulateAll(rows, deletedTuples, -1);
+        for (long[] row : rows.values()) {
+            if (row[numOfKeyAttributes] < 0)
+                throw new IllegalArgumentException("More tuples taken away than there are with key " +
+                        Arrays.toString(Arrays.copyOf(row, numOfKeyAttributes)));
+        }
+        return rows;
+    }
+
+    /**
+     * Add or take away a list of tuples from the rows of their keys.
+     * @param rows the rows being worked out so far, which are started from the table the first time a key is seen
+     * @param tuples the tuples to add or take away
+     * @param sign 1 to add the tuples, or -1 to take them away
+     */
+    private void accumulateAll(SortedMap<long[], long[]> rows, List<long[]> tuples, long sign) {
+        long[] sum = Int128.newArray(1);
+        for (long[] tuple : tuples) {
+            if (tuple.length != arityOfRelation)
+                throw new IllegalArgumentException("Tuple " + Arrays.toString(tuple) + " does not have " +
+                        arityOfRelation + " attributes");
+            long[] key = Arrays.copyOf(tuple, numOfKeyAttributes);
+            long[] row = rows.get(key);
+            if (row == null) {
+                row = getRow(key);
+                if (row == null) {
+                    row = new long[columns.length];
+                    System.arraycopy(key, 0, row, 0, numOfKeyAttributes);
+                }
+                rows.put(key, row);
+            }
+            KeyAggregates.accumulate(row, numOfKeyAttributes, tuple, sign, sum);
+        }
+    }
+
+    /**
+     * Replace the rows of some keys. Rows of keys already in the table are overwritten in place, including those whose
+     * COUNT falls to zero, and the rows of new keys are merged in from the end of the table. The rows with a COUNT of
+     * zero are then dropped if there are too many of them.
+     * @param rows the new row for each key, sorted on the key, as returned by changedRows
+     */
+    public void update(SortedMap<long[], long[]> rows) {
+        List<long[]> newRows = new ArrayList<>();
+        List<Integer> insertionPoints = new ArrayList<>();
+        for (long[] row : rows.values()) {
+            boolean isEmpty = row[numOfKeyAttributes] == 0;
+            int position = find(row);
+            if (position < 0) {
+                if (!isEmpty) {
+                    newRows.add(row);
+                    insertionPoints.add(-position - 1);
+                }
+                continue;
+            }
+            if (isEmpty != (columns[numOfKeyAttributes][position] == 0))
+                emptyRows += isEmpty ? 1 : -1;
+            setRow(position, row);
+        }
+        insertAll(newRows, insertionPoints);
+
+        if (emptyRows > Math.max(MIN_COMPACTION_ROWS, size / COMPACTION_DIVISOR))
+            compact();
+    }
+
+    /**
+     * Insert rows with keys not already in the table, growing the columns (to at least twice their length) if there
+     * is not room for them after the last row. The rows are merged in from the end, so each row already in the table
+     * is moved at most once.
+     * @param rows the rows to insert, sorted on the key
+     * @param insertionPoints the position in the table (before any of the rows are inserted) to insert each row at
+     */
+    private void insertAll(List<long[]> rows, List<Integer> insertionPoints) {
+        if (rows.isEmpty())
+            return;
+        if (size + rows.size() > columns[0].length) {
+            int capacity = Math.max(2 * columns[0].length, size + rows.size());
+            for (int j = 0; j < columns.length; ++j)
+                columns[j] = Arrays.copyOf(columns[j], capacity);
+        }
+
+        int end = size;
+        for (int k = rows.size() - 1; k >= 0; --k) {
+            int position = insertionPoints.get(k);
+            for (int j = 0; j < columns.length; ++j)
+                System.arraycopy(columns[j], position, columns[j], position + k + 1, end - position);
+            setRow(position + k, rows.get(k));
+            end = position;
+        }
+        size += rows.size();
+    }
+
+    /**
+     * Drop every row with a COUNT of zero, moving each run of rows between them down in a single pass.
+     */
+    private void compact() {
+        int kept = 0;
+        int row = 0;
+        while (row < size) {
+            int end = row;
+            while (end < size && columns[numOfKeyAttributes][end] != 0)
+                end++;
+            if (kept != row) {
+                for (int j = 0; j < columns.length; ++j)
+                    System.arraycopy(columns[j], row, columns[j], kept, end - row);
+            }
+            kept += end - row;
+            row = end + 1;
+        }
+        size = kept;
+        emptyRows = 0;
+    }
+
+    /**
+     * Overwrite a row.
+     * @param position the position of the row
+     * @param row the new values of the row
+     */
+    private void setRow(int position, long[] row) {
+        for (int j = 0; j < columns.length; ++j)
+            columns[j][position] = row[j];
+    }
+
+    /**
+     * Find the row with a key by binary search.
+     * @param key an array starting with the values of the key attributes
+     * @return the position of the row if there is one, and otherwise (-(insertion point) - 1)
+     */
+    private int find(long[] key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = 0;
+            for (int j = 0; j < numOfKeyAttributes && comparison == 0; ++j)
+                comparison = Long.compare(columns[j][middle], key[j]);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Compare two keys lexicographically.
+     * @param keyOne the first key
+     * @param keyTwo the second key, of the same length
+     * @return a negative number, zero or a positive number as the first key is less than, equal to or greater than
+     *         the second
+     */
+    private static int compareKeys(long[] keyOne, long[] keyTwo) {
+        for (int j = 0; j < keyOne.length; ++j) {
+            int comparison = Long.compare(keyOne[j], keyTwo[j]);
+            if (comparison != 0)
+                return comparison;
+        }
+        return 0;
+    }
+}
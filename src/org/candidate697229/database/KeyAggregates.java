@@ -0,0 +1,358 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.Int128;
+import org.candidate697229.util.ProductSumBlock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import static org.candidate697229.util.Configuration.USE_PRODUCT_SUM_BLOCKS;
+
+/**
+ * Class that provides static methods for the per-key aggregates of a relation. For a relation sorted on its first few
+ * attributes (the key), this is a table with one row per distinct key, holding the key followed by the partial
+ * aggregates of all tuples with that key:
+ * - the COUNT of the tuples,
+ * - SUM(A) for each attribute A, in order,
+ * - SUM(A*B) for each pair of attributes A and B, with A preceding or equal to B, in order of A then B.
+ * The table is itself sorted on the key, so it can be joined in place of the relation. The COUNT always fits in a
+ * long, but a SUM of large values can overflow one even when the aggregates of the whole join do not, so each SUM is
+ * computed exactly in 128 bits and takes up two columns: its high 64 bits followed by its low 64 bits.
+ */
+public class KeyAggregates {
+    /**
+     * The number of rows of a relation decoded at a time when scanning it (see TupleStorage.copyColumn).
+     */
+    private static final int SCAN_BLOCK_SIZE = 1024;
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private KeyAggregates() {
+    }
+
+    /**
+     * Get the column holding the COUNT in the per-key aggregates.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the position of the column
+     */
+    public static int countColumn(int numOfKeyAttributes) {
+        return numOfKeyAttributes;
+    }
+
+    /**
+     * Get the column holding the high 64 bits of SUM(A) in the per-key aggregates. The low 64 bits are in the column
+     * after it.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param attribute the position of A in the relation
+     * @return the position of the column
+     */
+    public static int sumColumn(int numOfKeyAttributes, int attribute) {
+        return numOfKeyAttributes + 1 + 2 * attribute;
+    }
+
+    /**
+     * Get the column holding the high 64 bits of SUM(A*B) in the per-key aggregates. The low 64 bits are in the column
+     * after it.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param arity the number of attributes of the relation
+     * @param first the position of A in the relation
+     * @param second the position of B in the relation, which is not before A
+     * @return the position of the column
+     */
+    public static int productColumn(int numOfKeyAttributes, int arity, int first, int second) {
+        return numOfKeyAttributes + 1 + 2 * (arity + first * arity - (first * (first - 1)) / 2 + (second - first));
+    }
+
+    /**
+     * Get the number of columns of the per-key aggregates.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param arity the number of attributes of the relation
+     * @return the number of columns
+     */
+    static int width(int numOfKeyAttributes, int arity) {
+        return numOfKeyAttributes + 1 + 2 * (arity + (arity * (arity + 1)) / 2);
+    }
+
+    /**
+     * Get the names of the columns of the per-key aggregates.
+     * @param attributes the attribute names of the relation
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the names of the key attributes followed by a name for each aggregate, and each half of each SUM
+     */
+    static List<String> columnNames(List<String> attributes, int numOfKeyAttributes) {
+        List<String> names = new ArrayList<>(attributes.subList(0, numOfKeyAttributes));
+        names.add("COUNT(*)");
+        List<String> sums = new ArrayList<>();
+        for (String attribute : attributes)
+            sums.add("SUM(" + attribute + ")");
+        for (int a = 0; a < attributes.size(); ++a) {
+            for (int b = a; b < attributes.size(); ++b)
+                sums.add("SUM(" + attributes.get(a) + "*" + attributes.get(b) + ")");
+        }
+        for (String sum : sums) {
+            names.add(sum + ".high");
+            names.add(sum + ".low");
+        }
+        return names;
+    }
+
+    /**
+     * Compute every column of the per-key aggregates of a relation.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the values of each column of the per-key aggregates, as a two-dimensional array of columns then rows
+     * @throws ArithmeticException if a SUM overflows 128 bits
+     */
+    static long[][] build(TupleStorage tuples, int numOfKeyAttributes) {
+        int[] columns = new int[width(numOfKeyAttributes, tuples.arity())];
+        for (int j = 0; j < columns.length; ++j)
+            columns[j] = j;
+        return build(tuples, numOfKeyAttributes, columns);
+    }
+
+    /**
+     * Compute some columns of the per-key aggregates of a relation, in a single pass over the relation. Only the SUMs
+     * the columns hold are computed, with both halves of each.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param columns the positions of the columns to compute
+     * @return the values of each column of the per-key aggregates, as a two-dimensional array of columns then rows,
+     *          with null for each column not computed
+     * @throws ArithmeticException if a SUM overflows 128 bits
+     */
+    static long[][] build(TupleStorage tuples, int numOfKeyAttributes, int[] columns) {
+        long[][] values = new long[width(numOfKeyAttributes, tuples.arity())][];
+        int numOfKeys = countKeys(tuples, numOfKeyAttributes);
+        for (int column : columns) {
+            if (column <= numOfKeyAttributes) {
+                values[column] = new long[numOfKeys];
+                continue;
+            }
+            int high = column - (column - numOfKeyAttributes - 1) % 2;
+            values[high] = new long[numOfKeys];
+            values[high + 1] = new long[numOfKeys];
+        }
+        int[] key = {0};
+        forEachKey(tuples, numOfKeyAttributes, columns, row -> {
+            for (int j = 0; j < values.length; ++j) {
+                if (values[j] != null)
+                    values[j][key[0]] = row[j];
+            }
+            key[0]++;
+        });
+        return values;
+    }
+
+    /**
+     * Count the distinct keys of a relation, which is the number of rows of its per-key aggregates.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the number of distinct keys
+     */
+    static int countKeys(TupleStorage tuples, int numOfKeyAttributes) {
+        int numOfKeys = 0;
+        long[][] scan = new long[numOfKeyAttributes][SCAN_BLOCK_SIZE];
+        long[] key = new long[numOfKeyAttributes];
+        for (int from = 0; from < tuples.size(); from += SCAN_BLOCK_SIZE) {
+            int length = Math.min(SCAN_BLOCK_SIZE, tuples.size() - from);
+            for (int j = 0; j < numOfKeyAttributes; ++j)
+                tuples.copyColumn(j, from, length, scan[j]);
+            for (int i = 0; i < length; ++i) {
+                if (from + i > 0 && hasKey(scan, i, key, numOfKeyAttributes))
+                    continue;
+                ++numOfKeys;
+                for (int j = 0; j < numOfKeyAttributes; ++j)
+                    key[j] = scan[j][i];
+            }
+        }
+        return numOfKeys;
+    }
+
+    /**
+     * Compute every column of the per-key aggregates of a relation a row at a time, in order of key, without holding
+     * more than one row of them in memory.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param rows the consumer to pass each row of the per-key aggregates to, which is given the same array each time
+     *             and so must copy anything it keeps
+     * @throws ArithmeticException if a SUM overflows 128 bits
+     */
+    static void forEachKey(TupleStorage tuples, int numOfKeyAttributes, Consumer<long[]> rows) {
+        int[] columns = new int[width(numOfKeyAttributes, tuples.arity())];
+        for (int j = 0; j < columns.length; ++j)
+            columns[j] = j;
+        forEachKey(tuples, numOfKeyAttributes, columns, rows);
+    }
+
+    /**
+     * Compute some columns of the per-key aggregates of a relation a row at a time, in order of key. The key and COUNT
+     * are always set, along with both halves of every SUM held by one of the columns, and every other column is left
+     * at zero.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param columns the positions of the columns to compute
+     * @param rows the consumer to pass each row of the per-key aggregates to, which is given the same array each time
+     *             and so must copy anything it keeps
+     * @throws ArithmeticException if a SUM overflows 128 bits
+     */
+    private static void forEachKey(TupleStorage tuples, int numOfKeyAttributes, int[] columns,
+                                   Consumer<long[]> rows) {
+        /*
+         * Work out which SUMs the columns hold, and where each goes in the row.
+         */
+        int arity = tuples.arity();
+        TreeSet<Integer> summed = new TreeSet<>();
+        TreeSet<Integer> products = new TreeSet<>();
+        for (int column : columns) {
+            if (column <= numOfKeyAttributes)
+                continue;
+            int sum = (column - numOfKeyAttributes - 1) / 2;
+            if (sum < arity)
+                summed.add(sum);
+            else
+                products.add(sum - arity);
+        }
+        int[] summedAttributes = summed.stream().mapToInt(Integer::intValue).toArray();
+        int[] firstFactors = new int[products.size()];
+        int[] secondFactors = new int[products.size()];
+        int[] positions = new int[1 + summedAttributes.length + firstFactors.length];
+        int s = 1;
+        for (int a : summedAttributes)
+            positions[s++] = sumColumn(numOfKeyAttributes, a);
+        int p = 0;
+        int pair = 0;
+        for (int a = 0; a < arity; ++a) {
+            for (int b = a; b < arity; ++b, ++pair) {
+                if (products.contains(pair)) {
+                    firstFactors[p] = a;
+                    secondFactors[p++] = b;
+                    positions[s++] = productColumn(numOfKeyAttributes, arity, a, b);
+                }
+            }
+        }
+        TreeSet<Integer> used = new TreeSet<>(summed);
+        for (int f = 0; f < firstFactors.length; ++f) {
+            used.add(firstFactors[f]);
+            used.add(secondFactors[f]);
+        }
+        int[] usedAttributes = used.stream().mapToInt(Integer::intValue).toArray();
+
+        /*
+         * Decode the key and the attributes the SUMs use a block of rows at a time.
+         */
+        long[][] scan = new long[arity][];
+        for (int j = 0; j < numOfKeyAttributes; ++j)
+            scan[j] = new long[SCAN_BLOCK_SIZE];
+        for (int j : usedAttributes) {
+            if (scan[j] == null)
+                scan[j] = new long[SCAN_BLOCK_SIZE];
+        }
+
+        ProductSumBlock block = USE_PRODUCT_SUM_BLOCKS ? new ProductSumBlock(arity, usedAttributes) : null;
+        long[] sums = Int128.newArray(positions.length);
+        long[] row = new long[width(numOfKeyAttributes, arity)];
+        for (int from = 0; from < tuples.size(); from += SCAN_BLOCK_SIZE) {
+            int length = Math.min(SCAN_BLOCK_SIZE, tuples.size() - from);
+            for (int j = 0; j < arity; ++j) {
+                if (scan[j] != null)
+                    tuples.copyColumn(j, from, length, scan[j]);
+            }
+            for (int i = 0; i < length; ++i) {
+                if (from + i > 0 && !hasKey(scan, i, row, numOfKeyAttributes)) {
+                    if (block != null)
+                        block.addTo(sums, 0, summedAttributes, firstFactors, secondFactors);
+                    passOn(row, numOfKeyAttributes, sums, positions, rows);
+                }
+                for (int j = 0; j < numOfKeyAttributes; ++j)
+                    row[j] = scan[j][i];
+                if (block != null) {
+                    for (int j : usedAttributes)
+                        block.set(j, scan[j][i]);
+                    if (block.endTuple())
+                        block.addTo(sums, 0, summedAttributes, firstFactors, secondFactors);
+                    continue;
+                }
+
+                int k = 0;
+                Int128.add(sums, k++, 1);
+                for (int a : summedAttributes)
+                    Int128.add(sums, k++, scan[a][i]);
+                for (int f = 0; f < firstFactors.length; ++f)
+                    Int128.addProduct(sums, k++, scan[firstFactors[f]][i], scan[secondFactors[f]][i]);
+            }
+        }
+        if (tuples.size() > 0) {
+            if (block != null)
+                block.addTo(sums, 0, summedAttributes, firstFactors, secondFactors);
+            passOn(row, numOfKeyAttributes, sums, positions, rows);
+        }
+    }
+
+    /**
+     * Pass on a row of per-key aggregates once every tuple with its key has been added up, then start the sums again.
+     * @param row the row, which holds the key
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param sums the COUNT and then each SUM computed, as 128-bit values held as described in Int128
+     * @param positions the column of the row each sum goes in, which for a SUM is its high half
+     * @param rows the consumer to pass the row to
+     */
+    private static void passOn(long[] row, int numOfKeyAttributes, long[] sums, int[] positions,
+                               Consumer<long[]> rows) {
+        row[countColumn(numOfKeyAttributes)] = Int128.longValueExact(sums, 0);
+        for (int s = 1; s < positions.length; ++s) {
+            row[positions[s]] = sums[2 * s];
+            row[positions[s] + 1] = sums[2 * s + 1];
+        }
+        rows.accept(row);
+        Arrays.fill(sums, 0);
+    }
+
+    /**
+     * Add a single tuple to, or take it away from, a row of per-key aggregates.
+     * @param row the row of per-key aggregates, which must have the key of the tuple
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param tuple the tuple to add or take away
+     * @param sign 1 to add the tuple, or -1 to take it away
+     * @param sum space for a single 128-bit value (see Int128) to work out each SUM in, so that nothing is allocated
+     *            for each tuple
+     * @throws ArithmeticException if a SUM overflows 128 bits
+     */
+    static void accumulate(long[] row, int numOfKeyAttributes, long[] tuple, long sign, long[] sum) {
+        row[countColumn(numOfKeyAttributes)] += sign;
+        for (int a = 0; a < tuple.length; a++) {
+            int column = sumColumn(numOfKeyAttributes, a);
+            Int128.set(sum, 0, row[column], row[column + 1]);
+            Int128.addProduct(sum, 0, sign, tuple[a]);
+            row[column] = sum[0];
+            row[column + 1] = sum[1];
+            for (int b = a; b < tuple.length; b++) {
+                column = productColumn(numOfKeyAttributes, tuple.length, a, b);
+                Int128.set(sum, 0, row[column], row[column + 1]);
+                Int128.addProduct(sum, 0, sign, tuple[a], tuple[b]);
+                row[column] = sum[0];
+                row[column + 1] = sum[1];
+            }
+        }
+    }
+
+    /**
+     * Check if a tuple in a block of decoded rows has a given key.
+     * @param scan the values of each attribute on each row of the block
+     * @param row the position of the tuple in the block
+     * @param key the key, in its leading positions
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return true if the key of the tuple matches the given key
+     */
+    private static boolean hasKey(long[][] scan, int row, long[] key, int numOfKeyAttributes) {
+        for (int j = 0; j < numOfKeyAttributes; ++j) {
+            if (scan[j][row] != key[j])
+                return false;
+        }
+        return true;
+    }
+}
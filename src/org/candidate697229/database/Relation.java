@@ -1,18 +1,38 @@
 package org.candidate697229.database;
 
+import org.candidate697229.structures.ColumnarStorage;
+import org.candidate697229.structures.CompressedColumnarStorage;
+import org.candidate697229.structures.RowMajorStorage;
+import org.candidate697229.structures.SortedPermutations;
+import org.candidate697229.structures.TupleSorter;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.PhaseTimer;
+
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import static org.candidate697229.util.Configuration.EXTERNAL_SORT_RUN_BYTES;
+import static org.candidate697229.util.Configuration.PERSIST_KEY_AGGREGATES;
+import static org.candidate697229.util.Configuration.USE_COLUMNAR_STORAGE;
+import static org.candidate697229.util.Configuration.USE_COMPRESSED_COLUMNS;
+import static org.candidate697229.util.Configuration.USE_SNAPSHOTS;
 
 /**
  * Class representing a relation.
  */
 public class Relation {
-    private String name;
-    private List<String> attributes;
-    private long[][] tuples;
+    private final String name;
+    private final List<String> attributes;
+    private TupleStorage tuples;
+    private File source;
+    private boolean isOutOfCore;
+    private final Map<Integer, TupleStorage> keyAggregates = new HashMap<>();
+    private final Map<List<Integer>, RelationStatistics> statistics = new HashMap<>();
 
     /**
      * Construct a new relation.
@@ -22,38 +42,83 @@ public class Relation {
      */
     Relation(String name, List<String> attributes) {
         this.name = name;
-        this.attributes = attributes;
+        this.attributes = Collections.unmodifiableList(attributes);
     }
 
     /**
      * Read in the tuples for this relation from a file which has rows separated by new line characters and attributes
-     * within a row separated by pipe characters.
+     * within a row separated by pipe characters. If snapshots are enabled and an up-to-date snapshot of the file exists,
+     * the tuples are instead mapped from the snapshot, column by column whether or not columnar storage is enabled,
+     * and otherwise a snapshot is written after reading the file. If compressed columns are enabled, the tuples are then
+     * held on the heap in compressed columns, whichever way they were read.
+     *
+     * A file larger than EXTERNAL_SORT_RUN_BYTES is read out of core instead: it is sorted into its snapshot with an
+     * external merge sort and the tuples are mapped from there, so they never have to fit on the heap. Such a snapshot
+     * is written and used even if snapshots are disabled, as it is where the tuples are kept.
      * @param file the file to read in from
      */
     void readFromFile(File file) {
-        LinkedList<long[]> tupleList = new LinkedList<>();
-        try {
-            Files.lines(file.toPath()).forEach(line -> {
-                String[] splitLine = line.split("\\|");
-                assert (splitLine.length == attributes.size());
-                long[] tuple = new long[splitLine.length];
-                for (int i = 0; i < splitLine.length; ++i)
-                    tuple[i] = Long.valueOf(splitLine[i]);
-                tupleList.add(tuple);
-            });
-        } catch (IOException e) {
-            throw new InternalError("Error occurred while reading in a relation", e);
-        }
-        tupleList.sort((tuple1, tuple2) -> {
-            for (int i = 0, j = 0; i < tuple1.length && j < tuple2.length; i++, j++) {
-                if (tuple1[i] != tuple2[j])
-                    return Long.compare(tuple1[i], tuple2[j]);
+        source = file;
+        isOutOfCore = file.length() > EXTERNAL_SORT_RUN_BYTES;
+        if (USE_SNAPSHOTS || isOutOfCore) {
+            tuples = SnapshotFile.open(file, "", attributes, isOutOfCore);
+            if (tuples != null) {
+                if (USE_COMPRESSED_COLUMNS && !isOutOfCore) {
+                    long start = PhaseTimer.start();
+                    tuples = CompressedColumnarStorage.copyOf(tuples);
+                    PhaseTimer.stop(PhaseTimer.Phase.ENCODE, start);
+                }
+                return;
             }
-            return tuple1.length - tuple2.length;
-        });
-        tuples = new long[tupleList.size()][];
-        for (int i = 0; tupleList.size() > 0; ++i)
-            tuples[i] = tupleList.removeFirst();
+        }
+        if (isOutOfCore) {
+            ExternalSorter.sortIntoSnapshot(file, attributes, EXTERNAL_SORT_RUN_BYTES);
+            tuples = SnapshotFile.open(file, "", attributes, isOutOfCore);
+            if (tuples == null)
+                throw new InternalError("The snapshot sorted out of core from " + file + " cannot be read");
+            return;
+        }
+        long start = PhaseTimer.start();
+        long[][] columns = TableParser.parse(file, attributes.size());
+        PhaseTimer.stop(PhaseTimer.Phase.PARSE, start);
+        start = PhaseTimer.start();
+        TupleSorter.sort(columns);
+        PhaseTimer.stop(PhaseTimer.Phase.SORT, start);
+        if (USE_SNAPSHOTS)
+            SnapshotFile.write(file, "", attributes, columns);
+        tuples = makeStorage(columns);
+    }
+
+    /**
+     * Put a set of columns into the storage chosen by the configuration.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows
+     * @return the storage holding the tuples
+     */
+    private static TupleStorage makeStorage(long[][] columns) {
+        if (USE_COMPRESSED_COLUMNS) {
+            long start = PhaseTimer.start();
+            TupleStorage storage = CompressedColumnarStorage.encode(columns, null);
+            PhaseTimer.stop(PhaseTimer.Phase.ENCODE, start);
+            return storage;
+        }
+        return USE_COLUMNAR_STORAGE ? new ColumnarStorage(columns) : makeRowMajorStorage(columns);
+    }
+
+    /**
+     * Copy a set of columns into a flat row-major storage.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows
+     * @return the storage holding the tuples
+     */
+    private static TupleStorage makeRowMajorStorage(long[][] columns) {
+        int arity = columns.length;
+        int size = arity == 0 ? 0 : columns[0].length;
+        long[] values = new long[size * arity];
+        for (int j = 0; j < arity; ++j) {
+            long[] column = columns[j];
+            for (int i = 0, k = j; i < size; ++i, k += arity)
+                values[k] = column[i];
+        }
+        return new RowMajorStorage(values, arity);
     }
 
     /**
@@ -73,10 +138,182 @@ public class Relation {
     }
 
     /**
-     * Get the tuples in the relation, as a two-dimensional tuple of rows then attributes
-     * @return all tuples in the relation
+     * Get the tuples in the relation, sorted lexicographically.
+     * @return the storage holding all tuples in the relation
      */
-    public long[][] getTuples() {
+    public TupleStorage getTuples() {
         return tuples;
     }
+
+    /**
+     * Estimate how much heap memory the relation takes up, including any per-key aggregates and sorted copies built so
+     * far.
+     * @return the estimated number of bytes of heap used
+     */
+    public synchronized long estimatedHeapBytes() {
+        long bytes = tuples == null ? 0 : tuples.estimatedHeapBytes() + SortedPermutations.estimatedHeapBytes(tuples);
+        for (TupleStorage aggregates : keyAggregates.values())
+            bytes += aggregates.estimatedHeapBytes() + SortedPermutations.estimatedHeapBytes(aggregates);
+        return bytes;
+    }
+
+    /**
+     * Get statistics about the leading attributes of the relation, for estimating the cost of joining it. These are
+     * collected the first time they are asked for and then kept with the relation.
+     * @param numOfLeadingAttributes the number of leading attributes to collect statistics for
+     * @return the statistics of the relation
+     */
+    public RelationStatistics getStatistics(int numOfLeadingAttributes) {
+        int[] columns = new int[numOfLeadingAttributes];
+        for (int i = 0; i < columns.length; ++i)
+            columns[i] = i;
+        return getStatistics(columns);
+    }
+
+    /**
+     * Get statistics about some attributes of the relation, as if its tuples were sorted on those attributes in a given
+     * order, for estimating the cost of joining it in that order. These are collected the first time they are asked for
+     * and then kept with the relation.
+     * @param columns the positions of the attributes to collect statistics for, in the order to sort on them
+     * @return the statistics of the relation
+     */
+    public synchronized RelationStatistics getStatistics(int[] columns) {
+        List<Integer> key = new ArrayList<>(columns.length);
+        boolean isLeading = true;
+        for (int i = 0; i < columns.length; ++i) {
+            key.add(columns[i]);
+            isLeading &= columns[i] == i;
+        }
+        RelationStatistics relationStatistics = statistics.get(key);
+        if (relationStatistics != null)
+            return relationStatistics;
+
+        /*
+         * For any order other than the one the tuples are sorted in, only the attributes asked about are copied and
+         * sorted, which is all the statistics need.
+         */
+        TupleStorage sorted = tuples;
+        if (!isLeading) {
+            long[][] projection = new long[columns.length][tuples.size()];
+            for (int j = 0; j < columns.length; ++j) {
+                for (int row = 0; row < tuples.size(); ++row)
+                    projection[j][row] = tuples.get(row, columns[j]);
+            }
+            TupleSorter.sort(projection);
+            sorted = new ColumnarStorage(projection);
+        }
+        relationStatistics = new RelationStatistics(sorted, columns.length);
+        statistics.put(key, relationStatistics);
+        return relationStatistics;
+    }
+
+    /**
+     * Get the per-key aggregates of the relation, which hold the COUNT, each SUM(A) and each SUM(A*B) of the tuples
+     * sharing each distinct value of the first few attributes (see KeyAggregates for the exact layout). These are
+     * computed the first time they are asked for and then kept with the relation. If persistence is enabled, every
+     * column is computed at once and stored in a snapshot next to the .tbl file, which later loads map so that only the
+     * columns a query reads are paged in. For a relation read out of core, they are always streamed into a snapshot a
+     * row at a time and mapped from there. Otherwise, or if a SUM overflows 128 bits so no snapshot can be written,
+     * each column is only computed once it is first read.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the storage holding the per-key aggregates, with one row per key sorted on the key
+     */
+    public TupleStorage getKeyAggregates(int numOfKeyAttributes) {
+        return getKeyAggregates(numOfKeyAttributes, new int[0]);
+    }
+
+    /**
+     * Get the per-key aggregates of the relation, as for getKeyAggregates(int), making sure that some columns of them
+     * are ready to read. Any of those columns that have not been computed yet are computed together in a single pass
+     * over the relation.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @param columns the positions of the columns a query reads
+     * @return the storage holding the per-key aggregates, with one row per key sorted on the key
+     * @throws ArithmeticException if a SUM in one of the columns overflows 128 bits
+     */
+    public synchronized TupleStorage getKeyAggregates(int numOfKeyAttributes, int[] columns) {
+        TupleStorage aggregates = keyAggregates.get(numOfKeyAttributes);
+        if (aggregates == null) {
+            aggregates = makeKeyAggregates(numOfKeyAttributes);
+            keyAggregates.put(numOfKeyAttributes, aggregates);
+        }
+        if (aggregates instanceof KeyAggregateColumns) {
+            long start = PhaseTimer.start();
+            ((KeyAggregateColumns) aggregates).build(columns);
+            PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Make the per-key aggregates of the relation, by mapping a snapshot of them, by computing every column of them
+     * into a new snapshot, or by starting to compute them in memory.
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     * @return the storage holding the per-key aggregates
+     */
+    private TupleStorage makeKeyAggregates(int numOfKeyAttributes) {
+        String variant = "-aggregates-" + numOfKeyAttributes;
+        List<String> columnNames = KeyAggregates.columnNames(attributes, numOfKeyAttributes);
+        TupleStorage aggregates = null;
+        if (PERSIST_KEY_AGGREGATES || isOutOfCore)
+            aggregates = SnapshotFile.open(source, variant, columnNames, isOutOfCore);
+        if (aggregates == null && isOutOfCore) {
+            long start = PhaseTimer.start();
+            writeKeyAggregates(variant, columnNames, numOfKeyAttributes);
+            PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+            aggregates = SnapshotFile.open(source, variant, columnNames, isOutOfCore);
+            if (aggregates == null)
+                throw new InternalError("The per-key aggregates written for " + source + " cannot be read");
+        }
+        if (aggregates == null && PERSIST_KEY_AGGREGATES) {
+            long start = PhaseTimer.start();
+            try {
+                long[][] columns = KeyAggregates.build(tuples, numOfKeyAttributes);
+                SnapshotFile.write(source, variant, columnNames, columns);
+                aggregates = new ColumnarStorage(columns);
+            } catch (ArithmeticException e) {
+                // Some SUM needs more than 128 bits, so compute the columns as queries need them instead.
+            }
+            PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+        }
+        if (aggregates == null) {
+            long start = PhaseTimer.start();
+            aggregates = new KeyAggregateColumns(tuples, numOfKeyAttributes);
+            PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+        }
+        return aggregates;
+    }
+
+    /**
+     * Stream the per-key aggregates of the relation into a snapshot, without holding them in memory.
+     * @param variant the suffix of the snapshot
+     * @param columnNames the names of the columns of the per-key aggregates
+     * @param numOfKeyAttributes the number of leading attributes making up the key
+     */
+    private void writeKeyAggregates(String variant, List<String> columnNames, int numOfKeyAttributes) {
+        SnapshotFile.Writer writer;
+        try {
+            writer = new SnapshotFile.Writer(source, variant, columnNames,
+                    KeyAggregates.countKeys(tuples, numOfKeyAttributes));
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while writing per-key aggregates", e);
+        }
+        boolean isCommitted = false;
+        try {
+            KeyAggregates.forEachKey(tuples, numOfKeyAttributes, row -> {
+                try {
+                    writer.append(row);
+                } catch (IOException e) {
+                    throw new InternalError("Error occurred while writing per-key aggregates", e);
+                }
+            });
+            writer.commit();
+            isCommitted = true;
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while writing per-key aggregates", e);
+        } finally {
+            if (!isCommitted)
+                writer.abandon();
+        }
+    }
 }
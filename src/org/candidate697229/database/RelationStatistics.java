@@ -0,0 +1,240 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.MappedColumnarStorage;
+import org.candidate697229.structures.TupleStorage;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Statistics about the leading attributes of a relation in the order its tuples are sorted in, used to estimate the
+ * cost of joining it. Since the tuples are sorted lexicographically, each leading attribute is a level of a trie, and
+ * for each level the statistics hold:
+ * - the number of distinct values of the attribute, and its minimum and maximum,
+ * - the number of distinct prefixes of the tuples ending at the attribute (the number of nodes at the level),
+ * - a degree histogram, counting the nodes at the level above by how many children they have at this level, in
+ *   buckets of powers of two (bucket b counts nodes with between 2^b and 2^(b+1) - 1 children).
+ */
+public class RelationStatistics {
+    private final int size;
+    private final long[] distinctCounts;
+    private final long[] minimums;
+    private final long[] maximums;
+    private final long[] prefixDistinctCounts;
+    private final long[][] degreeHistograms;
+
+    /**
+     * Collect the statistics of the leading attributes of a relation, in one pass over its tuples and a count of the
+     * distinct values of each leading attribute after the first.
+     * @param tuples the tuples of the relation, sorted lexicographically
+     * @param numOfLevels the number of leading attributes to collect statistics for
+     */
+    RelationStatistics(TupleStorage tuples, int numOfLevels) {
+        size = tuples.size();
+        distinctCounts = new long[numOfLevels];
+        minimums = new long[numOfLevels];
+        maximums = new long[numOfLevels];
+        prefixDistinctCounts = new long[numOfLevels + 1];
+        degreeHistograms = new long[numOfLevels][Long.SIZE];
+        prefixDistinctCounts[0] = size == 0 ? 0 : 1;
+
+        /*
+         * Walk the trie by finding the first attribute each tuple differs from the previous one in: the tuple starts a
+         * new node at that level and every level below it, and closes the nodes below that level.
+         */
+        long[] numOfChildren = new long[numOfLevels];
+        for (int row = 0; row < size; ++row) {
+            int firstDifference = 0;
+            if (row > 0) {
+                while (firstDifference < numOfLevels &&
+                        tuples.get(row, tuples.sortColumn(firstDifference)) ==
+                                tuples.get(row - 1, tuples.sortColumn(firstDifference)))
+                    ++firstDifference;
+            }
+            for (int level = firstDifference; level < numOfLevels; ++level) {
+                if (level > firstDifference) {
+                    addToHistogram(level, numOfChildren[level]);
+                    numOfChildren[level] = 0;
+                }
+                numOfChildren[level]++;
+                prefixDistinctCounts[level + 1]++;
+            }
+        }
+        for (int level = 0; level < numOfLevels && size > 0; ++level)
+            addToHistogram(level, numOfChildren[level]);
+
+        /*
+         * The first attribute is sorted, and the range of every attribute of a mapped storage is held with it. Where the
+         * range is known and small enough, the distinct values are marked in a bit set over it rather than counted in a
+         * sorted copy of the attribute.
+         */
+        for (int level = 0; level < numOfLevels && size > 0; ++level) {
+            int column = tuples.sortColumn(level);
+            if (level == 0) {
+                minimums[level] = tuples.get(0, column);
+                maximums[level] = tuples.get(size - 1, column);
+                distinctCounts[level] = prefixDistinctCounts[1];
+            } else if (tuples instanceof MappedColumnarStorage) {
+                minimums[level] = ((MappedColumnarStorage) tuples).minimum(column);
+                maximums[level] = ((MappedColumnarStorage) tuples).maximum(column);
+                distinctCounts[level] = countDistinct(tuples, column, minimums[level], maximums[level],
+                        prefixDistinctCounts[level + 1]);
+            } else {
+                long[] values = sortedCopy(tuples, column);
+                minimums[level] = values[0];
+                maximums[level] = values[size - 1];
+                distinctCounts[level] = countDistinct(values);
+            }
+        }
+    }
+
+    /**
+     * Count the distinct values of an attribute whose range is known, marking them in a bit set over the range if it
+     * is no more than eight times the number of tuples, so that the bit set takes up no more than a copy would. If the
+     * range is larger and the tuples are held out of core, where a sorted copy would not fit on the heap, the count is
+     * instead bounded by the number of prefixes ending at the attribute and the size of the range.
+     * @param tuples the tuples of the relation
+     * @param column the position of the attribute
+     * @param minimum the smallest value of the attribute
+     * @param maximum the largest value of the attribute
+     * @param numOfPrefixes the number of distinct prefixes of the tuples ending at the attribute
+     * @return the number of distinct values, or an upper bound on it
+     */
+    private static long countDistinct(TupleStorage tuples, int column, long minimum, long maximum,
+                                      long numOfPrefixes) {
+        long range = maximum - minimum;
+        if (range < 0 || range >= Math.min(Integer.MAX_VALUE, 8L * tuples.size())) {
+            if (tuples.isOutOfCore())
+                return range < 0 ? numOfPrefixes : Math.min(numOfPrefixes, range + 1);
+            return countDistinct(sortedCopy(tuples, column));
+        }
+        BitSet seen = new BitSet((int) range + 1);
+        for (int row = 0; row < tuples.size(); ++row)
+            seen.set((int) (tuples.get(row, column) - minimum));
+        return seen.cardinality();
+    }
+
+    /**
+     * Copy the values of an attribute and sort them.
+     * @param tuples the tuples of the relation
+     * @param column the position of the attribute
+     * @return the sorted values
+     */
+    private static long[] sortedCopy(TupleStorage tuples, int column) {
+        long[] values = new long[tuples.size()];
+        for (int row = 0; row < values.length; ++row)
+            values[row] = tuples.get(row, column);
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Count the distinct values in a sorted array.
+     * @param values the sorted values
+     * @return the number of distinct values
+     */
+    private static long countDistinct(long[] values) {
+        long distinctCount = values.length == 0 ? 0 : 1;
+        for (int i = 1; i < values.length; ++i) {
+            if (values[i] != values[i - 1])
+                distinctCount++;
+        }
+        return distinctCount;
+    }
+
+    /**
+     * Record the number of children of a node that has been closed.
+     * @param level the level of the children
+     * @param numOfChildren the number of children the node had
+     */
+    private void addToHistogram(int level, long numOfChildren) {
+        if (numOfChildren > 0)
+            degreeHistograms[level][Long.SIZE - 1 - Long.numberOfLeadingZeros(numOfChildren)]++;
+    }
+
+    /**
+     * Get the number of tuples in the relation.
+     * @return the number of tuples
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of leading attributes statistics were collected for.
+     * @return the number of levels
+     */
+    public int getNumberOfLevels() {
+        return distinctCounts.length;
+    }
+
+    /**
+     * Get the number of distinct values of a leading attribute.
+     * @param level the position of the attribute
+     * @return the number of distinct values
+     */
+    public long getDistinctCount(int level) {
+        return distinctCounts[level];
+    }
+
+    /**
+     * Get the smallest value of a leading attribute.
+     * @param level the position of the attribute
+     * @return the smallest value, or 0 if the relation is empty
+     */
+    public long getMinimum(int level) {
+        return minimums[level];
+    }
+
+    /**
+     * Get the largest value of a leading attribute.
+     * @param level the position of the attribute
+     * @return the largest value, or 0 if the relation is empty
+     */
+    public long getMaximum(int level) {
+        return maximums[level];
+    }
+
+    /**
+     * Get the number of distinct prefixes of the tuples of some length.
+     * @param length the length of the prefixes, from 0 up to the number of levels
+     * @return the number of distinct prefixes
+     */
+    public long getPrefixDistinctCount(int length) {
+        return prefixDistinctCounts[length];
+    }
+
+    /**
+     * Get the degree histogram of a level.
+     * @param level the position of the attribute
+     * @return the number of nodes at the level above with between 2^b and 2^(b+1) - 1 children, for each bucket b
+     */
+    public long[] getDegreeHistogram(int level) {
+        return degreeHistograms[level].clone();
+    }
+
+    /**
+     * Get the average number of children of a node at the level above a level.
+     * @param level the position of the attribute
+     * @return the average number of distinct values of the attribute for each distinct prefix before it
+     */
+    double averageDegree(int level) {
+        return prefixDistinctCounts[level] == 0 ? 0 : (double) prefixDistinctCounts[level + 1] / prefixDistinctCounts[level];
+    }
+
+    /**
+     * Estimate the fraction of nodes at the level above a level that have at least 2^b children, from the degree
+     * histogram.
+     * @param level the position of the attribute
+     * @param bucket the bucket b
+     * @return the fraction of nodes with at least 2^b children
+     */
+    double fractionWithDegreeAtLeast(int level, int bucket) {
+        if (prefixDistinctCounts[level] == 0)
+            return 0;
+        long count = 0;
+        for (int b = bucket; b < Long.SIZE; ++b)
+            count += degreeHistograms[level][b];
+        return (double) count / prefixDistinctCounts[level];
+    }
+}
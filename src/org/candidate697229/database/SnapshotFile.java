@@ -0,0 +1,313 @@
+package org.candidate697229.database;
+
+import org.candidate697229.structures.MappedColumnarStorage;
+import org.candidate697229.structures.TupleStorage;
+import org.candidate697229.util.PhaseTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary snapshot of a sorted relation, or of a table derived from one, stored next to the .tbl file it was built from
+ * so that later loads can map it into memory instead of parsing and sorting the text again. The .tbl file remains the
+ * source of truth: a snapshot records the length and modification time the .tbl file had when it was built, and one
+ * for which either differs from the .tbl file now, or whose schema does not match, is ignored and rebuilt.
+ *
+ * The file consists of a header followed by the columns. All numbers are little-endian.
+ * - The header holds a magic number, the format version, the number of attributes, the number of rows, and the length
+ * and modification time of the .tbl file, then the name of each attribute (as a length followed by UTF-8 bytes), then
+ * the smallest and largest value of each attribute (Long.MAX_VALUE and Long.MIN_VALUE if there are no rows).
+ * - The header is padded to a multiple of eight bytes, and each column follows in turn as one long per row.
+ */
+class SnapshotFile {
+    private static final long MAGIC = 0x50414e5349534244L; // "DBSISNAP" read as little-endian
+    /**
+     * The format version, which must be changed whenever the layout of a snapshot or what its columns hold changes
+     * (including the layout of the per-key aggregates in KeyAggregates), so that snapshots written before the change
+     * are rebuilt rather than mapped with the wrong layout.
+     */
+    private static final int VERSION = 2;
+    private static final int FIXED_HEADER_BYTES = 36;
+    private static final String EXTENSION = ".snapshot";
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private SnapshotFile() {
+    }
+
+    /**
+     * Get a snapshot file belonging to a .tbl file.
+     * @param tableFile the .tbl file
+     * @param variant a suffix distinguishing different snapshots built from the same .tbl file (empty for the snapshot
+     *                of the relation itself)
+     * @return the snapshot file, in the same directory
+     */
+    static File snapshotFor(File tableFile, String variant) {
+        String name = tableFile.getName();
+        int extension = name.lastIndexOf('.');
+        return new File(tableFile.getParentFile(),
+                (extension < 0 ? name : name.substring(0, extension)) + variant + EXTENSION);
+    }
+
+    /**
+     * Open a snapshot built from a .tbl file, if an up-to-date one exists.
+     * @param tableFile the .tbl file the snapshot was built from
+     * @param variant the suffix of the snapshot (see snapshotFor)
+     * @param attributes the attribute names the snapshot is expected to have
+     * @param isOutOfCore true if the columns are too large to be copied onto the heap (see TupleStorage.isOutOfCore)
+     * @return a storage mapping the columns of the snapshot, or null if there is no usable snapshot
+     */
+    static TupleStorage open(File tableFile, String variant, List<String> attributes, boolean isOutOfCore) {
+        long start = PhaseTimer.start();
+        TupleStorage storage = map(tableFile, variant, attributes, isOutOfCore);
+        PhaseTimer.stop(PhaseTimer.Phase.SNAPSHOT, start);
+        return storage;
+    }
+
+    /**
+     * Map the columns of a snapshot built from a .tbl file into memory, if an up-to-date one exists.
+     * @param tableFile the .tbl file the snapshot was built from
+     * @param variant the suffix of the snapshot (see snapshotFor)
+     * @param attributes the attribute names the snapshot is expected to have
+     * @param isOutOfCore true if the columns are too large to be copied onto the heap (see TupleStorage.isOutOfCore)
+     * @return a storage mapping the columns of the snapshot, or null if there is no usable snapshot
+     */
+    private static TupleStorage map(File tableFile, String variant, List<String> attributes, boolean isOutOfCore) {
+        File snapshot = snapshotFor(tableFile, variant);
+        if (!snapshot.isFile())
+            return null;
+
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(fixedHeader, 0);
+            fixedHeader.flip();
+            if (fixedHeader.remaining() < FIXED_HEADER_BYTES || fixedHeader.getLong() != MAGIC
+                    || fixedHeader.getInt() != VERSION || fixedHeader.getInt() != attributes.size())
+                return null;
+            int size = fixedHeader.getInt();
+            if (fixedHeader.getLong() != tableFile.length() || fixedHeader.getLong() != tableFile.lastModified())
+                return null;
+
+            int headerSize = headerSize(attributes);
+            if (channel.size() < headerSize)
+                return null;
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.position(FIXED_HEADER_BYTES);
+            for (String attribute : attributes) {
+                byte[] name = new byte[header.getInt()];
+                header.get(name);
+                if (!attribute.equals(new String(name, StandardCharsets.UTF_8)))
+                    return null;
+            }
+            long[] minimums = new long[attributes.size()];
+            long[] maximums = new long[attributes.size()];
+            for (int j = 0; j < minimums.length; ++j) {
+                minimums[j] = header.getLong();
+                maximums[j] = header.getLong();
+            }
+            if (channel.size() != headerSize + (long) attributes.size() * size * Long.BYTES)
+                return null;
+
+            /*
+             * A single mapping cannot be larger than 2GB, so each column is mapped in pages.
+             */
+            int pageRows = MappedColumnarStorage.PAGE_ROWS;
+            int numOfPages = (int) (((long) size + pageRows - 1) / pageRows);
+            LongBuffer[][] pages = new LongBuffer[attributes.size()][numOfPages];
+            for (int j = 0; j < pages.length; ++j) {
+                for (int page = 0; page < numOfPages; ++page) {
+                    long firstRow = (long) page * pageRows;
+                    long rows = Math.min(pageRows, size - firstRow);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                            headerSize + ((long) j * size + firstRow) * Long.BYTES, rows * Long.BYTES);
+                    pages[j][page] = buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+                }
+            }
+            return new MappedColumnarStorage(pages, size, minimums, maximums, isOutOfCore);
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while reading in a snapshot", e);
+        }
+    }
+
+    /**
+     * Write a snapshot built from a .tbl file. The snapshot is written to a temporary file which is then moved into place,
+     * so a concurrent reader never sees a partial snapshot. Failing to write is not an error, since the snapshot is only
+     * a cache of the .tbl file.
+     * @param tableFile the .tbl file the columns were built from
+     * @param variant the suffix of the snapshot (see snapshotFor)
+     * @param attributes the attribute names of the columns
+     * @param columns the sorted values of each attribute, as a two-dimensional array of attributes then rows
+     */
+    static void write(File tableFile, String variant, List<String> attributes, long[][] columns) {
+        int size = columns.length == 0 ? 0 : columns[0].length;
+        Writer writer = null;
+        boolean isCommitted = false;
+        try {
+            writer = new Writer(tableFile, variant, attributes, size);
+            long[] row = new long[columns.length];
+            for (int i = 0; i < size; ++i) {
+                for (int j = 0; j < columns.length; ++j)
+                    row[j] = columns[j][i];
+                writer.append(row);
+            }
+            writer.commit();
+            isCommitted = true;
+        } catch (IOException e) {
+            // The snapshot is abandoned below
+        } finally {
+            if (writer != null && !isCommitted)
+                writer.abandon();
+        }
+    }
+
+    /**
+     * Calculate the size of the header of a snapshot, including the padding after it.
+     * @param attributes the attribute names of the relation
+     * @return the size of the header in bytes, which is a multiple of eight
+     */
+    private static int headerSize(List<String> attributes) {
+        int size = FIXED_HEADER_BYTES;
+        for (String attribute : attributes)
+            size += 4 + attribute.getBytes(StandardCharsets.UTF_8).length;
+        size += attributes.size() * 2 * Long.BYTES;
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Writer of a snapshot whose rows are appended one at a time in sorted order, for tables too large to hold in
+     * memory. Each column goes to its own region of the file through a buffer of its own, and the header is written
+     * last, once the smallest and largest value of each column are known. The length and modification time of the .tbl
+     * file are recorded as they are when the writer is started. As with write, the snapshot is written to a temporary
+     * file (with a name of its own, so that processes loading the same database never share one) which is only moved
+     * into place once it is complete.
+     */
+    static class Writer {
+        private static final int BUFFER_BYTES = 1 << 16;
+
+        private final File snapshot;
+        private final File temporary;
+        private final List<String> attributes;
+        private final int size;
+        private final int headerSize;
+        private final long tableLength;
+        private final long tableModified;
+        private final FileChannel channel;
+        private final ByteBuffer[] buffers;
+        private final long[] positions;
+        private final long[] minimums;
+        private final long[] maximums;
+        private int numOfRows;
+
+        /**
+         * Start writing a snapshot built from a .tbl file.
+         * @param tableFile the .tbl file the rows were built from
+         * @param variant the suffix of the snapshot (see snapshotFor)
+         * @param attributes the attribute names of the columns
+         * @param size the number of rows that will be appended
+         * @throws IOException if the temporary file cannot be created
+         */
+        Writer(File tableFile, String variant, List<String> attributes, int size) throws IOException {
+            this.snapshot = snapshotFor(tableFile, variant);
+            this.temporary = File.createTempFile(snapshot.getName() + ".", ".tmp", snapshot.getParentFile());
+            this.attributes = attributes;
+            this.size = size;
+            this.headerSize = headerSize(attributes);
+            this.tableLength = tableFile.length();
+            this.tableModified = tableFile.lastModified();
+            channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            buffers = new ByteBuffer[attributes.size()];
+            positions = new long[attributes.size()];
+            minimums = new long[attributes.size()];
+            maximums = new long[attributes.size()];
+            Arrays.fill(minimums, Long.MAX_VALUE);
+            Arrays.fill(maximums, Long.MIN_VALUE);
+            for (int j = 0; j < buffers.length; ++j) {
+                buffers[j] = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                positions[j] = headerSize + (long) j * size * Long.BYTES;
+            }
+        }
+
+        /**
+         * Append the next row of the snapshot.
+         * @param row the value of each attribute in the row
+         * @throws IOException if writing fails
+         */
+        void append(long[] row) throws IOException {
+            if (numOfRows == size)
+                throw new IllegalStateException("More rows appended to snapshot " + snapshot + " than it has");
+            for (int j = 0; j < buffers.length; ++j) {
+                if (!buffers[j].hasRemaining())
+                    flushColumn(j);
+                buffers[j].putLong(row[j]);
+                minimums[j] = Math.min(minimums[j], row[j]);
+                maximums[j] = Math.max(maximums[j], row[j]);
+            }
+            numOfRows++;
+        }
+
+        /**
+         * Finish the snapshot, once every row has been appended, by writing the header and moving it into place.
+         * @throws IOException if writing or moving the snapshot fails
+         */
+        void commit() throws IOException {
+            if (numOfRows != size)
+                throw new IllegalStateException("Only " + numOfRows + " of the " + size + " rows of snapshot " +
+                        snapshot + " were appended");
+            for (int j = 0; j < buffers.length; ++j)
+                flushColumn(j);
+            ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(attributes.size()).putInt(size);
+            header.putLong(tableLength).putLong(tableModified);
+            for (String attribute : attributes) {
+                byte[] name = attribute.getBytes(StandardCharsets.UTF_8);
+                header.putInt(name.length).put(name);
+            }
+            for (int j = 0; j < minimums.length; ++j)
+                header.putLong(minimums[j]).putLong(maximums[j]);
+            header.position(0);
+            for (long position = 0; header.hasRemaining(); )
+                position += channel.write(header, position);
+            channel.close();
+            Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Give up on the snapshot, deleting what has been written of it.
+         */
+        void abandon() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The temporary file is deleted whether or not it closed cleanly
+            }
+            temporary.delete();
+        }
+
+        /**
+         * Write out the buffered values of a column at the end of what has been written of it so far.
+         * @param column the position of the column
+         * @throws IOException if writing fails
+         */
+        private void flushColumn(int column) throws IOException {
+            ByteBuffer buffer = buffers[column];
+            buffer.flip();
+            while (buffer.hasRemaining())
+                positions[column] += channel.write(buffer, positions[column]);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.candidate697229.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.stream.IntStream;
+
+/**
+ * Parser for .tbl files, which have rows separated by new line characters and attributes within a row separated by
+ * pipe characters. The file is read in as bytes and the digits are parsed straight into one primitive array per
+ * attribute, without creating any intermediate strings or boxed values. Large files are split into chunks at line
+ * boundaries and the chunks are parsed in parallel.
+ */
+class TableParser {
+    /**
+     * The smallest number of bytes worth giving to a chunk of its own.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private final File file;
+    private final byte[] bytes;
+    private final int length;
+    private final int arity;
+    private final long firstRowInFile;
+
+    /**
+     * Private constructor, parsers are only used through the static parse methods.
+     * @param file the file being parsed (used for error messages)
+     * @param bytes the contents of the file, or of some whole lines of it
+     * @param length the number of bytes to parse, from the start of the array
+     * @param arity the number of attributes on each row
+     * @param firstRowInFile the number of rows in the file before the bytes being parsed (used for error messages)
+     */
+    private TableParser(File file, byte[] bytes, int length, int arity, long firstRowInFile) {
+        this.file = file;
+        this.bytes = bytes;
+        this.length = length;
+        this.arity = arity;
+        this.firstRowInFile = firstRowInFile;
+    }
+
+    /**
+     * Parse a .tbl file.
+     * @param file the file to read in from
+     * @param arity the number of attributes expected on each row
+     * @return the values in the file, as a two-dimensional array of attributes then rows (in file order)
+     */
+    static long[][] parse(File file, int arity) {
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            return new TableParser(file, bytes, bytes.length, arity, 0).parse();
+        } catch (IOException e) {
+            throw new InternalError("Error occurred while reading in a relation", e);
+        }
+    }
+
+    /**
+     * Parse some whole lines of a .tbl file that have already been read in.
+     * @param file the file the lines were read from (used for error messages)
+     * @param bytes the lines, from the start of the array
+     * @param length the number of bytes the lines take up
+     * @param arity the number of attributes expected on each row
+     * @param firstRowInFile the number of rows in the file before these lines (used for error messages)
+     * @return the values in the lines, as a two-dimensional array of attributes then rows (in file order)
+     */
+    static long[][] parse(File file, byte[] bytes, int length, int arity, long firstRowInFile) {
+        return new TableParser(file, bytes, length, arity, firstRowInFile).parse();
+    }
+
+    /**
+     * Parse the whole file, first counting the rows in each chunk so that every chunk knows where in the columns its
+     * rows belong, and then parsing each chunk into place.
+     * @return the values in the file, as a two-dimensional array of attributes then rows
+     */
+    private long[][] parse() {
+        int[] chunkStarts = findChunkStarts();
+        int numOfChunks = chunkStarts.length - 1;
+
+        int[] rowOffsets = new int[numOfChunks + 1];
+        int[] rowCounts = IntStream.range(0, numOfChunks).parallel()
+                .map(chunk -> countRows(chunkStarts[chunk], chunkStarts[chunk + 1]))
+                .toArray();
+        for (int chunk = 0; chunk < numOfChunks; ++chunk)
+            rowOffsets[chunk + 1] = rowOffsets[chunk] + rowCounts[chunk];
+
+        long[][] columns = new long[arity][rowOffsets[numOfChunks]];
+        IntStream.range(0, numOfChunks).parallel()
+                .forEach(chunk -> parseRows(chunkStarts[chunk], chunkStarts[chunk + 1], columns, rowOffsets[chunk]));
+        return columns;
+    }
+
+    /**
+     * Split the file into chunks of roughly equal size, moving each boundary forward to the start of a line.
+     * @return the byte offsets at which each chunk starts, followed by the length of the file
+     */
+    private int[] findChunkStarts() {
+        int numOfChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4,
+                length / MIN_CHUNK_SIZE));
+        int[] chunkStarts = new int[numOfChunks + 1];
+        for (int chunk = 1; chunk < numOfChunks; ++chunk) {
+            int start = Math.max(chunkStarts[chunk - 1], (int) ((long) length * chunk / numOfChunks));
+            while (start < length && start > 0 && bytes[start - 1] != '\n')
+                ++start;
+            chunkStarts[chunk] = start;
+        }
+        chunkStarts[numOfChunks] = length;
+        return chunkStarts;
+    }
+
+    /**
+     * Count the rows starting in a range of bytes, ignoring empty lines.
+     * @param from the offset of the first byte in the range, which must be the start of a line
+     * @param to the offset after the last byte in the range
+     * @return the number of non-empty lines in the range
+     */
+    private int countRows(int from, int to) {
+        int rows = 0;
+        boolean atLineStart = true;
+        for (int i = from; i < to; ++i) {
+            byte b = bytes[i];
+            if (b == '\n')
+                atLineStart = true;
+            else if (atLineStart && b != '\r') {
+                ++rows;
+                atLineStart = false;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Parse the rows in a range of bytes into the columns.
+     * @param from the offset of the first byte in the range, which must be the start of a line
+     * @param to the offset after the last byte in the range
+     * @param columns the columns to write into
+     * @param firstRow the row in the columns to write the first row in the range into
+     */
+    private void parseRows(int from, int to, long[][] columns, int firstRow) {
+        int row = firstRow;
+        int i = from;
+        while (i < to) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                ++i;
+                continue;
+            }
+            for (int attribute = 0; attribute < arity; ++attribute) {
+                if (attribute > 0) {
+                    if (i >= to || bytes[i] != '|')
+                        throw malformedRow(row, "expected " + arity + " attributes");
+                    ++i;
+                }
+                boolean negative = i < to && bytes[i] == '-';
+                if (negative || (i < to && bytes[i] == '+'))
+                    ++i;
+                // The value is accumulated negated, as Long.MIN_VALUE has no positive counterpart
+                long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+                int digitsStart = i;
+                long value = 0;
+                while (i < to && bytes[i] >= '0' && bytes[i] <= '9') {
+                    int digit = bytes[i++] - '0';
+                    if (value < limit / 10 || value * 10 < limit + digit)
+                        throw malformedRow(row, "number out of range at attribute " + attribute);
+                    value = value * 10 - digit;
+                }
+                if (i == digitsStart)
+                    throw malformedRow(row, "expected a number at attribute " + attribute);
+                columns[attribute][row] = negative ? value : -value;
+            }
+            if (i < to && bytes[i] == '\r')
+                ++i;
+            if (i < to && bytes[i] != '\n')
+                throw malformedRow(row, "expected " + arity + " attributes");
+            ++row;
+        }
+    }
+
+    /**
+     * Build the error to throw when a row cannot be parsed.
+     * @param row the position of the row within the file
+     * @param reason a description of what went wrong
+     * @return the error to throw
+     */
+    private InternalError malformedRow(int row, String reason) {
+        return new InternalError("Malformed row " + (firstRowInFile + row + 1) + " in " + file + ": " + reason);
+    }
+}
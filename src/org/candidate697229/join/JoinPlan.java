@@ -0,0 +1,145 @@
+package org.candidate697229.join;
+
+import org.candidate697229.structures.Iterator;
+import org.candidate697229.structures.SequentialIterator;
+import org.candidate697229.structures.SortedPermutations;
+import org.candidate697229.structures.TrieIndex;
+import org.candidate697229.structures.TrieIterator;
+import org.candidate697229.structures.TupleStorage;
+
+import java.util.List;
+
+import static org.candidate697229.util.Configuration.USE_SORTED_PERMUTATIONS;
+import static org.candidate697229.util.Configuration.USE_TRIE_INDEX;
+
+/**
+ * Immutable plan for joining a set of relations: the tuples of each relation and the conditions to join them on. A plan
+ * holds no position of its own, so any number of threads can each open their own join from the same plan and run it
+ * (and reset and run it again) without copying the relations.
+ */
+public class JoinPlan {
+    private final TupleStorage[] relations;
+    private final List<List<int[]>> joinConditions;
+    private final boolean[] isPartitioned;
+    private final TrieIndex[] indexes;
+
+    /**
+     * Construct a plan.
+     * @param relations      the tuples of each relation, sorted lexicographically (if sorted permutations are enabled,
+     *                       each is replaced by a copy sorted on its join attributes in the order of the join
+     *                       conditions, and otherwise they must already be sorted in that order, as must any held out
+     *                       of core)
+     * @param joinConditions the conditions for the join, these should be a list of list of pairs, with each pair
+     *                       representing a relation and attribute within that relation that we wish to be equal to all
+     *                       others in the same list
+     */
+    public JoinPlan(TupleStorage[] relations, List<List<int[]>> joinConditions) {
+        this.relations = relations.clone();
+        this.joinConditions = joinConditions;
+        if (USE_SORTED_PERMUTATIONS) {
+            for (int i = 0; i < relations.length; ++i)
+                this.relations[i] = SortedPermutations.of(relations[i], sortOrder(i));
+        }
+        this.isPartitioned = new boolean[relations.length];
+        for (int[] position : joinConditions.get(0))
+            isPartitioned[position[0]] = true;
+
+        /*
+         * Each relation is opened once for every join condition it takes part in, so that is how many levels of its
+         * trie need indexing. A relation held out of core is not indexed, as the index would have to fit on the heap,
+         * and is walked in place instead.
+         */
+        this.indexes = new TrieIndex[relations.length];
+        if (USE_TRIE_INDEX) {
+            int[] levels = new int[relations.length];
+            for (List<int[]> joinCondition : joinConditions) {
+                for (int[] position : joinCondition)
+                    levels[position[0]]++;
+            }
+            for (int i = 0; i < relations.length; ++i) {
+                if (!this.relations[i].isOutOfCore())
+                    indexes[i] = TrieIndex.of(this.relations[i], levels[i]);
+            }
+        }
+    }
+
+    /**
+     * Find the order a relation needs to be sorted in for the join, which is its attributes in the order of the join
+     * conditions they appear in, followed by the rest of its attributes in order.
+     * @param relation the index of the relation
+     * @return the column at each position of the order
+     */
+    private int[] sortOrder(int relation) {
+        int arity = relations[relation].arity();
+        int[] sortOrder = new int[arity];
+        boolean[] isJoined = new boolean[arity];
+        int position = 0;
+        for (List<int[]> joinCondition : joinConditions) {
+            for (int[] attribute : joinCondition) {
+                if (attribute[0] == relation && !isJoined[attribute[1]]) {
+                    isJoined[attribute[1]] = true;
+                    sortOrder[position++] = attribute[1];
+                }
+            }
+        }
+        for (int column = 0; column < arity; ++column) {
+            if (!isJoined[column])
+                sortOrder[position++] = column;
+        }
+        return sortOrder;
+    }
+
+    /**
+     * Open a new join over the whole of every relation.
+     * @return a join positioned at its first result
+     */
+    public LeapfrogTriejoin open() {
+        int[] from = new int[relations.length];
+        int[] to = new int[relations.length];
+        for (int i = 0; i < relations.length; ++i)
+            to[i] = relations[i].size();
+        return open(from, to);
+    }
+
+    /**
+     * Open a new join over ranges of the relations.
+     * @param from the position of the first tuple to use in each relation
+     * @param to the position after the last tuple to use in each relation
+     * @return a join positioned at its first result
+     */
+    public LeapfrogTriejoin open(int[] from, int[] to) {
+        Iterator[] iterators = new Iterator[relations.length];
+        for (int i = 0; i < relations.length; ++i) {
+            iterators[i] = indexes[i] != null ? new TrieIterator(relations[i], indexes[i], from[i], to[i])
+                    : new SequentialIterator(relations[i], from[i], to[i]);
+        }
+        return new LeapfrogTriejoin(iterators, joinConditions);
+    }
+
+    /**
+     * Get the number of relations being joined.
+     * @return the number of relations
+     */
+    public int getNumberOfRelations() {
+        return relations.length;
+    }
+
+    /**
+     * Get the tuples of a relation being joined.
+     * @param relation the index of the relation
+     * @return the tuples of the relation
+     */
+    public TupleStorage getRelation(int relation) {
+        return relations[relation];
+    }
+
+    /**
+     * Check if a relation contains the first join variable, which is then the first attribute it is sorted on, so that the join can be
+     * split into independent ranges of that attribute.
+     * @param relation the index of the relation
+     * @return true if the relation takes part in the first join condition
+     */
+    public boolean isPartitioned(int relation) {
+        return isPartitioned[relation];
+    }
+}
@@ -0,0 +1,212 @@
+package org.candidate697229.join;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable join tree of an acyclic natural join: a tree with a node for each relation, in which the relations holding
+ * any one attribute form a connected subtree (the running intersection property). Each relation other than the root is
+ * joined to its parent on the attributes they share, which are then all the attributes its subtree shares with the
+ * rest of the tree, so the aggregates of a subtree can be computed on their own for each value of that key and passed
+ * up to the parent.
+ */
+public class JoinTree {
+    private final int root;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[][] keyColumns;
+    private final int[][] parentKeyColumns;
+
+    /**
+     * Construct a join tree from the parent of each relation.
+     * @param attributes the attribute names of each relation
+     * @param parents the parent of each relation, which is -1 for the root only
+     * @throws IllegalArgumentException if the parents do not form a tree, or some attribute is held by relations that
+     *                                  are not connected in it
+     */
+    public JoinTree(List<List<String>> attributes, int[] parents) {
+        if (parents.length != attributes.size())
+            throw new IllegalArgumentException("A join tree needs a parent for each of the " + attributes.size() +
+                    " relations.");
+        this.parents = parents.clone();
+        root = findRoot(this.parents);
+
+        List<List<Integer>> childLists = new ArrayList<>();
+        for (int i = 0; i < parents.length; ++i)
+            childLists.add(new ArrayList<>());
+        for (int i = 0; i < parents.length; ++i) {
+            if (i != root)
+                childLists.get(parents[i]).add(i);
+        }
+        children = new int[parents.length][];
+        for (int i = 0; i < parents.length; ++i)
+            children[i] = childLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+
+        keyColumns = new int[parents.length][];
+        parentKeyColumns = new int[parents.length][];
+        for (int i = 0; i < parents.length; ++i) {
+            List<Integer> columns = new ArrayList<>();
+            List<Integer> parentColumns = new ArrayList<>();
+            for (int j = 0; i != root && j < attributes.get(i).size(); ++j) {
+                int k = attributes.get(parents[i]).indexOf(attributes.get(i).get(j));
+                if (k >= 0) {
+                    columns.add(j);
+                    parentColumns.add(k);
+                }
+            }
+            keyColumns[i] = columns.stream().mapToInt(Integer::intValue).toArray();
+            parentKeyColumns[i] = parentColumns.stream().mapToInt(Integer::intValue).toArray();
+        }
+        checkRunningIntersection(attributes);
+    }
+
+    /**
+     * Choose a join tree for the natural join of some relations, as a spanning tree of the relations with the largest
+     * total number of attributes shared along its edges (which is a join tree whenever the join is acyclic), rooted at
+     * the first relation.
+     * @param attributes the attribute names of each relation
+     * @return the join tree
+     * @throws IllegalArgumentException if the join is cyclic, so has no join tree
+     */
+    public static JoinTree choose(List<List<String>> attributes) {
+        int numOfRelations = attributes.size();
+        int[] parents = new int[numOfRelations];
+        int[] shared = new int[numOfRelations];
+        boolean[] isInTree = new boolean[numOfRelations];
+        Arrays.fill(parents, -1);
+        Arrays.fill(shared, -1);
+
+        /*
+         * Grow the tree from the root with Prim's algorithm, each time adding the relation sharing the most attributes
+         * with some relation already in the tree.
+         */
+        int next = 0;
+        for (int step = 0; step < numOfRelations; ++step) {
+            isInTree[next] = true;
+            for (int i = 0; i < numOfRelations; ++i) {
+                if (isInTree[i])
+                    continue;
+                int count = (int) attributes.get(i).stream().filter(attributes.get(next)::contains).count();
+                if (count > shared[i]) {
+                    shared[i] = count;
+                    parents[i] = next;
+                }
+            }
+            next = -1;
+            for (int i = 0; i < numOfRelations; ++i) {
+                if (!isInTree[i] && (next < 0 || shared[i] > shared[next]))
+                    next = i;
+            }
+        }
+        return new JoinTree(attributes, parents);
+    }
+
+    /**
+     * Get the number of relations in the tree.
+     * @return the number of relations
+     */
+    public int size() {
+        return parents.length;
+    }
+
+    /**
+     * Get the root of the tree.
+     * @return the relation at the root
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * Get the parent of a relation.
+     * @param relation the relation
+     * @return the parent of the relation, or -1 for the root
+     */
+    public int getParent(int relation) {
+        return parents[relation];
+    }
+
+    /**
+     * Get the children of a relation.
+     * @param relation the relation
+     * @return the children of the relation, in increasing order (the array must not be modified)
+     */
+    public int[] getChildren(int relation) {
+        return children[relation];
+    }
+
+    /**
+     * Get the key a relation is joined to its parent on.
+     * @param relation the relation
+     * @return the position in the relation of each attribute it shares with its parent, in increasing order (the array
+     *          must not be modified), which is empty for the root
+     */
+    public int[] getKeyColumns(int relation) {
+        return keyColumns[relation];
+    }
+
+    /**
+     * Get the key a relation is joined to its parent on, as positions in the parent.
+     * @param relation the relation
+     * @return the position in the parent of each attribute in getKeyColumns, in the same order (the array must not be
+     *          modified)
+     */
+    public int[] getParentKeyColumns(int relation) {
+        return parentKeyColumns[relation];
+    }
+
+    /**
+     * Find the root of a tree given by the parent of each node, checking that every node leads up to it.
+     * @param parents the parent of each node
+     * @return the root
+     * @throws IllegalArgumentException if the parents do not form a single tree
+     */
+    private static int findRoot(int[] parents) {
+        int root = -1;
+        for (int i = 0; i < parents.length; ++i) {
+            if (parents[i] < 0) {
+                if (root >= 0)
+                    throw new IllegalArgumentException("A join tree must have a single root.");
+                root = i;
+            } else if (parents[i] >= parents.length)
+                throw new IllegalArgumentException("The parent of relation " + i + " is not a relation.");
+        }
+        if (root < 0)
+            throw new IllegalArgumentException("A join tree must have a single root.");
+        for (int i = 0; i < parents.length; ++i) {
+            int node = i;
+            for (int depth = 0; node != root; ++depth) {
+                if (depth == parents.length)
+                    throw new IllegalArgumentException("The parent of each relation must lead to the root.");
+                node = parents[node];
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Check that the relations holding each attribute are connected in the tree, which is the case when there is one
+     * fewer edge between two of them than there are relations.
+     * @param attributes the attribute names of each relation
+     * @throws IllegalArgumentException if some attribute is held by relations that are not connected
+     */
+    private void checkRunningIntersection(List<List<String>> attributes) {
+        for (int i = 0; i < parents.length; ++i) {
+            for (String attribute : attributes.get(i)) {
+                int relations = 0;
+                int edges = 0;
+                for (int j = 0; j < parents.length; ++j) {
+                    if (attributes.get(j).contains(attribute)) {
+                        ++relations;
+                        if (j != root && attributes.get(parents[j]).contains(attribute))
+                            ++edges;
+                    }
+                }
+                if (edges != relations - 1)
+                    throw new IllegalArgumentException("The relations holding " + attribute +
+                            " are not connected, so the join is cyclic or this is not a join tree of it.");
+            }
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.candidate697229.join;
 
+import org.candidate697229.monitoring.JoinEvent;
+import org.candidate697229.monitoring.JoinStatistics;
 import org.candidate697229.structures.Iterator;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
+
 /**
  * Implementation of a Leapfrog Triejoin. Based on:
  *      Leapfrog Triejoin: A Simple, Worst-Case Optimal Join Algorithm by Todd L. Veldhuizen
@@ -15,9 +19,13 @@ import java.util.stream.Collectors;
  * Provides methods for iterating over the overall join result.
  */
 public class LeapfrogTriejoin {
+    private final Iterator[] iterators;
     private final UnaryLeapfrogTriejoin[] unaryLeapfrogTriejoins;
     private boolean overallAtEnd = false;
     private int depth = -1;
+    private long results;
+    private long enumeratedTuples;
+    private JoinEvent event;
 
     /**
      * Construct a new instance of the join algorithm.
@@ -28,14 +36,40 @@ public class LeapfrogTriejoin {
      *                       others in the same list
      */
     public LeapfrogTriejoin(Iterator[] iterators, List<List<int[]>> joinConditions) {
+        this.iterators = iterators;
         unaryLeapfrogTriejoins = joinConditions.stream().map(joinInstruction -> {
                 List<Iterator> usedIterators = new ArrayList<>(joinInstruction.size());
                 usedIterators.addAll(joinInstruction.stream().map(position -> iterators[position[0]]).collect(Collectors.toList()));
                 return new UnaryLeapfrogTriejoin(usedIterators);
             }).collect(Collectors.toList()).toArray(new UnaryLeapfrogTriejoin[0]);
+        if (COLLECT_JOIN_STATISTICS)
+            event = JoinStatistics.begin();
         findNext(false);
     }
 
+    /**
+     * Rewind the join and all of its iterators back to the first result, so that the join can be run again.
+     */
+    public void reset() {
+        for (Iterator iterator : iterators)
+            iterator.reset();
+        for (UnaryLeapfrogTriejoin unaryLeapfrogTriejoin : unaryLeapfrogTriejoins)
+            unaryLeapfrogTriejoin.reset();
+        overallAtEnd = false;
+        depth = -1;
+        if (COLLECT_JOIN_STATISTICS)
+            event = JoinStatistics.begin();
+        findNext(false);
+    }
+
+    /**
+     * Get the iterators this join moves along, which give access to the tuples of the current result.
+     * @return the iterator for each relation, in the order they were given
+     */
+    public Iterator[] getIterators() {
+        return iterators;
+    }
+
     /**
      * Check if we have reached the end of the results of the join.
      * @return true if there are no more results to the join
@@ -53,6 +87,15 @@ public class LeapfrogTriejoin {
         findNext(true);
     }
 
+    /**
+     * Count tuples enumerated from the current result of the join, for the join statistics. This is only counted if
+     * COLLECT_JOIN_STATISTICS is set.
+     * @param count the number of tuples enumerated
+     */
+    public void countEnumeratedTuples(long count) {
+        enumeratedTuples += count;
+    }
+
     /**
      * Find the next value in the overall join by performing a backtracking search in the binding tree.
      * @param shouldAdvance true to advance from the current value, false to simply find the first value
@@ -67,6 +110,8 @@ public class LeapfrogTriejoin {
             }
             if (depth == 0 && atEnd()) {
                 overallAtEnd = true;
+                if (COLLECT_JOIN_STATISTICS)
+                    recordStatistics();
                 return;
             }
             if (shouldAdvance) {
@@ -79,6 +124,27 @@ public class LeapfrogTriejoin {
                     break;
             }
         } while (atEnd());
+        if (COLLECT_JOIN_STATISTICS)
+            results++;
+    }
+
+    /**
+     * Hand the counts of what this join has done since it started over to the join statistics, once it has run out of
+     * results.
+     */
+    private void recordStatistics() {
+        long[] seeks = new long[unaryLeapfrogTriejoins.length];
+        long[] nexts = new long[unaryLeapfrogTriejoins.length];
+        long[] opens = new long[unaryLeapfrogTriejoins.length];
+        for (int variable = 0; variable < unaryLeapfrogTriejoins.length; ++variable)
+            unaryLeapfrogTriejoins[variable].takeCounts(variable, seeks, nexts, opens);
+        long skippedTuples = 0;
+        for (Iterator iterator : iterators)
+            skippedTuples += iterator.takeSkippedTuples();
+        JoinStatistics.record(event, seeks, nexts, opens, results, enumeratedTuples, skippedTuples);
+        results = 0;
+        enumeratedTuples = 0;
+        event = null;
     }
 
     /**
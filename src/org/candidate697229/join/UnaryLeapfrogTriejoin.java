@@ -4,6 +4,8 @@ import org.candidate697229.structures.Iterator;
 
 import java.util.List;
 
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
+
 /**
  * Implementation of a unary Leapfrog Triejoin. Based on:
  * Leapfrog Triejoin: A Simple, Worst-Case Optimal Join Algorithm by Todd L. Veldhuizen
@@ -14,6 +16,9 @@ class UnaryLeapfrogTriejoin {
     private final Iterator[] iterators;
     private boolean atEnd;
     private int p = 0;
+    private long seeks;
+    private long nexts;
+    private long opens;
 
     /**
      * Construct a unary Leapfrog Triejoin.
@@ -24,8 +29,9 @@ class UnaryLeapfrogTriejoin {
     }
 
     /**
-     * Perform initialization. This will set atEnd to true if any iterator is at the end and otherwise
-     * perform a leapfrog search to attempt to find the first join result.
+     * Perform initialization. This will set atEnd to true if any iterator is at the end and otherwise sort the
+     * iterators by their keys and perform a leapfrog search to attempt to find the first join result. The search
+     * relies on the sort, as it takes the iterator before the current one to hold the largest key.
      */
     private void init() {
         atEnd = false;
@@ -33,8 +39,18 @@ class UnaryLeapfrogTriejoin {
             if (iterator.atEnd())
                 atEnd = true;
         }
-        if (!atEnd)
-            leapfrogSearch();
+        if (atEnd)
+            return;
+        for (int i = 1; i < iterators.length; ++i) {
+            Iterator iterator = iterators[i];
+            long key = iterator.key();
+            int j = i;
+            for (; j > 0 && iterators[j - 1].key() > key; --j)
+                iterators[j] = iterators[j - 1];
+            iterators[j] = iterator;
+        }
+        p = 0;
+        leapfrogSearch();
     }
 
     /**
@@ -49,6 +65,8 @@ class UnaryLeapfrogTriejoin {
                 return;
             } else {
                 iterators[p].seek(x1);
+                if (COLLECT_JOIN_STATISTICS)
+                    seeks++;
                 if (iterators[p].atEnd()) {
                     atEnd = true;
                     return;
@@ -65,6 +83,8 @@ class UnaryLeapfrogTriejoin {
      */
     void next() {
         iterators[p].next();
+        if (COLLECT_JOIN_STATISTICS)
+            nexts++;
         if (iterators[p].atEnd())
             atEnd = true;
         else {
@@ -86,6 +106,8 @@ class UnaryLeapfrogTriejoin {
      */
     void open() {
         for (Iterator iterator : iterators) iterator.open();
+        if (COLLECT_JOIN_STATISTICS)
+            opens += iterators.length;
         init();
     }
 
@@ -95,4 +117,29 @@ class UnaryLeapfrogTriejoin {
     void up() {
         for (Iterator iterator : iterators) iterator.up();
     }
+
+    /**
+     * Go back to the state this join was in when it was constructed. The iterators it uses are not reset.
+     */
+    void reset() {
+        atEnd = false;
+        p = 0;
+    }
+
+    /**
+     * Add the seeks, moves to the next key and opens this join has made on its iterators since this was last called
+     * to some counters, which are only counted if COLLECT_JOIN_STATISTICS is set.
+     * @param variable the position of this join's variable, at which to add to the counters
+     * @param allSeeks the number of seeks for each join variable
+     * @param allNexts the number of moves to the next key for each join variable
+     * @param allOpens the number of iterators opened for each join variable
+     */
+    void takeCounts(int variable, long[] allSeeks, long[] allNexts, long[] allOpens) {
+        allSeeks[variable] += seeks;
+        allNexts[variable] += nexts;
+        allOpens[variable] += opens;
+        seeks = 0;
+        nexts = 0;
+        opens = 0;
+    }
 }
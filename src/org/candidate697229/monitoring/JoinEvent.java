@@ -0,0 +1,42 @@
+package org.candidate697229.monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a single leapfrog triejoin, from when it starts to when it runs out of results, recording
+ * what the join did over that time. Events are only made when COLLECT_JOIN_STATISTICS is set, and only recorded while
+ * a recording with the event enabled is running.
+ */
+@Name("org.candidate697229.LeapfrogTriejoin")
+@Label("Leapfrog Triejoin")
+@Category("Joins")
+@Description("A leapfrog triejoin run to the end of its results")
+public class JoinEvent extends Event {
+    @Label("Join Variables")
+    int variables;
+
+    @Label("Join Results")
+    @Description("The number of blocks of tuples sharing the same join keys")
+    long results;
+
+    @Label("Enumerated Tuples")
+    @Description("The number of combinations of tuples enumerated from the blocks, by AggOne")
+    long enumeratedTuples;
+
+    @Label("Seeks")
+    long seeks;
+
+    @Label("Nexts")
+    long nexts;
+
+    @Label("Opens")
+    long opens;
+
+    @Label("Skipped Tuples")
+    @Description("The number of tuples iterators skipped over by seeking")
+    long skippedTuples;
+}
@@ -0,0 +1,185 @@
+package org.candidate697229.monitoring;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
+
+/**
+ * Class that provides static methods for collecting counters of what the leapfrog triejoins do, so that queries can be
+ * profiled without a sampling profiler. Each join counts its own work in plain fields while it runs and hands the
+ * totals over here once it runs out of results, so the hot paths never touch shared state. The totals are exposed
+ * over JMX through JoinStatisticsMXBean, and each join is also recorded as a JoinEvent for the flight recorder.
+ *
+ * All of this is only done when COLLECT_JOIN_STATISTICS is set. As that is a compile-time constant, the counting code
+ * is compiled out entirely when it is not.
+ */
+public class JoinStatistics {
+    /**
+     * The number of join variables counted separately, with any later variables counted with the last of them.
+     */
+    private static final int MAX_TRACKED_VARIABLES = 16;
+
+    private static final boolean IS_FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+    private static final LongAdder joins = new LongAdder();
+    private static final LongAdder results = new LongAdder();
+    private static final LongAdder enumeratedTuples = new LongAdder();
+    private static final LongAdder skippedTuples = new LongAdder();
+    private static final AtomicLongArray seeks = new AtomicLongArray(MAX_TRACKED_VARIABLES);
+    private static final AtomicLongArray nexts = new AtomicLongArray(MAX_TRACKED_VARIABLES);
+    private static final AtomicLongArray opens = new AtomicLongArray(MAX_TRACKED_VARIABLES);
+
+    static {
+        if (COLLECT_JOIN_STATISTICS) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(),
+                        new ObjectName("org.candidate697229:type=JoinStatistics"));
+            } catch (InstanceAlreadyExistsException e) {
+                // Another copy of this class, loaded by another class loader, has already registered the counters.
+            } catch (JMException e) {
+                throw new InternalError("Error occurred while registering the join statistics MBean", e);
+            }
+        }
+    }
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private JoinStatistics() {
+    }
+
+    /**
+     * Start timing a join for the flight recorder.
+     * @return the event recording the join, to pass to record once it ends, or null if there is no flight recorder
+     */
+    public static JoinEvent begin() {
+        if (!IS_FLIGHT_RECORDER_AVAILABLE)
+            return null;
+        JoinEvent event = new JoinEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Add the counters of a join that has run out of results to the totals, and commit its flight recorder event.
+     * @param event the event returned by begin when the join started, or null if there is none
+     * @param joinSeeks the number of seeks made for each join variable
+     * @param joinNexts the number of moves to the next key made for each join variable
+     * @param joinOpens the number of iterators opened for each join variable
+     * @param joinResults the number of results of the join
+     * @param joinEnumeratedTuples the number of tuples enumerated from the blocks of the results
+     * @param joinSkippedTuples the number of tuples the iterators of the join skipped over by seeking
+     */
+    public static void record(JoinEvent event, long[] joinSeeks, long[] joinNexts, long[] joinOpens, long joinResults,
+                              long joinEnumeratedTuples, long joinSkippedTuples) {
+        long totalSeeks = 0;
+        long totalNexts = 0;
+        long totalOpens = 0;
+        for (int variable = 0; variable < joinSeeks.length; ++variable) {
+            int tracked = Math.min(variable, MAX_TRACKED_VARIABLES - 1);
+            seeks.addAndGet(tracked, joinSeeks[variable]);
+            nexts.addAndGet(tracked, joinNexts[variable]);
+            opens.addAndGet(tracked, joinOpens[variable]);
+            totalSeeks += joinSeeks[variable];
+            totalNexts += joinNexts[variable];
+            totalOpens += joinOpens[variable];
+        }
+        joins.increment();
+        results.add(joinResults);
+        enumeratedTuples.add(joinEnumeratedTuples);
+        skippedTuples.add(joinSkippedTuples);
+
+        if (event != null && event.shouldCommit()) {
+            event.variables = joinSeeks.length;
+            event.results = joinResults;
+            event.enumeratedTuples = joinEnumeratedTuples;
+            event.seeks = totalSeeks;
+            event.nexts = totalNexts;
+            event.opens = totalOpens;
+            event.skippedTuples = joinSkippedTuples;
+            event.commit();
+        }
+    }
+
+    /**
+     * Check if the flight recorder API is available, which it is not on runtimes linked without the jdk.jfr module.
+     * @return true if flight recorder events can be made
+     */
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a set of counters kept for each join variable.
+     * @param counters the counters
+     * @return the value of each counter
+     */
+    private static long[] read(AtomicLongArray counters) {
+        long[] values = new long[counters.length()];
+        for (int variable = 0; variable < values.length; ++variable)
+            values[variable] = counters.get(variable);
+        return values;
+    }
+
+    /**
+     * Implementation of the management interface, reading the totals.
+     */
+    private static class Bean implements JoinStatisticsMXBean {
+        @Override
+        public long getJoins() {
+            return joins.sum();
+        }
+
+        @Override
+        public long getJoinResults() {
+            return results.sum();
+        }
+
+        @Override
+        public long getEnumeratedTuples() {
+            return enumeratedTuples.sum();
+        }
+
+        @Override
+        public long getSkippedTuples() {
+            return skippedTuples.sum();
+        }
+
+        @Override
+        public long[] getSeeks() {
+            return read(seeks);
+        }
+
+        @Override
+        public long[] getNexts() {
+            return read(nexts);
+        }
+
+        @Override
+        public long[] getOpens() {
+            return read(opens);
+        }
+
+        @Override
+        public void reset() {
+            joins.reset();
+            results.reset();
+            enumeratedTuples.reset();
+            skippedTuples.reset();
+            for (int variable = 0; variable < MAX_TRACKED_VARIABLES; ++variable) {
+                seeks.set(variable, 0);
+                nexts.set(variable, 0);
+                opens.set(variable, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.candidate697229.monitoring;
+
+/**
+ * Management interface exposing the counters collected by JoinStatistics over JMX, registered under the name
+ * org.candidate697229:type=JoinStatistics. Every counter covers all the joins that have finished since the program
+ * started or the counters were last reset, and stays at zero unless COLLECT_JOIN_STATISTICS is set.
+ */
+public interface JoinStatisticsMXBean {
+    /**
+     * Get the number of leapfrog triejoins that have run to the end.
+     * @return the number of joins
+     */
+    long getJoins();
+
+    /**
+     * Get the number of results of the joins, each of which is a block of tuples from every relation sharing the same
+     * join keys. This is the number of blocks AggTwo collapses into partial aggregates.
+     * @return the number of join results
+     */
+    long getJoinResults();
+
+    /**
+     * Get the number of tuples enumerated from the blocks of the join results by algorithms that go through every
+     * combination of the tuples in each block, as AggOne does.
+     * @return the number of tuples enumerated
+     */
+    long getEnumeratedTuples();
+
+    /**
+     * Get the number of tuples iterators skipped over by seeking.
+     * @return the number of tuples skipped
+     */
+    long getSkippedTuples();
+
+    /**
+     * Get the number of seeks each unary leapfrog triejoin made on its iterators, by the position of its join variable
+     * in the order the variables are joined in (with any variables past the last tracked one counted in the last).
+     * @return the number of seeks for each join variable
+     */
+    long[] getSeeks();
+
+    /**
+     * Get the number of times each unary leapfrog triejoin moved an iterator on to its next key, by the position of its
+     * join variable.
+     * @return the number of moves to the next key for each join variable
+     */
+    long[] getNexts();
+
+    /**
+     * Get the number of times each unary leapfrog triejoin opened an iterator, by the position of its join variable.
+     * @return the number of iterators opened for each join variable
+     */
+    long[] getOpens();
+
+    /**
+     * Set every counter back to zero.
+     */
+    void reset();
+}
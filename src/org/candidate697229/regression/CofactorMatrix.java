@@ -0,0 +1,172 @@
+package org.candidate697229.regression;
+
+import org.candidate697229.algorithms.AggAlgorithm;
+import org.candidate697229.algorithms.AggregateQuery;
+import org.candidate697229.algorithms.AggregateResult;
+import org.candidate697229.database.Database;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable cofactor matrix of some attributes over the natural join of a database: the COUNT of the join, SUM(A) for
+ * each attribute A and SUM(A*B) for each pair of attributes A and B. These are all that least-squares regression needs
+ * from the data, so a model over the join can be trained from them without the join ever being materialized.
+ *
+ * The sums are held exactly, and the means and covariances are computed from them exactly before being rounded to
+ * doubles, so that they do not lose precision to cancellation however large the sums are.
+ */
+public final class CofactorMatrix {
+    private final List<String> attributes;
+    private final BigInteger count;
+    private final BigInteger[] sums;
+    private final BigInteger[][] products;
+
+    /**
+     * Construct a cofactor matrix.
+     * @param attributes the names of the attributes
+     * @param count the COUNT of the join
+     * @param sums the SUM of each attribute
+     * @param products the SUM of the product of each pair of attributes, which is symmetric
+     */
+    private CofactorMatrix(List<String> attributes, BigInteger count, BigInteger[] sums, BigInteger[][] products) {
+        this.attributes = Collections.unmodifiableList(new ArrayList<>(attributes));
+        this.count = count;
+        this.sums = sums;
+        this.products = products;
+    }
+
+    /**
+     * Compute the cofactor matrix of every attribute of a database, in the order they first appear in its relations.
+     * @param algorithm the algorithm to compute the aggregates with
+     * @param database the database the algorithm runs on
+     * @return the cofactor matrix
+     * @throws UnsupportedOperationException if the algorithm cannot run arbitrary aggregate queries
+     */
+    public static CofactorMatrix compute(AggAlgorithm algorithm, Database database) {
+        return compute(algorithm, database.getRelations().stream()
+                .flatMap(relation -> relation.getAttributes().stream())
+                .distinct()
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Compute the cofactor matrix of some attributes, with a single aggregate query over the join.
+     * @param algorithm the algorithm to compute the aggregates with
+     * @param attributes the names of the attributes, which must be distinct
+     * @return the cofactor matrix
+     * @throws IllegalArgumentException if an attribute is not in the database or appears twice
+     * @throws UnsupportedOperationException if the algorithm cannot run arbitrary aggregate queries
+     */
+    public static CofactorMatrix compute(AggAlgorithm algorithm, List<String> attributes) {
+        if (attributes.stream().distinct().count() != attributes.size())
+            throw new IllegalArgumentException("The attributes of a cofactor matrix must be distinct.");
+        int size = attributes.size();
+        List<AggregateQuery.Term> terms = new ArrayList<>();
+        terms.add(AggregateQuery.Term.count());
+        for (String attribute : attributes)
+            terms.add(AggregateQuery.Term.sum(attribute));
+        for (int i = 0; i < size; ++i) {
+            for (int j = i; j < size; ++j)
+                terms.add(AggregateQuery.Term.sumOfProduct(attributes.get(i), attributes.get(j)));
+        }
+        AggregateResult result = algorithm.computeAggregatesOfNaturalJoin(AggregateQuery.of(terms));
+
+        BigInteger[] sums = new BigInteger[size];
+        BigInteger[][] products = new BigInteger[size][size];
+        int index = 1;
+        for (int i = 0; i < size; ++i)
+            sums[i] = result.bigIntegerValue(index++);
+        for (int i = 0; i < size; ++i) {
+            for (int j = i; j < size; ++j) {
+                products[i][j] = result.bigIntegerValue(index++);
+                products[j][i] = products[i][j];
+            }
+        }
+        return new CofactorMatrix(attributes, result.bigIntegerValue(0), sums, products);
+    }
+
+    /**
+     * Get the attributes of the matrix.
+     * @return the names of the attributes, in the order they are indexed by
+     */
+    public List<String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Get the index of an attribute.
+     * @param attribute the name of the attribute
+     * @return the index of the attribute
+     * @throws IllegalArgumentException if the attribute is not in the matrix
+     */
+    public int indexOf(String attribute) {
+        int index = attributes.indexOf(attribute);
+        if (index < 0)
+            throw new IllegalArgumentException("The cofactor matrix has no attribute " + attribute + ".");
+        return index;
+    }
+
+    /**
+     * Get the COUNT of the join.
+     * @return the number of tuples in the join
+     */
+    public BigInteger getCount() {
+        return count;
+    }
+
+    /**
+     * Get the SUM of an attribute over the join.
+     * @param i the index of the attribute
+     * @return the sum
+     */
+    public BigInteger getSum(int i) {
+        return sums[i];
+    }
+
+    /**
+     * Get the SUM of the product of two attributes over the join.
+     * @param i the index of the first attribute
+     * @param j the index of the second attribute
+     * @return the sum
+     */
+    public BigInteger getSumOfProduct(int i, int j) {
+        return products[i][j];
+    }
+
+    /**
+     * Get the mean of an attribute over the join.
+     * @param i the index of the attribute
+     * @return the mean, or 0 if the join is empty
+     */
+    public double mean(int i) {
+        return count.signum() == 0 ? 0 : ratio(sums[i], count);
+    }
+
+    /**
+     * Get the population covariance of two attributes over the join, computed exactly as
+     * (COUNT * SUM(A*B) - SUM(A) * SUM(B)) / COUNT^2 before rounding.
+     * @param i the index of the first attribute
+     * @param j the index of the second attribute
+     * @return the covariance, or 0 if the join is empty
+     */
+    public double covariance(int i, int j) {
+        if (count.signum() == 0)
+            return 0;
+        return ratio(count.multiply(products[i][j]).subtract(sums[i].multiply(sums[j])), count.multiply(count));
+    }
+
+    /**
+     * Divide two integers, rounding the quotient to a double even if either does not fit in one.
+     * @param numerator the numerator
+     * @param denominator the denominator, which is positive
+     * @return the quotient
+     */
+    private static double ratio(BigInteger numerator, BigInteger denominator) {
+        int shift = Math.max(0, Math.max(numerator.bitLength(), denominator.bitLength()) - 1000);
+        return numerator.shiftRight(shift).doubleValue() / denominator.shiftRight(shift).doubleValue();
+    }
+}
@@ -0,0 +1,282 @@
+package org.candidate697229.regression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable linear regression model, predicting a label attribute as an intercept plus a weighted sum of some feature
+ * attributes, trained by least squares over the natural join from its cofactor matrix alone.
+ *
+ * Training works on the features standardized to a mean of 0 and a variance of 1 (which the cofactor matrix gives
+ * directly), so the system solved is the correlation matrix of the features, which is well conditioned for features
+ * of very different scales. Features that are constant over the join have a weight of 0. An optional ridge penalty
+ * on the standardized weights makes the system solvable even when some features are linear combinations of others.
+ */
+public final class LinearRegression {
+    private final String label;
+    private final List<String> features;
+    private final double intercept;
+    private final double[] weights;
+
+    /**
+     * Construct a model.
+     * @param label the name of the label attribute
+     * @param features the names of the feature attributes
+     * @param intercept the intercept
+     * @param weights the weight of each feature
+     */
+    private LinearRegression(String label, List<String> features, double intercept, double[] weights) {
+        this.label = label;
+        this.features = Collections.unmodifiableList(new ArrayList<>(features));
+        this.intercept = intercept;
+        this.weights = weights;
+    }
+
+    /**
+     * Train a model by solving the normal equations in closed form, with Gaussian elimination.
+     * @param cofactors the cofactor matrix of the features and the label over the join
+     * @param label the name of the label attribute
+     * @param features the names of the feature attributes
+     * @param ridge the ridge penalty on the squared standardized weights, or 0 for ordinary least squares
+     * @return the trained model
+     * @throws IllegalArgumentException if an attribute is not in the cofactor matrix
+     * @throws ArithmeticException if the features are linearly dependent and the ridge penalty is 0
+     */
+    public static LinearRegression fitClosedForm(CofactorMatrix cofactors, String label, List<String> features,
+                                                 double ridge) {
+        StandardizedSystem system = new StandardizedSystem(cofactors, label, features, ridge);
+        int n = system.correlations.length;
+        double[][] matrix = new double[n][n + 1];
+        for (int i = 0; i < n; ++i) {
+            System.arraycopy(system.correlations[i], 0, matrix[i], 0, n);
+            matrix[i][n] = system.labelCovariances[i];
+        }
+
+        /*
+         * Eliminate with partial pivoting. The diagonal of the correlation matrix is 1 plus the ridge penalty, so a
+         * pivot close to 0 means the remaining features are (nearly) combinations of those already eliminated.
+         */
+        for (int column = 0; column < n; ++column) {
+            int pivot = column;
+            for (int row = column + 1; row < n; ++row) {
+                if (Math.abs(matrix[row][column]) > Math.abs(matrix[pivot][column]))
+                    pivot = row;
+            }
+            if (Math.abs(matrix[pivot][column]) < 1e-12)
+                throw new ArithmeticException("The features are linearly dependent, so a ridge penalty is needed.");
+            double[] swap = matrix[pivot];
+            matrix[pivot] = matrix[column];
+            matrix[column] = swap;
+            for (int row = column + 1; row < n; ++row) {
+                double factor = matrix[row][column] / matrix[column][column];
+                for (int k = column; k <= n; ++k)
+                    matrix[row][k] -= factor * matrix[column][k];
+            }
+        }
+        double[] standardizedWeights = new double[n];
+        for (int row = n - 1; row >= 0; --row) {
+            double value = matrix[row][n];
+            for (int k = row + 1; k < n; ++k)
+                value -= matrix[row][k] * standardizedWeights[k];
+            standardizedWeights[row] = value / matrix[row][row];
+        }
+        return system.toModel(standardizedWeights);
+    }
+
+    /**
+     * Train a model by batch gradient descent on the mean squared error (plus the ridge penalty), where each step
+     * takes the gradient over the whole join from the cofactor matrix rather than from the tuples. The step size is
+     * the inverse of a bound on the largest eigenvalue of the system, which always converges.
+     * @param cofactors the cofactor matrix of the features and the label over the join
+     * @param label the name of the label attribute
+     * @param features the names of the feature attributes
+     * @param ridge the ridge penalty on the squared standardized weights, or 0 for ordinary least squares
+     * @param maxIterations the largest number of steps to take
+     * @param tolerance the size of the largest component of the gradient at which to stop early
+     * @return the trained model
+     * @throws IllegalArgumentException if an attribute is not in the cofactor matrix
+     */
+    public static LinearRegression fitGradientDescent(CofactorMatrix cofactors, String label, List<String> features,
+                                                      double ridge, int maxIterations, double tolerance) {
+        StandardizedSystem system = new StandardizedSystem(cofactors, label, features, ridge);
+        int n = system.correlations.length;
+        double bound = 0;
+        for (double[] row : system.correlations) {
+            double rowSum = 0;
+            for (double value : row)
+                rowSum += Math.abs(value);
+            bound = Math.max(bound, rowSum);
+        }
+        double stepSize = bound == 0 ? 0 : 1 / bound;
+
+        double[] standardizedWeights = new double[n];
+        double[] gradient = new double[n];
+        for (int iteration = 0; iteration < maxIterations; ++iteration) {
+            double largest = 0;
+            for (int i = 0; i < n; ++i) {
+                gradient[i] = -system.labelCovariances[i];
+                for (int j = 0; j < n; ++j)
+                    gradient[i] += system.correlations[i][j] * standardizedWeights[j];
+                largest = Math.max(largest, Math.abs(gradient[i]));
+            }
+            if (largest <= tolerance)
+                break;
+            for (int i = 0; i < n; ++i)
+                standardizedWeights[i] -= stepSize * gradient[i];
+        }
+        return system.toModel(standardizedWeights);
+    }
+
+    /**
+     * Get the label the model predicts.
+     * @return the name of the label attribute
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Get the features the model predicts from.
+     * @return the names of the feature attributes, in the order their weights and values are given in
+     */
+    public List<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Get the intercept of the model.
+     * @return the prediction when every feature is 0
+     */
+    public double getIntercept() {
+        return intercept;
+    }
+
+    /**
+     * Get the weight of a feature.
+     * @param feature the name of the feature attribute
+     * @return the weight of the feature
+     * @throws IllegalArgumentException if the model has no such feature
+     */
+    public double getWeight(String feature) {
+        int index = features.indexOf(feature);
+        if (index < 0)
+            throw new IllegalArgumentException("The model has no feature " + feature + ".");
+        return weights[index];
+    }
+
+    /**
+     * Predict the label from the values of the features.
+     * @param values the value of each feature, in the order of getFeatures
+     * @return the predicted label
+     */
+    public double predict(double... values) {
+        double prediction = intercept;
+        for (int i = 0; i < weights.length; ++i)
+            prediction += weights[i] * values[i];
+        return prediction;
+    }
+
+    /**
+     * Compute the mean squared error of the model over the join, from the cofactor matrix alone, as the variance of
+     * the label minus twice the covariance of the prediction with the label plus the variance of the prediction (the
+     * mean error is 0 for a model trained without a penalty).
+     * @param cofactors the cofactor matrix of the features and the label over the join
+     * @return the mean squared error
+     * @throws IllegalArgumentException if an attribute is not in the cofactor matrix
+     */
+    public double meanSquaredError(CofactorMatrix cofactors) {
+        int y = cofactors.indexOf(label);
+        int[] x = features.stream().mapToInt(cofactors::indexOf).toArray();
+        double error = cofactors.covariance(y, y);
+        double meanError = cofactors.mean(y) - intercept;
+        for (int i = 0; i < x.length; ++i) {
+            error -= 2 * weights[i] * cofactors.covariance(x[i], y);
+            meanError -= weights[i] * cofactors.mean(x[i]);
+            for (int j = 0; j < x.length; ++j)
+                error += weights[i] * weights[j] * cofactors.covariance(x[i], x[j]);
+        }
+        return error + meanError * meanError;
+    }
+
+    /**
+     * Format the model as the equation it predicts the label with.
+     * @return the model as a string
+     */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(label).append(" = ").append(intercept);
+        for (int i = 0; i < weights.length; ++i)
+            result.append(" + ").append(weights[i]).append(" * ").append(features.get(i));
+        return result.toString();
+    }
+
+    /**
+     * The normal equations of a regression over standardized features: the correlation matrix of the features (plus
+     * the ridge penalty on its diagonal) and the covariance of each standardized feature with the label, leaving out
+     * the features that are constant over the join.
+     */
+    private static class StandardizedSystem {
+        private final String label;
+        private final List<String> features;
+        private final double labelMean;
+        private final double[] means;
+        private final double[] deviations;
+        private final int[] varying;
+        private final double[][] correlations;
+        private final double[] labelCovariances;
+
+        /**
+         * Construct the system for a regression.
+         * @param cofactors the cofactor matrix of the features and the label over the join
+         * @param label the name of the label attribute
+         * @param features the names of the feature attributes
+         * @param ridge the ridge penalty on the squared standardized weights
+         * @throws IllegalArgumentException if an attribute is not in the cofactor matrix
+         */
+        StandardizedSystem(CofactorMatrix cofactors, String label, List<String> features, double ridge) {
+            this.label = label;
+            this.features = features;
+            int y = cofactors.indexOf(label);
+            int[] x = features.stream().mapToInt(cofactors::indexOf).toArray();
+            labelMean = cofactors.mean(y);
+            means = new double[x.length];
+            deviations = new double[x.length];
+            List<Integer> varyingFeatures = new ArrayList<>();
+            for (int i = 0; i < x.length; ++i) {
+                means[i] = cofactors.mean(x[i]);
+                deviations[i] = Math.sqrt(Math.max(0, cofactors.covariance(x[i], x[i])));
+                if (deviations[i] > 0)
+                    varyingFeatures.add(i);
+            }
+            varying = varyingFeatures.stream().mapToInt(Integer::intValue).toArray();
+
+            correlations = new double[varying.length][varying.length];
+            labelCovariances = new double[varying.length];
+            for (int i = 0; i < varying.length; ++i) {
+                int a = varying[i];
+                for (int j = 0; j < varying.length; ++j) {
+                    int b = varying[j];
+                    correlations[i][j] = cofactors.covariance(x[a], x[b]) / (deviations[a] * deviations[b]);
+                }
+                correlations[i][i] += ridge;
+                labelCovariances[i] = cofactors.covariance(x[a], y) / deviations[a];
+            }
+        }
+
+        /**
+         * Turn the weights of the standardized features back into a model over the original features.
+         * @param standardizedWeights the weight of each varying standardized feature
+         * @return the model
+         */
+        LinearRegression toModel(double[] standardizedWeights) {
+            double[] weights = new double[features.size()];
+            double intercept = labelMean;
+            for (int i = 0; i < varying.length; ++i) {
+                weights[varying[i]] = standardizedWeights[i] / deviations[varying[i]];
+                intercept -= weights[varying[i]] * means[varying[i]];
+            }
+            return new LinearRegression(label, features, intercept, weights);
+        }
+    }
+}
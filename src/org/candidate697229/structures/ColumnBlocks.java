@@ -0,0 +1,93 @@
+package org.candidate697229.structures;
+
+/**
+ * The values of some attributes of a tuple storage, for reading the tuples an iterator moves over without a call to
+ * the storage per value. An attribute the storage keeps in an array of its own is read from that array. Otherwise the
+ * attributes are copied out (see TupleStorage.copyColumn) a block of rows at a time into buffers that are reused, so
+ * that however large the storage is, no more than a block of each attribute is ever on the heap.
+ *
+ * A block starts at the row asked for. It starts out short, as a join that seeks past most of the tuples reads only a
+ * few rows around each one it lands on, and doubles in length each time the rows are read on past its end, up to
+ * MAX_BLOCK_ROWS. Going back to a row before the block (to pair the tuples of a block of the join again) refills the
+ * block from there without changing its length.
+ *
+ * Blocks are read by one thread at a time.
+ */
+public class ColumnBlocks {
+    /**
+     * The number of rows in a block read after a seek.
+     */
+    private static final int MIN_BLOCK_ROWS = 16;
+
+    /**
+     * The largest number of rows in a block.
+     */
+    private static final int MAX_BLOCK_ROWS = 1024;
+
+    private final TupleStorage tuples;
+    private final int[] attributes;
+    private final long[][] columns;
+    private int start;
+    private int end;
+    private int blockRows = MIN_BLOCK_ROWS;
+
+    /**
+     * Construct the blocks of some attributes of a storage.
+     * @param tuples the tuples to read
+     * @param attributes the positions of the attributes to read
+     */
+    public ColumnBlocks(TupleStorage tuples, int[] attributes) {
+        this.tuples = tuples;
+        this.attributes = attributes.clone();
+        int arity = 0;
+        for (int attribute : attributes)
+            arity = Math.max(arity, attribute + 1);
+        columns = new long[arity][];
+
+        /*
+         * The attributes are only read from the storage's own arrays if every one of them has one, so that a single
+         * position indexes all of them.
+         */
+        boolean isInArrays = true;
+        for (int attribute : attributes) {
+            columns[attribute] = tuples.column(attribute);
+            isInArrays &= columns[attribute] != null;
+        }
+        if (isInArrays) {
+            end = tuples.size();
+            return;
+        }
+        for (int attribute : attributes)
+            columns[attribute] = new long[MAX_BLOCK_ROWS];
+        end = start;
+    }
+
+    /**
+     * Get the arrays the attributes are read from, which stay the same for as long as the blocks are used. The value of
+     * an attribute in a row is at the position locate gives for the row.
+     * @return the array of each attribute read, or null for the attributes that are not
+     */
+    public long[][] columns() {
+        return columns;
+    }
+
+    /**
+     * Find where the values of a row are in the arrays, reading in the block starting at the row if it is not the
+     * current one.
+     * @param row the position of the tuple in the storage
+     * @return the position of its values in the arrays of the attributes
+     */
+    public int locate(int row) {
+        if (row >= start && row < end)
+            return row - start;
+        if (row == end)
+            blockRows = Math.min(2 * blockRows, MAX_BLOCK_ROWS);
+        else if (row > end)
+            blockRows = MIN_BLOCK_ROWS;
+        start = row;
+        end = Math.min(tuples.size(), row + blockRows);
+        for (int attribute : attributes)
+            tuples.copyColumn(attribute, start, end - start, columns[attribute]);
+        return 0;
+    }
+}
@@ -0,0 +1,69 @@
+package org.candidate697229.structures;
+
+/**
+ * Tuple storage that keeps each attribute in its own contiguous array, so scans over a single attribute read
+ * consecutive memory and no per-tuple objects are allocated.
+ */
+public class ColumnarStorage implements TupleStorage {
+    private final long[][] columns;
+    private final int size;
+    private final int[] sortOrder;
+
+    /**
+     * Construct a new columnar storage.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows (every column
+     *                must have the same length)
+     */
+    public ColumnarStorage(long[][] columns) {
+        this(columns, null);
+    }
+
+    /**
+     * Construct a new columnar storage of tuples sorted on their columns in some order other than the order they are
+     * stored in.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows (every column
+     *                must have the same length)
+     * @param sortOrder the column at each position of the order the tuples are sorted in, or null if they are sorted on
+     *                  their columns in order
+     */
+    public ColumnarStorage(long[][] columns, int[] sortOrder) {
+        this.columns = columns;
+        this.size = columns.length == 0 ? 0 : columns[0].length;
+        this.sortOrder = sortOrder;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return columns.length;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        return columns[column][row];
+    }
+
+    @Override
+    public long[] column(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public void copyColumn(int column, int from, int length, long[] values) {
+        System.arraycopy(columns[column], from, values, 0, length);
+    }
+
+    @Override
+    public int sortColumn(int position) {
+        return sortOrder == null ? position : sortOrder[position];
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return (long) columns.length * size * Long.BYTES;
+    }
+}
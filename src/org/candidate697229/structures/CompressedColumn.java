@@ -0,0 +1,339 @@
+package org.candidate697229.structures;
+
+import java.util.Arrays;
+
+/**
+ * A single attribute of a relation held in a compressed encoding chosen for its values, which still gives constant
+ * time access to the value on any row. Every encoding stores its values in arrays of a single primitive type, so
+ * decoding a value is a load, a shift or mask and an addition at most.
+ *
+ * The encodings are:
+ * <ul>
+ *     <li>frame of reference: each value stored as its offset from the smallest value, in the narrowest of 0, 1, 2 or
+ *     4 bits packed into longs, or a byte, short, int or long array that fits every offset (booleans take one bit and
+ *     attributes with small ranges a byte, whatever their values);</li>
+ *     <li>dictionary: each value stored as its position in a sorted array of the distinct values, with the positions
+ *     encoded by frame of reference, for attributes with few distinct values spread over a large range;</li>
+ *     <li>delta: each value of a sorted column stored as its difference from the first value of its block of rows,
+ *     with the differences encoded by frame of reference, for key columns whose values grow steadily.</li>
+ * </ul>
+ * The encoding taking up the least memory is chosen when the column is encoded. All encodings are held by this one
+ * final class and picked between by a switch, rather than by subclasses, so that reading a value never goes through a
+ * virtual call the JIT compiler cannot inline. A scan over many rows decodes them a block at a time with decode instead,
+ * which picks the encoding once per block and then runs a tight loop over its arrays.
+ */
+public final class CompressedColumn {
+    private static final int CONSTANT = 0;
+    private static final int BIT_PACKED = 1;
+    private static final int BYTE = 2;
+    private static final int SHORT = 3;
+    private static final int INT = 4;
+    private static final int LONG = 5;
+    private static final int DICTIONARY = 6;
+    private static final int DELTA = 7;
+
+    /**
+     * Stands for whichever of the encodings from CONSTANT to LONG fits the offsets from the smallest value, while an
+     * encoding is being chosen.
+     */
+    private static final int FRAME_OF_REFERENCE = -1;
+
+    /**
+     * The largest number of distinct values an attribute can have to be encoded with a dictionary.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 256;
+
+    /**
+     * The base 2 logarithm of the number of rows in each block of a delta encoded column.
+     */
+    private static final int DELTA_BLOCK_SHIFT = 6;
+
+    private final int encoding;
+    private final long base;
+    private final long[] longs;
+    private final byte[] bytes;
+    private final short[] shorts;
+    private final int[] ints;
+    private final CompressedColumn inner;
+    private final int widthShift;
+    private final int rowShift;
+    private final long mask;
+
+    /**
+     * Construct a new compressed column. Only the arrays the encoding uses are set, and the rest are null.
+     * @param encoding the encoding of the column
+     * @param base the value every offset is from, for a frame of reference encoding
+     * @param width the number of bits per offset, for a bit-packed encoding
+     * @param longs the packed offsets, the values, the dictionary or the first value of each block, for a bit-packed,
+     *              long, dictionary or delta encoding respectively
+     * @param bytes the offsets, for a byte encoding
+     * @param shorts the offsets, for a short encoding
+     * @param ints the offsets, for an int encoding
+     * @param inner the positions in the dictionary or the deltas, for a dictionary or delta encoding respectively
+     */
+    private CompressedColumn(int encoding, long base, int width, long[] longs, byte[] bytes, short[] shorts,
+                             int[] ints, CompressedColumn inner) {
+        this.encoding = encoding;
+        this.base = base;
+        this.longs = longs;
+        this.bytes = bytes;
+        this.shorts = shorts;
+        this.ints = ints;
+        this.inner = inner;
+        widthShift = Integer.numberOfTrailingZeros(Math.max(1, width));
+        rowShift = 6 - widthShift;
+        mask = width == 0 ? 0 : (1L << width) - 1;
+    }
+
+    /**
+     * Get the value on a row.
+     * @param row the row
+     * @return the value on the row
+     */
+    public long get(int row) {
+        switch (encoding) {
+            case CONSTANT:
+                return base;
+            case BIT_PACKED:
+                return base + ((longs[row >>> rowShift] >>> ((row << widthShift) & 63)) & mask);
+            case BYTE:
+                return base + (bytes[row] & 0xFFL);
+            case SHORT:
+                return base + (shorts[row] & 0xFFFFL);
+            case INT:
+                return base + (ints[row] & 0xFFFFFFFFL);
+            case LONG:
+                return longs[row];
+            case DICTIONARY:
+                return longs[(int) inner.get(row)];
+            default:
+                return longs[row >>> DELTA_BLOCK_SHIFT] + inner.get(row);
+        }
+    }
+
+    /**
+     * Decode the values on a run of rows into an array.
+     * @param from the first row to decode
+     * @param length the number of rows to decode
+     * @param values the array to put the value on each row in, from its start
+     */
+    public void decode(int from, int length, long[] values) {
+        switch (encoding) {
+            case CONSTANT:
+                Arrays.fill(values, 0, length, base);
+                break;
+            case BIT_PACKED:
+                for (int i = 0, row = from; i < length; ++i, ++row)
+                    values[i] = base + ((longs[row >>> rowShift] >>> ((row << widthShift) & 63)) & mask);
+                break;
+            case BYTE:
+                for (int i = 0; i < length; ++i)
+                    values[i] = base + (bytes[from + i] & 0xFFL);
+                break;
+            case SHORT:
+                for (int i = 0; i < length; ++i)
+                    values[i] = base + (shorts[from + i] & 0xFFFFL);
+                break;
+            case INT:
+                for (int i = 0; i < length; ++i)
+                    values[i] = base + (ints[from + i] & 0xFFFFFFFFL);
+                break;
+            case LONG:
+                System.arraycopy(longs, from, values, 0, length);
+                break;
+            case DICTIONARY:
+                inner.decode(from, length, values);
+                for (int i = 0; i < length; ++i)
+                    values[i] = longs[(int) values[i]];
+                break;
+            default:
+                inner.decode(from, length, values);
+                for (int i = 0, row = from; i < length; ++i, ++row)
+                    values[i] += longs[row >>> DELTA_BLOCK_SHIFT];
+        }
+    }
+
+    /**
+     * Estimate how much heap memory the column takes up.
+     * @return the estimated number of bytes of heap used
+     */
+    public long estimatedHeapBytes() {
+        long bytesUsed = longs == null ? 0 : (long) longs.length * Long.BYTES;
+        bytesUsed += bytes == null ? 0 : bytes.length;
+        bytesUsed += shorts == null ? 0 : (long) shorts.length * Short.BYTES;
+        bytesUsed += ints == null ? 0 : (long) ints.length * Integer.BYTES;
+        return bytesUsed + (inner == null ? 0 : inner.estimatedHeapBytes());
+    }
+
+    /**
+     * Encode the values of an attribute in whichever encoding takes up the least memory.
+     * @param values the value on each row
+     * @return the encoded column
+     */
+    public static CompressedColumn encode(long[] values) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return encode(values, min, max);
+    }
+
+    /**
+     * Encode the values of an attribute whose range is already known, such as one mapped from a snapshot, in whichever
+     * encoding takes up the least memory.
+     * @param values the value on each row
+     * @param min the smallest of the values
+     * @param max the largest of the values
+     * @return the encoded column
+     */
+    public static CompressedColumn encode(long[] values, long min, long max) {
+        boolean isSorted = true;
+        for (int row = 1; row < values.length && isSorted; ++row)
+            isSorted = values[row - 1] <= values[row];
+        if (values.length == 0)
+            return new CompressedColumn(CONSTANT, 0, 0, null, null, null, null, null);
+
+        int width = widthOf(max - min);
+        long bestBytes = packedBytes(values.length, width);
+        int encoding = FRAME_OF_REFERENCE;
+
+        long[] dictionary = distinctValues(values);
+        if (dictionary != null) {
+            long bytes = packedBytes(values.length, widthOf(dictionary.length - 1)) + (long) dictionary.length * 8;
+            if (bytes < bestBytes) {
+                bestBytes = bytes;
+                encoding = DICTIONARY;
+            }
+        }
+
+        long[] bases = null;
+        if (isSorted) {
+            bases = new long[((values.length - 1) >>> DELTA_BLOCK_SHIFT) + 1];
+            long maxDelta = 0;
+            for (int block = 0; block < bases.length; ++block) {
+                int last = Math.min(values.length, (block + 1) << DELTA_BLOCK_SHIFT) - 1;
+                bases[block] = values[block << DELTA_BLOCK_SHIFT];
+                maxDelta = maxUnsigned(maxDelta, values[last] - bases[block]);
+            }
+            long bytes = packedBytes(values.length, widthOf(maxDelta)) + (long) bases.length * 8;
+            if (bytes < bestBytes)
+                encoding = DELTA;
+        }
+
+        if (encoding == DICTIONARY) {
+            long[] codes = new long[values.length];
+            for (int row = 0; row < values.length; ++row)
+                codes[row] = Arrays.binarySearch(dictionary, values[row]);
+            return new CompressedColumn(DICTIONARY, 0, 0, dictionary, null, null, null,
+                    pack(codes, 0, widthOf(dictionary.length - 1)));
+        } else if (encoding == DELTA) {
+            long[] deltas = new long[values.length];
+            long maxDelta = 0;
+            for (int row = 0; row < values.length; ++row) {
+                deltas[row] = values[row] - bases[row >>> DELTA_BLOCK_SHIFT];
+                maxDelta = maxUnsigned(maxDelta, deltas[row]);
+            }
+            return new CompressedColumn(DELTA, 0, 0, bases, null, null, null, pack(deltas, 0, widthOf(maxDelta)));
+        }
+        return pack(values, min, width);
+    }
+
+    /**
+     * Get the number of bits each value takes up in a frame of reference encoding, which is the number of bits of the
+     * largest offset rounded up to a power of two, or 0 if every offset is 0.
+     * @param maxOffset the largest offset from the smallest value, as an unsigned number
+     * @return 0, 1, 2, 4, 8, 16, 32 or 64
+     */
+    private static int widthOf(long maxOffset) {
+        int bits = 64 - Long.numberOfLeadingZeros(maxOffset);
+        return bits <= 1 ? bits : Integer.highestOneBit(bits - 1) << 1;
+    }
+
+    /**
+     * Get the larger of two unsigned numbers, as the difference between two longs can be above Long.MAX_VALUE.
+     * @param first the first number
+     * @param second the second number
+     * @return the larger number
+     */
+    private static long maxUnsigned(long first, long second) {
+        return Long.compareUnsigned(first, second) >= 0 ? first : second;
+    }
+
+    /**
+     * Get the number of bytes a frame of reference encoding of a column takes up.
+     * @param length the number of rows
+     * @param width the number of bits per value
+     * @return the number of bytes
+     */
+    private static long packedBytes(int length, int width) {
+        return ((long) length * width + 7) / 8;
+    }
+
+    /**
+     * Get the distinct values of a column, if there are few enough of them to encode the column with a dictionary.
+     * @param values the value on each row
+     * @return the distinct values in ascending order, or null if there are more than MAX_DICTIONARY_SIZE of them
+     */
+    private static long[] distinctValues(long[] values) {
+        long[] distinct = new long[MAX_DICTIONARY_SIZE];
+        int numOfDistinct = 0;
+        long[] slots = new long[4 * MAX_DICTIONARY_SIZE];
+        boolean[] isUsed = new boolean[slots.length];
+        for (long value : values) {
+            int slot = Long.hashCode(value * 0x9E3779B97F4A7C15L) & (slots.length - 1);
+            while (isUsed[slot] && slots[slot] != value)
+                slot = (slot + 1) & (slots.length - 1);
+            if (!isUsed[slot]) {
+                if (numOfDistinct == MAX_DICTIONARY_SIZE)
+                    return null;
+                isUsed[slot] = true;
+                slots[slot] = value;
+                distinct[numOfDistinct++] = value;
+            }
+        }
+        long[] dictionary = Arrays.copyOf(distinct, numOfDistinct);
+        Arrays.sort(dictionary);
+        return dictionary;
+    }
+
+    /**
+     * Encode a column by frame of reference.
+     * @param values the value on each row
+     * @param base the smallest value
+     * @param width the number of bits per value, as given by widthOf
+     * @return the encoded column
+     */
+    private static CompressedColumn pack(long[] values, long base, int width) {
+        switch (width) {
+            case 0:
+                return new CompressedColumn(CONSTANT, base, 0, null, null, null, null, null);
+            case 1:
+            case 2:
+            case 4:
+                int rowShift = 6 - Integer.numberOfTrailingZeros(width);
+                long[] words = new long[((values.length - 1) >>> rowShift) + 1];
+                for (int row = 0; row < values.length; ++row)
+                    words[row >>> rowShift] |= (values[row] - base) << ((row * width) & 63);
+                return new CompressedColumn(BIT_PACKED, base, width, words, null, null, null, null);
+            case 8:
+                byte[] bytes = new byte[values.length];
+                for (int row = 0; row < values.length; ++row)
+                    bytes[row] = (byte) (values[row] - base);
+                return new CompressedColumn(BYTE, base, 0, null, bytes, null, null, null);
+            case 16:
+                short[] shorts = new short[values.length];
+                for (int row = 0; row < values.length; ++row)
+                    shorts[row] = (short) (values[row] - base);
+                return new CompressedColumn(SHORT, base, 0, null, null, shorts, null, null);
+            case 32:
+                int[] ints = new int[values.length];
+                for (int row = 0; row < values.length; ++row)
+                    ints[row] = (int) (values[row] - base);
+                return new CompressedColumn(INT, base, 0, null, null, null, ints, null);
+            default:
+                return new CompressedColumn(LONG, 0, 0, values, null, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.candidate697229.structures;
+
+import java.util.stream.IntStream;
+
+/**
+ * Tuple storage that keeps each attribute in its own compressed column, with the encoding of each column chosen for
+ * its values (see CompressedColumn), so that attributes with few distinct values or small ranges take up a fraction of
+ * the memory of a long per value and scans over them read fewer bytes.
+ */
+public class CompressedColumnarStorage implements TupleStorage {
+    private final CompressedColumn[] columns;
+    private final int size;
+    private final int[] sortOrder;
+
+    /**
+     * Construct a new compressed columnar storage.
+     * @param columns the encoded values of each attribute
+     * @param size the number of tuples
+     * @param sortOrder the column at each position of the order the tuples are sorted in, or null if they are sorted on
+     *                  their columns in order
+     */
+    public CompressedColumnarStorage(CompressedColumn[] columns, int size, int[] sortOrder) {
+        this.columns = columns;
+        this.size = size;
+        this.sortOrder = sortOrder;
+    }
+
+    /**
+     * Encode a set of columns into a compressed columnar storage.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows (every column
+     *                must have the same length)
+     * @param sortOrder the column at each position of the order the tuples are sorted in, or null if they are sorted on
+     *                  their columns in order
+     * @return the storage holding the tuples
+     */
+    public static CompressedColumnarStorage encode(long[][] columns, int[] sortOrder) {
+        CompressedColumn[] encoded = new CompressedColumn[columns.length];
+        IntStream.range(0, columns.length).parallel().forEach(j -> encoded[j] = CompressedColumn.encode(columns[j]));
+        return new CompressedColumnarStorage(encoded, columns.length == 0 ? 0 : columns[0].length, sortOrder);
+    }
+
+    /**
+     * Encode a copy of the tuples held in another storage, such as one mapped from a file, onto the heap. The range of
+     * each attribute of a mapped storage is taken from the storage rather than found again.
+     * @param tuples the tuples to copy
+     * @return the storage holding the copy, sorted in the same order
+     */
+    public static CompressedColumnarStorage copyOf(TupleStorage tuples) {
+        CompressedColumn[] encoded = new CompressedColumn[tuples.arity()];
+        IntStream.range(0, encoded.length).parallel().forEach(j -> {
+            long[] column = new long[tuples.size()];
+            tuples.copyColumn(j, 0, column.length, column);
+            if (tuples instanceof MappedColumnarStorage) {
+                MappedColumnarStorage mapped = (MappedColumnarStorage) tuples;
+                encoded[j] = CompressedColumn.encode(column, mapped.minimum(j), mapped.maximum(j));
+            } else {
+                encoded[j] = CompressedColumn.encode(column);
+            }
+        });
+        int[] sortOrder = new int[encoded.length];
+        for (int position = 0; position < sortOrder.length; ++position)
+            sortOrder[position] = tuples.sortColumn(position);
+        return new CompressedColumnarStorage(encoded, tuples.size(), sortOrder);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return columns.length;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        return columns[column].get(row);
+    }
+
+    @Override
+    public void copyColumn(int column, int from, int length, long[] values) {
+        columns[column].decode(from, length, values);
+    }
+
+    @Override
+    public int sortColumn(int position) {
+        return sortOrder == null ? position : sortOrder[position];
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        long bytes = 0;
+        for (CompressedColumn column : columns)
+            bytes += column.estimatedHeapBytes();
+        return bytes;
+    }
+}
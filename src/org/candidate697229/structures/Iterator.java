@@ -29,10 +29,18 @@ public interface Iterator {
     void next();
 
     /**
-     * Get the current value of the iterator.
-     * @return the tuple at the current position
+     * Get an attribute of the current value of the iterator.
+     * @param attribute the position of the attribute within the tuple
+     * @return the value of the attribute in the tuple at the current position
      */
-    long[] value();
+    long value(int attribute);
+
+    /**
+     * Get the position of the tuple the iterator is currently at among all the tuples it was constructed over, so that
+     * the attributes of the tuple can be read straight from arrays of their values (see TupleStorage.column).
+     * @return the position of the current tuple
+     */
+    int row();
 
     /**
      * Increment the depth and go back to the first tuple at the next depth.
@@ -61,4 +69,18 @@ public interface Iterator {
      * @param numOfValues how many tuples to go back by
      */
     void back(int numOfValues);
+
+    /**
+     * Go back to the state the iterator was in when it was constructed, so that it can be used again.
+     */
+    void reset();
+
+    /**
+     * Get the number of tuples the iterator has skipped over by seeking since this was last called, which is only
+     * counted if COLLECT_JOIN_STATISTICS is set.
+     * @return the number of tuples skipped
+     */
+    default long takeSkippedTuples() {
+        return 0;
+    }
 }
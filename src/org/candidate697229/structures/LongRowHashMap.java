@@ -0,0 +1,248 @@
+package org.candidate697229.structures;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to rows of a fixed number of longs, held in flat primitive arrays so that neither keys nor
+ * values are boxed. Entries are stored densely in the order they were inserted, with the row of entry e taking up
+ * positions e * rowWidth to (e + 1) * rowWidth - 1 of the values array, and found through an open addressing table
+ * with linear probing. Rows are updated in place through the values array, so adding to the row of a key costs one
+ * lookup and no allocation.
+ *
+ * A key is normally a single long, but may be made up of a fixed number of longs (such as a join key over several
+ * attributes), in which case keys are passed as arrays of that length.
+ */
+public class LongRowHashMap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int keyWidth;
+    private final int rowWidth;
+    private long[] keys;
+    private long[] values;
+    private int[] slots;
+    private int capacity;
+    private int size;
+
+    /**
+     * Construct an empty map.
+     * @param rowWidth the number of longs in each row
+     */
+    public LongRowHashMap(int rowWidth) {
+        this(1, rowWidth);
+    }
+
+    /**
+     * Construct an empty map with keys made up of several longs.
+     * @param keyWidth the number of longs in each key, which may be zero for a map holding a single row
+     * @param rowWidth the number of longs in each row
+     */
+    public LongRowHashMap(int keyWidth, int rowWidth) {
+        this.keyWidth = keyWidth;
+        this.rowWidth = rowWidth;
+        capacity = INITIAL_CAPACITY;
+        keys = new long[INITIAL_CAPACITY * keyWidth];
+        values = new long[INITIAL_CAPACITY * rowWidth];
+        slots = new int[2 * INITIAL_CAPACITY];
+    }
+
+    /**
+     * Get the number of keys in the map.
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of longs in each row.
+     * @return the width of a row
+     */
+    public int rowWidth() {
+        return rowWidth;
+    }
+
+    /**
+     * Get the key of an entry, for a map with keys of a single long.
+     * @param entry the index of the entry, in the order entries were inserted
+     * @return the key
+     */
+    public long keyAt(int entry) {
+        return keys[entry * keyWidth];
+    }
+
+    /**
+     * Get one of the longs making up the key of an entry.
+     * @param entry the index of the entry, in the order entries were inserted
+     * @param column the position of the long within the key
+     * @return the long at that position of the key
+     */
+    public long keyAt(int entry, int column) {
+        return keys[entry * keyWidth + column];
+    }
+
+    /**
+     * Get the array holding the rows of every entry. The array is replaced when the map grows, so it should be got
+     * again after inserting a key.
+     * @return the values, with the row of entry e starting at position e * rowWidth
+     */
+    public long[] values() {
+        return values;
+    }
+
+    /**
+     * Find the row of a key, for a map with keys of a single long.
+     * @param key the key
+     * @return the index of its entry, or -1 if the key is not in the map
+     */
+    public int find(long key) {
+        int mask = slots.length - 1;
+        for (int slot = hash(key) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slots[slot] - 1] == key)
+                return slots[slot] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the row of a key made up of several longs.
+     * @param key the longs making up the key, which are only read
+     * @return the index of its entry, or -1 if the key is not in the map
+     */
+    public int find(long[] key) {
+        int slot = slotOf(key);
+        return slots[slot] - 1;
+    }
+
+    /**
+     * Find the row of a key, inserting the key with a row of zeros if it is not in the map, for a map with keys of a
+     * single long.
+     * @param key the key
+     * @return the index of its entry
+     */
+    public int findOrInsert(long key) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slots[slot] - 1] == key)
+                return slots[slot] - 1;
+        }
+
+        growIfFull();
+        keys[size] = key;
+        return insertAt(slot);
+    }
+
+    /**
+     * Find the row of a key made up of several longs, inserting the key with a row of zeros if it is not in the map.
+     * @param key the longs making up the key, which are copied rather than kept
+     * @return the index of its entry
+     */
+    public int findOrInsert(long[] key) {
+        int slot = slotOf(key);
+        if (slots[slot] != 0)
+            return slots[slot] - 1;
+
+        growIfFull();
+        System.arraycopy(key, 0, keys, size * keyWidth, keyWidth);
+        return insertAt(slot);
+    }
+
+    /**
+     * Find the slot of a key made up of several longs.
+     * @param key the longs making up the key
+     * @return the slot holding the entry of the key, or the empty slot where it would be inserted
+     */
+    private int slotOf(long[] key) {
+        int mask = slots.length - 1;
+        int slot = hash(key, 0) & mask;
+        for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int offset = (slots[slot] - 1) * keyWidth;
+            int column = 0;
+            while (column < keyWidth && keys[offset + column] == key[column])
+                ++column;
+            if (column == keyWidth)
+                break;
+        }
+        return slot;
+    }
+
+    /**
+     * Make room for another entry, doubling the arrays of keys and values if they are full.
+     */
+    private void growIfFull() {
+        if (size == capacity) {
+            capacity *= 2;
+            keys = Arrays.copyOf(keys, capacity * keyWidth);
+            values = Arrays.copyOf(values, capacity * rowWidth);
+        }
+    }
+
+    /**
+     * Add the entry whose key has just been written after the last entry, growing the open addressing table if it is
+     * getting full.
+     * @param slot the empty slot to put the entry in
+     * @return the index of the entry
+     */
+    private int insertAt(int slot) {
+        slots[slot] = ++size;
+        if (2 * size > slots.length)
+            rehash(2 * slots.length);
+        return size - 1;
+    }
+
+    /**
+     * Remove every key, zeroing the rows in use but keeping the arrays at their size so that the map can be refilled
+     * without allocating.
+     */
+    public void clear() {
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; ++entry) {
+            int slot = hash(keys, entry * keyWidth) & mask;
+            while (slots[slot] != entry + 1)
+                slot = (slot + 1) & mask;
+            slots[slot] = 0;
+        }
+        Arrays.fill(values, 0, size * rowWidth, 0);
+        size = 0;
+    }
+
+    /**
+     * Rebuild the open addressing table with a new number of slots.
+     * @param numOfSlots the number of slots, which must be a power of two larger than twice the size
+     */
+    private void rehash(int numOfSlots) {
+        slots = new int[numOfSlots];
+        int mask = numOfSlots - 1;
+        for (int entry = 0; entry < size; ++entry) {
+            int slot = hash(keys, entry * keyWidth) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * Hash a key, mixing its bits so that keys that differ only in their high bits, or that are multiples of a power
+     * of two, still spread across the slots.
+     * @param key the key
+     * @return the hash of the key
+     */
+    private static int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /**
+     * Hash a key made up of several longs, mixing in each long in turn, which for a key of a single long gives the
+     * same hash as hash(long).
+     * @param array the array holding the key
+     * @param offset the position of the first long of the key in the array
+     * @return the hash of the key
+     */
+    private int hash(long[] array, int offset) {
+        long mixed = 0;
+        for (int column = 0; column < keyWidth; ++column)
+            mixed = (mixed ^ array[offset + column]) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
@@ -0,0 +1,103 @@
+package org.candidate697229.structures;
+
+import java.nio.LongBuffer;
+
+/**
+ * Tuple storage that reads each attribute from its own buffers, typically regions of a memory-mapped file, so that the
+ * tuples are paged in by the operating system on demand rather than being copied onto the heap. A single mapping can
+ * be at most 2GB, so each attribute is split into pages of PAGE_ROWS values, with every page but the last full. The
+ * smallest and largest value of each attribute are held alongside, so that they can be known without paging in the
+ * attribute.
+ */
+public class MappedColumnarStorage implements TupleStorage {
+    /**
+     * The base 2 logarithm of the number of values in each page.
+     */
+    private static final int PAGE_SHIFT = 27;
+
+    /**
+     * The number of values in each page, which is 1GB of longs.
+     */
+    public static final int PAGE_ROWS = 1 << PAGE_SHIFT;
+
+    private final LongBuffer[][] pages;
+    private final int size;
+    private final long[] minimums;
+    private final long[] maximums;
+    private final boolean isOutOfCore;
+
+    /**
+     * Construct a new mapped columnar storage.
+     * @param pages the values of each attribute, as the buffers holding each page of the attribute in turn (every
+     *              attribute must have the same number of pages)
+     * @param size the number of tuples
+     * @param minimums the smallest value of each attribute
+     * @param maximums the largest value of each attribute
+     * @param isOutOfCore true if the tuples are too many to be copied onto the heap (see TupleStorage.isOutOfCore)
+     */
+    public MappedColumnarStorage(LongBuffer[][] pages, int size, long[] minimums, long[] maximums,
+                                 boolean isOutOfCore) {
+        this.pages = pages;
+        this.size = size;
+        this.minimums = minimums;
+        this.maximums = maximums;
+        this.isOutOfCore = isOutOfCore;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return pages.length;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        return pages[column][row >>> PAGE_SHIFT].get(row & (PAGE_ROWS - 1));
+    }
+
+    @Override
+    public void copyColumn(int column, int from, int length, long[] values) {
+        int copied = 0;
+        while (copied < length) {
+            int row = from + copied;
+            LongBuffer page = pages[column][row >>> PAGE_SHIFT].duplicate();
+            page.clear();
+            page.position(row & (PAGE_ROWS - 1));
+            int count = Math.min(length - copied, page.remaining());
+            page.get(values, copied, count);
+            copied += count;
+        }
+    }
+
+    /**
+     * Get the smallest value of an attribute.
+     * @param column the position of the attribute
+     * @return the smallest value, or Long.MAX_VALUE if there are no tuples
+     */
+    public long minimum(int column) {
+        return minimums[column];
+    }
+
+    /**
+     * Get the largest value of an attribute.
+     * @param column the position of the attribute
+     * @return the largest value, or Long.MIN_VALUE if there are no tuples
+     */
+    public long maximum(int column) {
+        return maximums[column];
+    }
+
+    @Override
+    public boolean isOutOfCore() {
+        return isOutOfCore;
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,42 @@
+package org.candidate697229.structures;
+
+/**
+ * Tuple storage that keeps all tuples one after another in a single flat array with a fixed stride, so a whole tuple
+ * is contiguous in memory without needing an object per tuple.
+ */
+public class RowMajorStorage implements TupleStorage {
+    private final long[] values;
+    private final int arity;
+    private final int size;
+
+    /**
+     * Construct a new row-major storage.
+     * @param values the values of all tuples, with the attributes of each tuple stored consecutively
+     * @param arity the number of attributes in each tuple
+     */
+    public RowMajorStorage(long[] values, int arity) {
+        this.values = values;
+        this.arity = arity;
+        this.size = arity == 0 ? 0 : values.length / arity;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public long get(int row, int column) {
+        return values[row * arity + column];
+    }
+
+    @Override
+    public long estimatedHeapBytes() {
+        return (long) values.length * Long.BYTES;
+    }
+}
@@ -1,21 +1,45 @@
 package org.candidate697229.structures;
 
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
+import static org.candidate697229.util.Configuration.USE_GALLOPING_SEEK;
+
 /**
  * Implementation of a data Iterator that iterates sequentially over the data.
  */
 public class SequentialIterator implements Iterator {
-    private final long[][] tuples;
-    private int position = 0;
+    private final TupleStorage tuples;
+    private final int[] sortColumns;
+    private final int from;
+    private final int to;
+    private int position;
     private int depth = -1;
     private boolean atEnd = false;
+    private long skippedTuples;
 
     /**
      * Construct a new sequential iterator.
      *
-     * @param tuples the tuples to iterate over
+     * @param tuples the tuples to iterate over, which must be sorted
+     */
+    public SequentialIterator(TupleStorage tuples) {
+        this(tuples, 0, tuples.size());
+    }
+
+    /**
+     * Construct a new sequential iterator over a range of the tuples. The range must not be empty.
+     *
+     * @param tuples the tuples to iterate over, which must be sorted
+     * @param from the position of the first tuple to iterate over
+     * @param to the position after the last tuple to iterate over
      */
-    public SequentialIterator(long[][] tuples) {
+    public SequentialIterator(TupleStorage tuples, int from, int to) {
         this.tuples = tuples;
+        this.sortColumns = new int[tuples.arity()];
+        for (int i = 0; i < sortColumns.length; ++i)
+            sortColumns[i] = tuples.sortColumn(i);
+        this.from = from;
+        this.to = to;
+        this.position = from;
     }
 
     @Override
@@ -25,13 +49,20 @@ public class SequentialIterator implements Iterator {
 
     @Override
     public long key() {
-        return tuples[position][depth];
+        return tuples.get(position, sortColumns[depth]);
     }
 
     @Override
     public void seek(long x) {
-        while (!atEnd && tuples[position][depth] < x)
-            next();
+        int start = position;
+        if (USE_GALLOPING_SEEK)
+            gallopTo(x);
+        else {
+            while (!atEnd && tuples.get(position, sortColumns[depth]) < x)
+                next();
+        }
+        if (COLLECT_JOIN_STATISTICS)
+            skippedTuples += position - start;
     }
 
     @Override
@@ -52,16 +83,21 @@ public class SequentialIterator implements Iterator {
 
     @Override
     public void next() {
-        long startValue = tuples[position][depth];
-        while (isNextInView() && tuples[position][depth] == startValue)
+        long startValue = tuples.get(position, sortColumns[depth]);
+        while (isNextInView() && tuples.get(position, sortColumns[depth]) == startValue)
             ++position;
-        if (tuples[position][depth] == startValue)
+        if (tuples.get(position, sortColumns[depth]) == startValue)
             atEnd = true;
     }
 
     @Override
-    public long[] value() {
-        return tuples[position];
+    public long value(int attribute) {
+        return tuples.get(position, attribute);
+    }
+
+    @Override
+    public int row() {
+        return position;
     }
 
     @Override
@@ -78,16 +114,93 @@ public class SequentialIterator implements Iterator {
         atEnd = false;
     }
 
+    @Override
+    public void reset() {
+        position = from;
+        depth = -1;
+        atEnd = false;
+    }
+
+    @Override
+    public long takeSkippedTuples() {
+        long skipped = skippedTuples;
+        skippedTuples = 0;
+        return skipped;
+    }
+
+    /**
+     * Move to the first tuple in the current view with a key greater than or equal to x, by doubling the step size
+     * until we overshoot and then binary searching the last step. Steps are clamped to the end of the range, so views
+     * close to 2^31 tuples long do not overflow. If no such tuple exists, we stay on the last tuple of the view and set
+     * atEnd.
+     * @param x the value to look for
+     */
+    private void gallopTo(long x) {
+        if (atEnd || tuples.get(position, sortColumns[depth]) >= x)
+            return;
+
+        /*
+         * Invariant: the tuple at low is in the view with a key less than x, and the tuple at high (if it exists) is
+         * either outside the view or has a key greater than or equal to x.
+         */
+        int low = position;
+        long step = 1;
+        int high = position + 1;
+        while (isBeforeInView(high, x)) {
+            low = high;
+            step <<= 1;
+            high = (int) Math.min(low + step, to);
+        }
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (isBeforeInView(middle, x))
+                low = middle;
+            else
+                high = middle;
+        }
+
+        if (high < to && isInView(high))
+            position = high;
+        else {
+            position = low;
+            atEnd = true;
+        }
+    }
+
+    /**
+     * Check if a tuple is in the current view and has a key strictly less than x.
+     * Returns false if the position is past the end of the tuples.
+     * @param candidate the position of the tuple to check
+     * @param x the value to compare the key against
+     * @return true if the tuple is in the current view and comes before x
+     */
+    private boolean isBeforeInView(int candidate, long x) {
+        return candidate < to && isInView(candidate) && tuples.get(candidate, sortColumns[depth]) < x;
+    }
+
+    /**
+     * Check if a tuple is equal to the current tuple up to position depth (ie. if it is in the current view).
+     * @param candidate the position of the tuple to check
+     * @return true if the tuple is in the current view
+     */
+    private boolean isInView(int candidate) {
+        for (int i = 0; i < depth; ++i) {
+            if (tuples.get(candidate, sortColumns[i]) != tuples.get(position, sortColumns[i]))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Check if the previous tuple is equal up to position depth.
      * Returns false if there is no previous tuple.
      * @return true if the current and previous tuple are equal up to position depth
      */
     private boolean isPreviousInView() {
-        if (position == 0)
+        if (position == from)
             return false;
         for (int i = 0; i < depth; ++i) {
-            if (tuples[position][i] != tuples[position - 1][i])
+            if (tuples.get(position, sortColumns[i]) != tuples.get(position - 1, sortColumns[i]))
                 return false;
         }
         return true;
@@ -109,10 +222,10 @@ public class SequentialIterator implements Iterator {
      * @return true if the current and next tuple are equal up to position depth
      */
     private boolean isNextSameUpToDepth(int limitDepth) {
-        if (position == tuples.length - 1)
+        if (position == to - 1)
             return false;
         for (int i = 0; i < limitDepth; ++i) {
-            if (tuples[position][i] != tuples[position + 1][i])
+            if (tuples.get(position, sortColumns[i]) != tuples.get(position + 1, sortColumns[i]))
                 return false;
         }
         return true;
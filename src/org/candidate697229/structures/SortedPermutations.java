@@ -0,0 +1,91 @@
+package org.candidate697229.structures;
+
+import org.candidate697229.util.PhaseTimer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+import static org.candidate697229.util.Configuration.USE_COMPRESSED_COLUMNS;
+
+/**
+ * Cache of copies of tuple storages sorted on their columns in other orders, so that a relation can be joined on its
+ * attributes in any order. A copy is built the first time an order is asked for, by copying the columns and radix
+ * sorting them in the new order, and then kept for as long as the storage it was built from is in use.
+ */
+public class SortedPermutations {
+    private static final Map<TupleStorage, Map<List<Integer>, TupleStorage>> permutations = new WeakHashMap<>();
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private SortedPermutations() {
+    }
+
+    /**
+     * Get the tuples of a storage sorted lexicographically on their columns in some order. The copy keeps the columns
+     * where they were, so attributes are still read by their position in the relation, and reports the order it is
+     * sorted in through sortColumn.
+     * @param tuples the tuples, sorted on their columns in order
+     * @param sortOrder the column at each position of the order to sort in, covering every column once
+     * @return the tuples sorted in that order, which are the given tuples themselves if the order is the one they are
+     *          already sorted in
+     * @throws IllegalArgumentException if the tuples are held out of core and the order is not the one they are
+     *                                  already sorted in, as a sorted copy would have to fit on the heap
+     */
+    public static synchronized TupleStorage of(TupleStorage tuples, int[] sortOrder) {
+        List<Integer> key = new ArrayList<>(sortOrder.length);
+        boolean isIdentity = true;
+        for (int position = 0; position < sortOrder.length; ++position) {
+            key.add(sortOrder[position]);
+            isIdentity &= sortOrder[position] == tuples.sortColumn(position);
+        }
+        if (isIdentity)
+            return tuples;
+        if (tuples.isOutOfCore())
+            throw new IllegalArgumentException("Tuples held out of core cannot be sorted in another order");
+        return permutations.computeIfAbsent(tuples, storage -> new HashMap<>())
+                .computeIfAbsent(key, order -> build(tuples, sortOrder));
+    }
+
+    /**
+     * Estimate how much heap memory the sorted copies of a storage built so far take up.
+     * @param tuples the storage the copies were built from
+     * @return the estimated number of bytes of heap used by the copies
+     */
+    public static synchronized long estimatedHeapBytes(TupleStorage tuples) {
+        long bytes = 0;
+        for (TupleStorage permutation : permutations.getOrDefault(tuples, new HashMap<>()).values())
+            bytes += permutation.estimatedHeapBytes();
+        return bytes;
+    }
+
+    /**
+     * Build a copy of some tuples sorted in an order.
+     * @param tuples the tuples to copy
+     * @param sortOrder the column at each position of the order to sort in
+     * @return the sorted copy
+     */
+    private static TupleStorage build(TupleStorage tuples, int[] sortOrder) {
+        long start = PhaseTimer.start();
+        long[][] columnsInSortOrder = new long[sortOrder.length][];
+        IntStream.range(0, sortOrder.length).parallel().forEach(position -> {
+            long[] column = new long[tuples.size()];
+            for (int row = 0; row < column.length; ++row)
+                column[row] = tuples.get(row, sortOrder[position]);
+            columnsInSortOrder[position] = column;
+        });
+        TupleSorter.sort(columnsInSortOrder);
+
+        long[][] columns = new long[sortOrder.length][];
+        for (int position = 0; position < sortOrder.length; ++position)
+            columns[sortOrder[position]] = columnsInSortOrder[position];
+        TupleStorage sorted = USE_COMPRESSED_COLUMNS ? CompressedColumnarStorage.encode(columns, sortOrder.clone()) :
+                new ColumnarStorage(columns, sortOrder.clone());
+        PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+        return sorted;
+    }
+}
@@ -0,0 +1,157 @@
+package org.candidate697229.structures;
+
+import org.candidate697229.util.PhaseTimer;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Trie index over sorted tuples, laid out level by level in the style of compressed sparse rows. Each node at level d
+ * stands for a distinct prefix of the first d + 1 attributes the tuples are sorted on, and for each level there are
+ * three arrays indexed by node:
+ * - the key of the node (the value of attribute d in its prefix),
+ * - the position of the node's first child in the next level (with one extra entry at the end, and not stored for the
+ * last level), and
+ * - the position of the node's first tuple (with one extra entry at the end).
+ * The children and tuples of node n at level d are then the ranges from entry n to entry n + 1 of these arrays, so
+ * moving around the trie is a matter of array lookups.
+ *
+ * Only the first few levels that a join actually opens need to be indexed, below that tuples are visited directly.
+ */
+public class TrieIndex {
+    private static final Map<TupleStorage, TrieIndex> cache = new WeakHashMap<>();
+
+    private final long[][] keys;
+    private final int[][] childStarts;
+    private final int[][] rowStarts;
+
+    /**
+     * Build a trie index.
+     * @param tuples the tuples to index, which must be sorted
+     * @param levels the number of leading attributes to index
+     */
+    private TrieIndex(TupleStorage tuples, int levels) {
+        keys = new long[levels][];
+        childStarts = new int[levels][];
+        rowStarts = new int[levels][];
+
+        int[] numOfNodes = new int[levels];
+        for (int row = 0; row < tuples.size(); ++row) {
+            for (int d = firstDifference(tuples, row, levels); d < levels; ++d)
+                numOfNodes[d]++;
+        }
+        for (int d = 0; d < levels; ++d) {
+            keys[d] = new long[numOfNodes[d]];
+            childStarts[d] = d + 1 < levels ? new int[numOfNodes[d] + 1] : null;
+            rowStarts[d] = new int[numOfNodes[d] + 1];
+        }
+
+        int[] node = new int[levels];
+        for (int row = 0; row < tuples.size(); ++row) {
+            for (int d = firstDifference(tuples, row, levels); d < levels; ++d) {
+                keys[d][node[d]] = tuples.get(row, tuples.sortColumn(d));
+                rowStarts[d][node[d]] = row;
+                if (d + 1 < levels)
+                    childStarts[d][node[d]] = node[d + 1];
+                node[d]++;
+            }
+        }
+        for (int d = 0; d < levels; ++d) {
+            rowStarts[d][numOfNodes[d]] = tuples.size();
+            if (d + 1 < levels)
+                childStarts[d][numOfNodes[d]] = numOfNodes[d + 1];
+        }
+    }
+
+    /**
+     * Get a trie index over some tuples, building it the first time and then reusing it for as long as the tuples
+     * are in use.
+     * @param tuples the tuples to index, which must be sorted
+     * @param levels the number of leading attributes that need to be indexed
+     * @return a trie index over at least that many levels
+     */
+    public static synchronized TrieIndex of(TupleStorage tuples, int levels) {
+        TrieIndex index = cache.get(tuples);
+        if (index == null || index.getLevels() < levels) {
+            long start = PhaseTimer.start();
+            index = new TrieIndex(tuples, levels);
+            PhaseTimer.stop(PhaseTimer.Phase.INDEX, start);
+            cache.put(tuples, index);
+        }
+        return index;
+    }
+
+    /**
+     * Find the first level at which a tuple differs from the tuple before it.
+     * @param tuples the tuples being indexed
+     * @param row the position of the tuple
+     * @param levels the number of levels being indexed
+     * @return the first attribute that differs, 0 for the first tuple, or levels if the indexed attributes are all equal
+     */
+    private static int firstDifference(TupleStorage tuples, int row, int levels) {
+        if (row == 0)
+            return 0;
+        for (int d = 0; d < levels; ++d) {
+            int column = tuples.sortColumn(d);
+            if (tuples.get(row, column) != tuples.get(row - 1, column))
+                return d;
+        }
+        return levels;
+    }
+
+    /**
+     * Get the number of levels indexed.
+     * @return the number of leading attributes indexed
+     */
+    public int getLevels() {
+        return keys.length;
+    }
+
+    /**
+     * Get the number of nodes at a level.
+     * @param level the level
+     * @return the number of distinct prefixes of that length
+     */
+    int numberOfNodes(int level) {
+        return keys[level].length;
+    }
+
+    /**
+     * Get the key of a node.
+     * @param level the level of the node
+     * @param node the position of the node within its level
+     * @return the value of the last attribute in the node's prefix
+     */
+    long key(int level, int node) {
+        return keys[level][node];
+    }
+
+    /**
+     * Get the keys of all nodes at a level, for searching.
+     * @param level the level
+     * @return the keys of the nodes, which must not be modified
+     */
+    long[] keys(int level) {
+        return keys[level];
+    }
+
+    /**
+     * Get the position of the first child of a node (or the position after the last child of the node before it).
+     * @param level the level of the node, which must not be the last level
+     * @param node the position of the node within its level, or the number of nodes at the level
+     * @return the position of the child in the next level
+     */
+    int childStart(int level, int node) {
+        return childStarts[level][node];
+    }
+
+    /**
+     * Get the position of the first tuple of a node (or the position after the last tuple of the node before it).
+     * @param level the level of the node
+     * @param node the position of the node within its level, or the number of nodes at the level
+     * @return the position of the tuple
+     */
+    int rowStart(int level, int node) {
+        return rowStarts[level][node];
+    }
+}
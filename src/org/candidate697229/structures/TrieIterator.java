@@ -0,0 +1,188 @@
+package org.candidate697229.structures;
+
+import static org.candidate697229.util.Configuration.COLLECT_JOIN_STATISTICS;
+
+/**
+ * Implementation of a data Iterator that moves around a trie index over the data, so that opening a level, moving to
+ * the next key and finding the end of a block are all constant time, and seeking is a search over distinct keys only.
+ */
+public class TrieIterator implements Iterator {
+    private final TupleStorage tuples;
+    private final TrieIndex index;
+    private final int rootFrom;
+    private final int rootTo;
+    private final int firstRow;
+    private final int[] nodes;
+    private final int[] viewEnds;
+    private int depth = -1;
+    private int row;
+    private boolean atEnd = false;
+    private long skippedTuples;
+
+    /**
+     * Construct a new trie iterator over a range of the tuples. The range must start and end on a change of the first
+     * attribute, ie. it must consist of whole nodes of the first level of the index.
+     *
+     * @param tuples the tuples to iterate over, which must be sorted
+     * @param index a trie index over the tuples, covering every level the iterator will be opened to
+     * @param from the position of the first tuple to iterate over
+     * @param to the position after the last tuple to iterate over
+     */
+    public TrieIterator(TupleStorage tuples, TrieIndex index, int from, int to) {
+        this.tuples = tuples;
+        this.index = index;
+        this.rootFrom = findRootNode(index, from);
+        this.rootTo = findRootNode(index, to);
+        this.firstRow = from;
+        this.nodes = new int[index.getLevels()];
+        this.viewEnds = new int[index.getLevels()];
+        this.row = from;
+    }
+
+    /**
+     * Binary search for the first node at the first level starting at or after a tuple.
+     * @param index the trie index
+     * @param row the position of the tuple
+     * @return the position of the node in the first level
+     */
+    private static int findRootNode(TrieIndex index, int row) {
+        int low = 0;
+        int high = index.numberOfNodes(0);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (index.rowStart(0, middle) < row)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    @Override
+    public boolean atEnd() {
+        return atEnd;
+    }
+
+    @Override
+    public long key() {
+        return index.key(depth, nodes[depth]);
+    }
+
+    @Override
+    public void seek(long x) {
+        if (atEnd)
+            return;
+        long[] keys = index.keys(depth);
+        int low = nodes[depth];
+        if (keys[low] >= x)
+            return;
+
+        /*
+         * Gallop then binary search, keeping keys[low] < x and either high at the end of the view or keys[high] >= x.
+         */
+        int end = viewEnds[depth];
+        long step = 1;
+        int high = low + 1;
+        while (high < end && keys[high] < x) {
+            low = high;
+            step <<= 1;
+            high = (int) Math.min(low + step, end);
+        }
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < x)
+                low = middle;
+            else
+                high = middle;
+        }
+
+        int start = row;
+        if (high < end)
+            moveTo(high);
+        else {
+            moveTo(end - 1);
+            atEnd = true;
+        }
+        if (COLLECT_JOIN_STATISTICS)
+            skippedTuples += row - start;
+    }
+
+    @Override
+    public boolean isNextInBlock() {
+        return row + 1 < index.rowStart(depth, nodes[depth] + 1);
+    }
+
+    @Override
+    public void nextInBlock() {
+        row++;
+    }
+
+    @Override
+    public void back(int numOfValues) {
+        row -= numOfValues;
+        atEnd = false;
+    }
+
+    @Override
+    public void next() {
+        if (nodes[depth] + 1 < viewEnds[depth])
+            moveTo(nodes[depth] + 1);
+        else
+            atEnd = true;
+    }
+
+    @Override
+    public long value(int attribute) {
+        return tuples.get(row, attribute);
+    }
+
+    @Override
+    public int row() {
+        return row;
+    }
+
+    @Override
+    public void open() {
+        assert (!atEnd);
+        depth++;
+        int start = depth == 0 ? rootFrom : index.childStart(depth - 1, nodes[depth - 1]);
+        int end = depth == 0 ? rootTo : index.childStart(depth - 1, nodes[depth - 1] + 1);
+        viewEnds[depth] = end;
+        nodes[depth] = start;
+        if (start < end)
+            row = index.rowStart(depth, start);
+        else
+            atEnd = true;
+    }
+
+    @Override
+    public void up() {
+        depth--;
+        atEnd = false;
+        if (depth >= 0)
+            row = index.rowStart(depth, nodes[depth]);
+    }
+
+    @Override
+    public void reset() {
+        depth = -1;
+        row = firstRow;
+        atEnd = false;
+    }
+
+    @Override
+    public long takeSkippedTuples() {
+        long skipped = skippedTuples;
+        skippedTuples = 0;
+        return skipped;
+    }
+
+    /**
+     * Move to a node at the current depth, and to its first tuple.
+     * @param node the position of the node within the current level
+     */
+    private void moveTo(int node) {
+        nodes[depth] = node;
+        row = index.rowStart(depth, node);
+    }
+}
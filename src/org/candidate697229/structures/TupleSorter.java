@@ -0,0 +1,114 @@
+package org.candidate697229.structures;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Sorter for tuples held in columns, ordering rows lexicographically by their attributes.
+ *
+ * Rows are sorted with a least significant digit radix sort over a permutation of the rows: the columns are visited
+ * from last to first, and each is stably counting sorted on a few bits at a time. Only the bits that actually vary in a
+ * column (after subtracting its minimum) are looked at, so the small ranges found in most attributes cost a single pass
+ * and constant columns cost nothing. Input that is already sorted, as is usual for .tbl files, is detected up front and
+ * left alone.
+ */
+public class TupleSorter {
+    /**
+     * The number of bits sorted on by each counting sort pass.
+     */
+    private static final int RADIX_BITS = 11;
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private TupleSorter() {
+    }
+
+    /**
+     * Sort the rows held in a set of columns lexicographically.
+     * @param columns the values of each attribute, as a two-dimensional array of attributes then rows, which are
+     *                reordered in place
+     */
+    public static void sort(long[][] columns) {
+        if (columns.length == 0 || isSorted(columns))
+            return;
+        int[] order = sortedOrder(columns);
+        IntStream.range(0, columns.length).parallel().forEach(j -> {
+            long[] column = columns[j];
+            long[] sorted = new long[column.length];
+            for (int i = 0; i < sorted.length; ++i)
+                sorted[i] = column[order[i]];
+            columns[j] = sorted;
+        });
+    }
+
+    /**
+     * Check if the rows held in a set of columns are already sorted lexicographically.
+     * @param columns the columns to check
+     * @return true if every row is less than or equal to the row after it
+     */
+    private static boolean isSorted(long[][] columns) {
+        for (int i = 1; i < columns[0].length; ++i) {
+            for (long[] column : columns) {
+                if (column[i - 1] < column[i])
+                    break;
+                if (column[i - 1] > column[i])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the order in which the rows should appear to be sorted.
+     * @param columns the columns to sort by
+     * @return a permutation of the rows, giving the position of the row that should appear at each position
+     */
+    private static int[] sortedOrder(long[][] columns) {
+        int size = columns[0].length;
+        int[] order = new int[size];
+        int[] buffer = new int[size];
+        int[] counts = new int[1 << RADIX_BITS];
+        for (int i = 0; i < size; ++i)
+            order[i] = i;
+
+        for (int j = columns.length - 1; j >= 0; --j) {
+            long[] column = columns[j];
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long value : column) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            int bits = 64 - Long.numberOfLeadingZeros(max - min);
+
+            for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < size; ++i)
+                    counts[digit(column[order[i]], min, shift)]++;
+                for (int d = 0, total = 0; d < counts.length; ++d) {
+                    int count = counts[d];
+                    counts[d] = total;
+                    total += count;
+                }
+                for (int i = 0; i < size; ++i)
+                    buffer[counts[digit(column[order[i]], min, shift)]++] = order[i];
+                int[] swap = order;
+                order = buffer;
+                buffer = swap;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Extract the digit of a value that a counting sort pass sorts on.
+     * @param value the value to extract from
+     * @param min the minimum value in the column, which is subtracted first so that only varying bits remain
+     * @param shift the position of the lowest bit of the digit
+     * @return the digit
+     */
+    private static int digit(long value, long min, int shift) {
+        return (int) (((value - min) >>> shift) & ((1 << RADIX_BITS) - 1));
+    }
+}
@@ -0,0 +1,78 @@
+package org.candidate697229.structures;
+
+/**
+ * Interface for the storage engine holding the tuples of a relation, with values addressed by row and column so that
+ * the layout in memory is left to the implementation.
+ */
+public interface TupleStorage {
+    /**
+     * Get the number of tuples stored.
+     * @return the number of tuples
+     */
+    int size();
+
+    /**
+     * Get the number of attributes in each tuple.
+     * @return the number of attributes per tuple
+     */
+    int arity();
+
+    /**
+     * Get a single value.
+     * @param row the position of the tuple
+     * @param column the position of the attribute within the tuple
+     * @return the value of the attribute in the tuple
+     */
+    long get(int row, int column);
+
+    /**
+     * Get the array this storage keeps the values of an attribute in, indexed by row, so that a scan can index it
+     * directly rather than calling get for every value. Storage that keeps the attribute in some other layout returns
+     * null, and is read through copyColumn a block of rows at a time instead (see ColumnBlocks), so an attribute is
+     * never decoded onto the heap in full just to be read.
+     * @param column the position of the attribute within the tuple
+     * @return the value of the attribute in each tuple (at least size() of them), which must not be modified, or null
+     *          if the storage does not keep the attribute in an array
+     */
+    default long[] column(int column) {
+        return null;
+    }
+
+    /**
+     * Copy the values of an attribute on a run of rows into an array, so that a scan over the tuples can decode them a
+     * block of rows at a time into an array it reuses, rather than calling get for every value.
+     * @param column the position of the attribute within the tuple
+     * @param from the position of the first tuple to copy
+     * @param length the number of tuples to copy
+     * @param values the array to put the value of the attribute in each tuple in, from its start
+     */
+    default void copyColumn(int column, int from, int length, long[] values) {
+        for (int i = 0; i < length; ++i)
+            values[i] = get(from + i, column);
+    }
+
+    /**
+     * Get the column at a position in the order the tuples are sorted lexicographically on. Unless the storage says
+     * otherwise, the tuples are sorted on their columns in order.
+     * @param position the position in the sort order
+     * @return the column at that position
+     */
+    default int sortColumn(int position) {
+        return position;
+    }
+
+    /**
+     * Check if the tuples are too many to be copied onto the heap, and so are only ever read where they are kept.
+     * Such tuples cannot be sorted in another order (see SortedPermutations) or indexed on the heap (see TrieIndex).
+     * @return true if the tuples are held out of core
+     */
+    default boolean isOutOfCore() {
+        return false;
+    }
+
+    /**
+     * Estimate how much heap memory the stored tuples take up, not counting memory held outside the heap.
+     * @return the estimated number of bytes of heap used
+     */
+    long estimatedHeapBytes();
+}
@@ -34,6 +34,134 @@ public class Configuration {
      */
     public static final int REPEATS_PER_SCALE = 4;
 
+    /**
+     * The path, without its extension, of the CSV and JSON files the benchmarker writes the detailed measurements of
+     * each query to (the percentiles of each phase, the bytes allocated and the time spent in garbage collection).
+     */
+    public static final String BENCHMARK_RESULTS_FILE = "benchmark-results";
+
+    /**
+     * Set to true to have iterators seek by galloping (exponential search followed by binary search) over the current
+     * view, giving logarithmic seeks. Set to false to seek by repeatedly advancing to the next key.
+     */
+    public static final boolean USE_GALLOPING_SEEK = true;
+
+    /**
+     * Set to true to join relations through a trie index built over them, so that moving between keys and blocks of
+     * tuples takes constant time. Set to false to walk the sorted tuples directly.
+     */
+    public static final boolean USE_TRIE_INDEX = true;
+
+    /**
+     * Set to true to store the tuples of each relation column by column, with one contiguous array per attribute. Set
+     * to false to store them row by row in a single flat array. This only applies to relations parsed from their .tbl
+     * files. Relations loaded from a snapshot stay in columns whatever this is set to (mapped from the snapshot, or
+     * compressed if compressed columns are enabled), and per-key aggregates are always held in columns.
+     */
+    public static final boolean USE_COLUMNAR_STORAGE = true;
+
+    /**
+     * Set to true to hold the tuples of each relation on the heap in compressed columns, each encoded by whichever of
+     * bit-packing, narrow arrays, a dictionary or deltas from the start of each block takes the least memory for its
+     * values. This also applies to relations loaded from snapshots (other than those read out of core), which are
+     * copied from the mapped file into compressed columns, and to sorted copies. Per-key aggregates are left
+     * uncompressed, as AggTwo reads whole rows of them for every key and the decoding would cost more than it saves.
+     * Joins and scans over a relation decode the attributes they read a block of rows at a time (see ColumnBlocks),
+     * so no attribute is ever decoded onto the heap in full, and no value is decoded on its own in an inner loop.
+     * Joins through a trie index find their keys in the index rather than decoding them.
+     * Set to false to keep every value in a long.
+     */
+    public static final boolean USE_COMPRESSED_COLUMNS = true;
+
+    /**
+     * Set to true to keep a sorted binary snapshot next to each .tbl file, which is memory-mapped on later loads instead
+     * of parsing and sorting the text file again. Snapshots are rebuilt automatically once their .tbl file changes length
+     * or modification time.
+     */
+    public static final boolean USE_SNAPSHOTS = true;
+
+    /**
+     * Set to true to run AggOne and AggTwo in parallel, by splitting the domain of the first join variable into key
+     * ranges that are joined independently on the common fork/join pool, and AggThree in parallel by computing the
+     * subtrees below each relation of the join tree independently. Set to false to run them on a single thread.
+     */
+    public static final boolean USE_PARALLEL_EXECUTION = true;
+
+    /**
+     * The number of rows (summed over the relations containing the first join variable) below which a key range is
+     * joined on a single thread rather than split any further.
+     */
+    public static final int PARALLEL_GRAIN_SIZE = 1 << 14;
+
+    /**
+     * Set to true to choose the order of the join variables by estimating the cost of the leapfrog triejoin for every
+     * valid order from statistics about the relations, rather than by the positions of the join attributes alone.
+     */
+    public static final boolean USE_COST_BASED_JOIN_ORDER = true;
+
+    /**
+     * Set to true to join each relation through a copy of its tuples sorted on its join attributes in the order they
+     * are joined in, built the first time that order is needed and kept with the relation, so that the join variables
+     * can be joined in any order rather than only in the order of the positions of the attributes.
+     */
+    public static final boolean USE_SORTED_PERMUTATIONS = true;
+
+    /**
+     * Set to true to have AggTwo and AggThree join the per-key aggregates of each relation (its COUNT, SUMs and
+     * pairwise product SUMs for each join key, computed once and kept with the relation) instead of recomputing them for
+     * every query.
+     */
+    public static final boolean USE_KEY_AGGREGATES = true;
+
+    /**
+     * Set to true to compute the COUNT, SUMs and pairwise product SUMs of a block of tuples a block at a time, over
+     * the block held column by column, so the sums vectorize and are only checked for overflow once per block when the
+     * values are small enough. Set to false to add each tuple to the sums in turn, checking every operation.
+     */
+    public static final boolean USE_PRODUCT_SUM_BLOCKS = true;
+
+    /**
+     * Set to true to have AggOne and AggTwo generate a kernel for each query, with the instructions for its aggregates
+     * turned into straight-line Java source and compiled at runtime. Set to false to interpret the instructions on
+     * every result of the join. Kernels are never generated when running on a JRE without a Java compiler.
+     */
+    public static final boolean USE_GENERATED_KERNELS = true;
+
+    /**
+     * The number of times a query of the same shape has to be run for a kernel to be generated for it, which must be at
+     * least 1. Until then, and while the kernel is compiled on a background thread, its instructions are interpreted,
+     * so queries run only a few times never wait for the compiler.
+     */
+    public static final int KERNEL_COMPILE_THRESHOLD = 2;
+
+    /**
+     * Set to true to store the per-key aggregates of each relation in a snapshot next to its .tbl file, so that they are
+     * computed once per database directory rather than once per load.
+     */
+    public static final boolean PERSIST_KEY_AGGREGATES = true;
+
+    /**
+     * The size in bytes above which a .tbl file is read out of core: sorted into its snapshot by an external merge sort
+     * in runs of at most this many bytes, with its tuples (and per-key aggregates) then mapped from snapshots page by
+     * page rather than held on the heap. Sorting a run takes a few times its size in heap.
+     */
+    public static final long EXTERNAL_SORT_RUN_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+    /**
+     * Set to true to count what every leapfrog triejoin does: the seeks, moves to the next key and opens each unary
+     * join makes, the tuples skipped by seeking, the results of the join and the tuples AggOne enumerates from them.
+     * The counts are exposed over JMX as org.candidate697229:type=JoinStatistics (registered when the first join
+     * starts), and each join is recorded as an org.candidate697229.LeapfrogTriejoin flight recorder event. Set to false
+     * to compile the counting out of the joins altogether.
+     */
+    public static final boolean COLLECT_JOIN_STATISTICS = false;
+
+    /**
+     * How many bytes of heap the databases kept in the shared database catalog may take up before the least recently
+     * used ones are dropped.
+     */
+    public static final long CATALOG_HEAP_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
     /**
      * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static variables).
      */
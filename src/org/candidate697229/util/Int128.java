@@ -0,0 +1,424 @@
+package org.candidate697229.util;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Class that provides static methods for exact arithmetic on signed 128-bit integers, for accumulating aggregates that
+ * could overflow a long. To avoid allocating on the hot path, values are not objects: a long[] holds any number of
+ * them as pairs of longs, with the high 64 bits of value i at position 2i and the low 64 bits at position 2i+1.
+ * Every operation either gives the exact result or throws an ArithmeticException if it does not fit in 128 bits.
+ *
+ * Almost every sum fits in a long all along, so a loop adding up many values can instead accumulate each sum in a long
+ * with accumulate and accumulateProduct, which only spill into a 128-bit value when a checked long operation
+ * overflows, and add the two together with addAccumulated at the end.
+ */
+public class Int128 {
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private Int128() {
+    }
+
+    /**
+     * Make an array holding some number of 128-bit values, all zero.
+     * @param size the number of values
+     * @return the array holding the values
+     */
+    public static long[] newArray(int size) {
+        return new long[2 * size];
+    }
+
+    /**
+     * Get the number of 128-bit values an array holds.
+     * @param values the array holding the values
+     * @return the number of values
+     */
+    public static int size(long[] values) {
+        return values.length / 2;
+    }
+
+    /**
+     * Set a 128-bit value to a long.
+     * @param values the array holding the values
+     * @param index the index of the value to set
+     * @param value the long to set it to
+     */
+    public static void set(long[] values, int index, long value) {
+        values[2 * index] = value >> 63;
+        values[2 * index + 1] = value;
+    }
+
+    /**
+     * Set a 128-bit value from its two halves.
+     * @param values the array holding the values
+     * @param index the index of the value to set
+     * @param high the high 64 bits of the value
+     * @param low the low 64 bits of the value
+     */
+    public static void set(long[] values, int index, long high, long low) {
+        values[2 * index] = high;
+        values[2 * index + 1] = low;
+    }
+
+    /**
+     * Set a 128-bit value to another.
+     * @param values the array holding the values
+     * @param index the index of the value to set
+     * @param other the array holding the value to copy
+     * @param otherIndex the index of the value to copy
+     */
+    public static void set(long[] values, int index, long[] other, int otherIndex) {
+        values[2 * index] = other[2 * otherIndex];
+        values[2 * index + 1] = other[2 * otherIndex + 1];
+    }
+
+    /**
+     * Add a long to a 128-bit value.
+     * @param values the array holding the values
+     * @param index the index of the value to add to
+     * @param value the long to add
+     */
+    public static void add(long[] values, int index, long value) {
+        add(values, index, value >> 63, value);
+    }
+
+    /**
+     * Add one 128-bit value to another.
+     * @param values the array holding the values
+     * @param index the index of the value to add to
+     * @param other the array holding the value to add
+     * @param otherIndex the index of the value to add
+     */
+    public static void add(long[] values, int index, long[] other, int otherIndex) {
+        add(values, index, other[2 * otherIndex], other[2 * otherIndex + 1]);
+    }
+
+    /**
+     * Add every 128-bit value in one array to the value at the same index in another.
+     * @param values the array holding the values to add to
+     * @param other the array holding the values to add, of the same size
+     */
+    public static void addAll(long[] values, long[] other) {
+        for (int i = 0; i < size(values); ++i)
+            add(values, i, other, i);
+    }
+
+    /**
+     * Take every 128-bit value in one array away from the value at the same index in another.
+     * @param values the array holding the values to take away from
+     * @param other the array holding the values to take away, of the same size
+     */
+    public static void subtractAll(long[] values, long[] other) {
+        for (int i = 0; i < size(values); ++i) {
+            long high = other[2 * i];
+            long low = other[2 * i + 1];
+            if (high == Long.MIN_VALUE && low == 0) {
+                /*
+                 * Taking away -2^127, whose negation does not fit, is adding 2^127, which only fits for a negative
+                 * value and then just flips the sign bit of the high half.
+                 */
+                if (values[2 * i] >= 0)
+                    throw new ArithmeticException("128-bit integer overflow");
+                values[2 * i] ^= Long.MIN_VALUE;
+                continue;
+            }
+            add(values, i, low == 0 ? -high : ~high, -low);
+        }
+    }
+
+    /**
+     * Add a long to a sum accumulated in a long, spilling the sum into a 128-bit value if the addition overflows.
+     * @param sums the array holding the sums accumulated in longs
+     * @param values the array holding the 128-bit value each sum spills into
+     * @param index the index of the sum to add to
+     * @param value the long to add
+     */
+    public static void accumulate(long[] sums, long[] values, int index, long value) {
+        try {
+            sums[index] = Math.addExact(sums[index], value);
+        } catch (ArithmeticException e) {
+            spill(sums, values, index, value >> 63, value);
+        }
+    }
+
+    /**
+     * Add the product of two longs to a sum accumulated in a long, spilling the sum into a 128-bit value if the
+     * multiplication or the addition overflows.
+     * @param sums the array holding the sums accumulated in longs
+     * @param values the array holding the 128-bit value each sum spills into
+     * @param index the index of the sum to add to
+     * @param x the first factor
+     * @param y the second factor
+     */
+    public static void accumulateProduct(long[] sums, long[] values, int index, long x, long y) {
+        try {
+            sums[index] = Math.addExact(sums[index], Math.multiplyExact(x, y));
+        } catch (ArithmeticException e) {
+            spill(sums, values, index, Math.multiplyHigh(x, y), x * y);
+        }
+    }
+
+    /**
+     * Add the product of three longs to a sum accumulated in a long, spilling the sum into a 128-bit value if a
+     * multiplication or the addition overflows.
+     * @param sums the array holding the sums accumulated in longs
+     * @param values the array holding the 128-bit value each sum spills into
+     * @param index the index of the sum to add to
+     * @param x the first factor
+     * @param y the second factor
+     * @param z the third factor
+     */
+    public static void accumulateProduct(long[] sums, long[] values, int index, long x, long y, long z) {
+        try {
+            sums[index] = Math.addExact(sums[index], Math.multiplyExact(Math.multiplyExact(x, y), z));
+        } catch (ArithmeticException e) {
+            spill(sums, values, index, 0, 0);
+            addProduct(values, index, x, y, z);
+        }
+    }
+
+    /**
+     * Add sums accumulated by accumulate and accumulateProduct, along with what they spilled, to a run of 128-bit
+     * values, then set the sums and what they spilled back to zero.
+     * @param target the array holding the values to add to
+     * @param index the index of the value to add the first sum to
+     * @param sums the array holding the sums accumulated in longs
+     * @param values the array holding the 128-bit value each sum spilled into
+     */
+    public static void addAccumulated(long[] target, int index, long[] sums, long[] values) {
+        for (int i = 0; i < sums.length; ++i) {
+            add(target, index + i, values, i);
+            add(target, index + i, sums[i]);
+        }
+        Arrays.fill(sums, 0);
+        Arrays.fill(values, 0);
+    }
+
+    /**
+     * Add the product of two longs to a 128-bit value. The product always fits in 128 bits, so only the sum can
+     * overflow.
+     * @param values the array holding the values
+     * @param index the index of the value to add to
+     * @param x the first factor
+     * @param y the second factor
+     */
+    public static void addProduct(long[] values, int index, long x, long y) {
+        add(values, index, Math.multiplyHigh(x, y), x * y);
+    }
+
+    /**
+     * Add the product of three longs to a 128-bit value.
+     * @param values the array holding the values
+     * @param index the index of the value to add to
+     * @param x the first factor
+     * @param y the second factor
+     * @param z the third factor
+     */
+    public static void addProduct(long[] values, int index, long x, long y, long z) {
+        if (isSmallProduct(x, y)) {
+            addProduct(values, index, x * y, z);
+            return;
+        }
+
+        /*
+         * Work out the product in place of the value, keeping the value to add it back to, so nothing is allocated.
+         */
+        long high = values[2 * index];
+        long low = values[2 * index + 1];
+        try {
+            set(values, index, Math.multiplyHigh(x, y), x * y);
+            multiply(values, index, z);
+            add(values, index, high, low);
+        } catch (ArithmeticException e) {
+            /*
+             * The product or the sum does not fit in 128 bits, but when the product is 2^127 the sum still does for a
+             * negative value, which is rare enough to leave to BigInteger.
+             */
+            set(values, index, high, low);
+            setExact(values, index, toBigInteger(values, index)
+                    .add(BigInteger.valueOf(x).multiply(BigInteger.valueOf(y)).multiply(BigInteger.valueOf(z))));
+        }
+    }
+
+    /**
+     * Multiply a 128-bit value by a long.
+     * @param values the array holding the values
+     * @param index the index of the value to multiply
+     * @param factor the long to multiply by
+     */
+    public static void multiply(long[] values, int index, long factor) {
+        long high = values[2 * index];
+        long low = values[2 * index + 1];
+
+        /*
+         * Most values fit in a long, so multiply those as longs as long as the product cannot overflow.
+         */
+        if (high == (low >> 63) && isSmallProduct(low, factor)) {
+            set(values, index, low * factor);
+            return;
+        }
+
+        /*
+         * Otherwise multiply the magnitudes as unsigned numbers, then put the sign back.
+         */
+        boolean isNegative = (high < 0) != (factor < 0);
+        if (high < 0) {
+            high = low == 0 ? -high : ~high;
+            low = -low;
+        }
+        long magnitudeOfFactor = Math.abs(factor);
+        long lowProductHigh = unsignedMultiplyHigh(low, magnitudeOfFactor);
+        long highProductHigh = unsignedMultiplyHigh(high, magnitudeOfFactor);
+        long productHigh = lowProductHigh + high * magnitudeOfFactor;
+        long productLow = low * magnitudeOfFactor;
+        if (highProductHigh != 0 || Long.compareUnsigned(productHigh, lowProductHigh) < 0 ||
+                (productHigh < 0 && !(isNegative && productHigh == Long.MIN_VALUE && productLow == 0)))
+            throw new ArithmeticException("128-bit integer overflow");
+        if (isNegative) {
+            productHigh = productLow == 0 ? -productHigh : ~productHigh;
+            productLow = -productLow;
+        }
+        values[2 * index] = productHigh;
+        values[2 * index + 1] = productLow;
+    }
+
+    /**
+     * Multiply a 128-bit value by another.
+     * @param values the array holding the values
+     * @param index the index of the value to multiply
+     * @param other the array holding the value to multiply by
+     * @param otherIndex the index of the value to multiply by
+     */
+    public static void multiply(long[] values, int index, long[] other, int otherIndex) {
+        /*
+         * Most values fit in a long, in which case this is the same as multiplying by a long.
+         */
+        if (fitsInLong(other, otherIndex)) {
+            multiply(values, index, other[2 * otherIndex + 1]);
+            return;
+        }
+        if (fitsInLong(values, index)) {
+            long factor = values[2 * index + 1];
+            set(values, index, other, otherIndex);
+            multiply(values, index, factor);
+            return;
+        }
+
+        /*
+         * Otherwise both magnitudes are at least 2^63, so the product is too large for 128 bits in all but a few cases,
+         * which are rare enough to leave to BigInteger.
+         */
+        setExact(values, index, toBigInteger(values, index).multiply(toBigInteger(other, otherIndex)));
+    }
+
+    /**
+     * Check if a 128-bit value fits in a long.
+     * @param values the array holding the values
+     * @param index the index of the value
+     * @return true if the value is between Long.MIN_VALUE and Long.MAX_VALUE
+     */
+    public static boolean fitsInLong(long[] values, int index) {
+        return values[2 * index] == (values[2 * index + 1] >> 63);
+    }
+
+    /**
+     * Get a 128-bit value as a long.
+     * @param values the array holding the values
+     * @param index the index of the value
+     * @return the value
+     * @throws ArithmeticException if the value does not fit in a long
+     */
+    public static long longValueExact(long[] values, int index) {
+        if (!fitsInLong(values, index))
+            throw new ArithmeticException("128-bit integer " + toBigInteger(values, index) + " does not fit in a long");
+        return values[2 * index + 1];
+    }
+
+    /**
+     * Get a 128-bit value as a BigInteger, for printing or passing on rather than for arithmetic.
+     * @param values the array holding the values
+     * @param index the index of the value
+     * @return the value
+     */
+    public static BigInteger toBigInteger(long[] values, int index) {
+        return BigInteger.valueOf(values[2 * index]).shiftLeft(64)
+                .add(BigInteger.valueOf(values[2 * index + 1] >>> 1).shiftLeft(1))
+                .add(BigInteger.valueOf(values[2 * index + 1] & 1));
+    }
+
+    /**
+     * Set a 128-bit value to a BigInteger.
+     * @param values the array holding the values
+     * @param index the index of the value to set
+     * @param value the BigInteger to set it to
+     * @throws ArithmeticException if the BigInteger does not fit in 128 bits
+     */
+    private static void setExact(long[] values, int index, BigInteger value) {
+        if (value.bitLength() > 127)
+            throw new ArithmeticException("128-bit integer overflow");
+        values[2 * index] = value.shiftRight(64).longValue();
+        values[2 * index + 1] = value.longValue();
+    }
+
+    /**
+     * Compute the high 64 bits of the unsigned 128-bit product of two longs treated as unsigned.
+     * @param x the first factor
+     * @param y the second factor
+     * @return the high 64 bits of the product
+     */
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+
+    /**
+     * Move a sum accumulated in a long, along with a value that would have overflowed it, into the 128-bit value it
+     * spills into, setting the sum back to zero. The two are added together first, which cannot overflow, so that the
+     * 128-bit value only changes once.
+     * @param sums the array holding the sums accumulated in longs
+     * @param values the array holding the 128-bit value each sum spills into
+     * @param index the index of the sum
+     * @param high the high 64 bits of the value being added, which must be at most 2^126 in magnitude
+     * @param low the low 64 bits of the value being added
+     */
+    private static void spill(long[] sums, long[] values, int index, long high, long low) {
+        long sum = sums[index];
+        long newLow = low + sum;
+        add(values, index, high + (sum >> 63) + (Long.compareUnsigned(newLow, low) < 0 ? 1 : 0), newLow);
+        sums[index] = 0;
+    }
+
+    /**
+     * Add a 128-bit value, given as its two halves, to another.
+     * @param values the array holding the values
+     * @param index the index of the value to add to
+     * @param high the high 64 bits of the value to add
+     * @param low the low 64 bits of the value to add
+     */
+    private static void add(long[] values, int index, long high, long low) {
+        long oldHigh = values[2 * index];
+        long oldLow = values[2 * index + 1];
+        long newLow = oldLow + low;
+        long newHigh = oldHigh + high + (Long.compareUnsigned(newLow, oldLow) < 0 ? 1 : 0);
+
+        /*
+         * Adding the carry can never overflow when the high halves have different signs, so the sum only overflows
+         * when both have the same sign and the result does not.
+         */
+        if (((oldHigh ^ newHigh) & (high ^ newHigh)) < 0)
+            throw new ArithmeticException("128-bit integer overflow");
+        values[2 * index] = newHigh;
+        values[2 * index + 1] = newLow;
+    }
+
+    /**
+     * Check cheaply if the product of two longs certainly fits in a long, which is when their magnitudes have at most
+     * 63 significant bits between them.
+     * @param x the first factor
+     * @param y the second factor
+     * @return true if the product is known to fit in a long
+     */
+    private static boolean isSmallProduct(long x, long y) {
+        return Long.numberOfLeadingZeros(Math.abs(x)) + Long.numberOfLeadingZeros(Math.abs(y)) >= 65;
+    }
+}
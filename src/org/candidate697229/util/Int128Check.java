@@ -0,0 +1,198 @@
+package org.candidate697229.util;
+
+import java.math.BigInteger;
+import java.util.function.Consumer;
+
+/**
+ * Check of the exact arithmetic of Int128 against BigInteger, at the values where it is most likely to go wrong: the
+ * ends of the range of a long (including Long.MIN_VALUE, whose magnitude does not fit in a long), sums that carry into
+ * or borrow from the high 64 bits, negative products, and the ends of the 128-bit range. Every operation must either
+ * give the same result as BigInteger or, exactly when that result does not fit in 128 bits, throw an
+ * ArithmeticException.
+ *
+ * Run it after building the code with:
+ *
+ *     java org.candidate697229.util.Int128Check
+ *
+ * It prints each mismatch it finds, and exits with status 1 if there are any.
+ */
+public class Int128Check {
+    private static final BigInteger MIN_VALUE = BigInteger.ONE.shiftLeft(127).negate();
+    private static final BigInteger MAX_VALUE = BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE);
+
+    /**
+     * The longs to use as operands.
+     */
+    private static final long[] LONGS = {
+            0, 1, -1, 2, -2, 3, -3,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, 0xFFFFFFFFL, 1L << 32, -(1L << 32),
+            3037000499L, -3037000499L, 3037000500L, -3037000500L,
+            1L << 62, -(1L << 62), (1L << 62) - 1, (1L << 62) + 1,
+            Long.MAX_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE, Long.MIN_VALUE + 1
+    };
+
+    /**
+     * The 128-bit values to start from, each as its high and then its low 64 bits.
+     */
+    private static final long[][] VALUES = {
+            {0, 0}, {0, 1}, {-1, -1}, {0, -1}, {-1, 0}, {1, 0}, {0, Long.MAX_VALUE}, {-1, Long.MIN_VALUE},
+            {0, Long.MIN_VALUE}, {-1, Long.MAX_VALUE}, {1, -1}, {-2, 0},
+            {Long.MAX_VALUE, -1}, {Long.MAX_VALUE, -2}, {Long.MAX_VALUE, 0},
+            {Long.MIN_VALUE, 0}, {Long.MIN_VALUE, 1}, {Long.MIN_VALUE, -1}
+    };
+
+    private int checks;
+    private int failures;
+
+    /**
+     * Run every check.
+     * @param args the command line arguments, which are ignored
+     */
+    public static void main(String[] args) {
+        Int128Check check = new Int128Check();
+        check.checkAddition();
+        check.checkMultiplication();
+        check.checkAccumulation();
+        System.out.println(check.checks + " checks, " + check.failures + " failures");
+        if (check.failures > 0)
+            System.exit(1);
+    }
+
+    /**
+     * Check adding longs, products of longs and other 128-bit values to 128-bit values, and taking them away.
+     */
+    private void checkAddition() {
+        for (long[] start : VALUES) {
+            BigInteger value = toBigInteger(start);
+            for (long x : LONGS) {
+                BigInteger bigX = BigInteger.valueOf(x);
+                check("add " + x, start, value.add(bigX), values -> Int128.add(values, 0, x));
+                for (long y : LONGS) {
+                    BigInteger xy = bigX.multiply(BigInteger.valueOf(y));
+                    check("addProduct " + x + " * " + y, start, value.add(xy),
+                            values -> Int128.addProduct(values, 0, x, y));
+                    for (long z : LONGS)
+                        check("addProduct " + x + " * " + y + " * " + z, start,
+                                value.add(xy.multiply(BigInteger.valueOf(z))),
+                                values -> Int128.addProduct(values, 0, x, y, z));
+                }
+            }
+            for (long[] other : VALUES) {
+                BigInteger otherValue = toBigInteger(other);
+                check("add " + otherValue, start, value.add(otherValue),
+                        values -> Int128.add(values, 0, new long[]{other[0], other[1]}, 0));
+                check("subtract " + otherValue, start, value.subtract(otherValue),
+                        values -> Int128.subtractAll(values, new long[]{other[0], other[1]}));
+            }
+        }
+    }
+
+    /**
+     * Check multiplying 128-bit values by longs and by other 128-bit values.
+     */
+    private void checkMultiplication() {
+        for (long[] start : VALUES) {
+            BigInteger value = toBigInteger(start);
+            for (long x : LONGS)
+                check("multiply by " + x, start, value.multiply(BigInteger.valueOf(x)),
+                        values -> Int128.multiply(values, 0, x));
+            for (long[] other : VALUES) {
+                BigInteger otherValue = toBigInteger(other);
+                check("multiply by " + otherValue, start, value.multiply(otherValue),
+                        values -> Int128.multiply(values, 0, new long[]{other[0], other[1]}, 0));
+            }
+        }
+    }
+
+    /**
+     * Check accumulating sums in longs that spill into 128-bit values, from a sum at each end of the range of a long.
+     */
+    private void checkAccumulation() {
+        for (long sum : LONGS) {
+            long[] start = {sum >> 63, sum};
+            BigInteger value = BigInteger.valueOf(sum);
+            for (long x : LONGS) {
+                BigInteger bigX = BigInteger.valueOf(x);
+                check("accumulate " + sum + " + " + x, start, value.add(bigX),
+                        values -> accumulated(values, (sums, spilled) -> Int128.accumulate(sums, spilled, 0, x)));
+                for (long y : LONGS) {
+                    BigInteger xy = bigX.multiply(BigInteger.valueOf(y));
+                    check("accumulateProduct " + sum + " + " + x + " * " + y, start, value.add(xy),
+                            values -> accumulated(values,
+                                    (sums, spilled) -> Int128.accumulateProduct(sums, spilled, 0, x, y)));
+                    for (long z : LONGS)
+                        check("accumulateProduct " + sum + " + " + x + " * " + y + " * " + z, start,
+                                value.add(xy.multiply(BigInteger.valueOf(z))),
+                                values -> accumulated(values,
+                                        (sums, spilled) -> Int128.accumulateProduct(sums, spilled, 0, x, y, z)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Interface for an operation on a sum accumulated in a long and the 128-bit value it spills into.
+     */
+    private interface Accumulation {
+        void apply(long[] sums, long[] spilled);
+    }
+
+    /**
+     * Carry out an accumulation starting from a sum held in a 128-bit value, which must fit in a long, and put the
+     * result back in the 128-bit value.
+     * @param values the array holding the sum
+     * @param accumulation the operation to carry out
+     */
+    private static void accumulated(long[] values, Accumulation accumulation) {
+        long[] sums = {Int128.longValueExact(values, 0)};
+        long[] spilled = Int128.newArray(1);
+        accumulation.apply(sums, spilled);
+        Int128.set(values, 0, 0);
+        Int128.addAccumulated(values, 0, sums, spilled);
+    }
+
+    /**
+     * Check a single operation on a 128-bit value.
+     * @param description what the operation does, for reporting a mismatch
+     * @param start the high and low 64 bits of the value to start from
+     * @param expected the exact result, which may not fit in 128 bits
+     * @param operation the operation to carry out on the value
+     */
+    private void check(String description, long[] start, BigInteger expected, Consumer<long[]> operation) {
+        checks++;
+        long[] values = {start[0], start[1]};
+        boolean fits = expected.compareTo(MIN_VALUE) >= 0 && expected.compareTo(MAX_VALUE) <= 0;
+        try {
+            operation.accept(values);
+        } catch (ArithmeticException e) {
+            if (fits)
+                fail(description, start, expected, "overflow");
+            return;
+        }
+        BigInteger actual = Int128.toBigInteger(values, 0);
+        if (!fits || !actual.equals(expected))
+            fail(description, start, expected, actual.toString());
+    }
+
+    /**
+     * Report a mismatch.
+     * @param description what the operation does
+     * @param start the high and low 64 bits of the value it started from
+     * @param expected the exact result
+     * @param actual what the operation gave instead
+     */
+    private void fail(String description, long[] start, BigInteger expected, String actual) {
+        failures++;
+        System.out.println(toBigInteger(start) + ": " + description + " gave " + actual + " instead of " +
+                (expected.compareTo(MIN_VALUE) >= 0 && expected.compareTo(MAX_VALUE) <= 0 ? expected : "overflow"));
+    }
+
+    /**
+     * Get a 128-bit value as a BigInteger.
+     * @param value the high and low 64 bits of the value
+     * @return the value
+     */
+    private static BigInteger toBigInteger(long[] value) {
+        return Int128.toBigInteger(value, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package org.candidate697229.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class that provides static methods for adding up the time spent in each phase of loading the relations and preparing
+ * them to be joined, so that benchmarks can tell which phase a change in the total time comes from. The times are
+ * summed over every thread, and only ever grow, so a phase's time over some work is the difference between readings
+ * taken before and after it.
+ */
+public class PhaseTimer {
+    /**
+     * The phases that are timed.
+     */
+    public enum Phase {
+        /**
+         * Parsing .tbl files into columns of values.
+         */
+        PARSE,
+
+        /**
+         * Sorting the tuples of relations as they are loaded, including merging the runs of an external sort.
+         */
+        SORT,
+
+        /**
+         * Opening snapshots and mapping their columns into memory, in place of parsing and sorting.
+         */
+        SNAPSHOT,
+
+        /**
+         * Encoding the tuples of relations into compressed columns as they are loaded.
+         */
+        ENCODE,
+
+        /**
+         * Building the structures the joins go through: trie indexes, sorted copies and per-key aggregates.
+         */
+        INDEX
+    }
+
+    private static final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * Private constructor to ensure class cannot be accidentally instantiated (it is intended only to use static methods).
+     */
+    private PhaseTimer() {
+    }
+
+    /**
+     * Start timing a phase.
+     * @return the time the phase started, to pass to stop
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Stop timing a phase, adding the time since it started to the total for the phase.
+     * @param phase the phase being timed
+     * @param start the time the phase started, as returned by start
+     */
+    public static void stop(Phase phase, long start) {
+        nanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+    }
+
+    /**
+     * Read the total time spent in each phase so far.
+     * @return the number of nanoseconds spent in each phase, indexed by the ordinal of the phase
+     */
+    public static long[] read() {
+        long[] totals = new long[nanos.length()];
+        for (int phase = 0; phase < totals.length; ++phase)
+            totals[phase] = nanos.get(phase);
+        return totals;
+    }
+}
@@ -0,0 +1,149 @@
+package org.candidate697229.util;
+
+import java.util.Arrays;
+
+/**
+ * Buffer for a block of tuples, for adding up their COUNT, the SUM of some attributes and the SUM of the products of
+ * some pairs of attributes a block at a time rather than a tuple at a time. The tuples are held column by column, so
+ * each SUM is a tight loop over one or two arrays that the JIT compiler can unroll and vectorize.
+ *
+ * The sums are exact 128-bit values, as everywhere else, but checking every addition and multiplication for overflow
+ * would stop the loops from being vectorized. Instead, the magnitude of every value in the block is bounded first: if
+ * the product of any two values, added up over every tuple in the block, cannot overflow a long, the block is summed
+ * with plain long arithmetic and only the final 128-bit addition of each sum is checked. Otherwise the block falls back
+ * to adding every value and product to the 128-bit sums one at a time.
+ *
+ * The loops are left for the JIT compiler to vectorize rather than written against the JDK Vector API, which is still
+ * an incubator module (jdk.incubator.vector) that has to be added at both compile time and run time. Even with it,
+ * x86 has no packed 64-bit multiply below AVX-512, so the products would not vectorize on most machines.
+ */
+public class ProductSumBlock {
+    /**
+     * The number of tuples in a full block.
+     */
+    public static final int BLOCK_SIZE = 256;
+
+    /**
+     * The number of tuples below which a block is summed tuple by tuple rather than column by column.
+     */
+    private static final int MIN_VECTOR_LENGTH = 16;
+
+    private final long[][] columns;
+    private final int[] usedColumns;
+    private long[] partials = new long[0];
+    private int length;
+
+    /**
+     * Construct an empty block.
+     * @param arity the number of attributes of the tuples
+     * @param usedColumns the attributes that are set for each tuple, which are the only ones summed or multiplied
+     */
+    public ProductSumBlock(int arity, int[] usedColumns) {
+        columns = new long[arity][];
+        for (int column : usedColumns)
+            columns[column] = new long[BLOCK_SIZE];
+        this.usedColumns = usedColumns.clone();
+    }
+
+    /**
+     * Set an attribute of the tuple being added to the block.
+     * @param column the attribute, which must be one of the used columns
+     * @param value the value of the attribute
+     */
+    public void set(int column, long value) {
+        columns[column][length] = value;
+    }
+
+    /**
+     * Finish adding a tuple to the block, once each used attribute has been set.
+     * @return true if the block is now full, and so must be added to the sums before the next tuple is added
+     */
+    public boolean endTuple() {
+        return ++length == BLOCK_SIZE;
+    }
+
+    /**
+     * Add the aggregates of the tuples in the block to a run of 128-bit sums, then empty the block. The run holds the
+     * COUNT, followed by the SUM of each summed attribute in turn, followed by the SUM of the product of each pair of
+     * attributes in turn.
+     * @param sums the array holding the sums, as 128-bit values held as described in Int128
+     * @param offset the index of the COUNT in the array
+     * @param summedAttributes the attributes to add up
+     * @param firstFactors the first attribute of each pair to multiply
+     * @param secondFactors the second attribute of each pair to multiply
+     * @throws ArithmeticException if a sum overflows 128 bits
+     */
+    public void addTo(long[] sums, int offset, int[] summedAttributes, int[] firstFactors, int[] secondFactors) {
+        int k = offset;
+        Int128.add(sums, k++, length);
+        if (canOverflow()) {
+            for (int a : summedAttributes) {
+                long[] column = columns[a];
+                for (int row = 0; row < length; ++row)
+                    Int128.add(sums, k, column[row]);
+                k++;
+            }
+            for (int p = 0; p < firstFactors.length; ++p) {
+                long[] first = columns[firstFactors[p]];
+                long[] second = columns[secondFactors[p]];
+                for (int row = 0; row < length; ++row)
+                    Int128.addProduct(sums, k, first[row], second[row]);
+                k++;
+            }
+        } else if (length < MIN_VECTOR_LENGTH) {
+            /*
+             * Too few tuples for loops down the columns to pay for themselves, so go along each tuple instead, still
+             * without checking each operation.
+             */
+            int numOfSums = summedAttributes.length + firstFactors.length;
+            if (partials.length < numOfSums)
+                partials = new long[numOfSums];
+            Arrays.fill(partials, 0, numOfSums, 0);
+            for (int row = 0; row < length; ++row) {
+                int s = 0;
+                for (int a : summedAttributes)
+                    partials[s++] += columns[a][row];
+                for (int p = 0; p < firstFactors.length; ++p)
+                    partials[s++] += columns[firstFactors[p]][row] * columns[secondFactors[p]][row];
+            }
+            for (int s = 0; s < numOfSums; ++s, ++k)
+                Int128.add(sums, k, partials[s]);
+        } else {
+            for (int a : summedAttributes) {
+                long[] column = columns[a];
+                long sum = 0;
+                for (int row = 0; row < length; ++row)
+                    sum += column[row];
+                Int128.add(sums, k++, sum);
+            }
+            for (int p = 0; p < firstFactors.length; ++p) {
+                long[] first = columns[firstFactors[p]];
+                long[] second = columns[secondFactors[p]];
+                long sum = 0;
+                for (int row = 0; row < length; ++row)
+                    sum += first[row] * second[row];
+                Int128.add(sums, k++, sum);
+            }
+        }
+        length = 0;
+    }
+
+    /**
+     * Check if summing the block with plain arithmetic could overflow. Every value v has |v| at most 2^bits, where
+     * bits is the number of significant bits of v ^ (v >> 63) (which is |v| - 1 for negative v), so every product is
+     * at most 2^(2 * bits) in magnitude and the sum of fewer than 2^lengthBits of them is below 2^63 if
+     * 2 * bits + lengthBits is at most 63.
+     * @return true if the block must be summed with every operation checked
+     */
+    private boolean canOverflow() {
+        long magnitudes = 0;
+        for (int column : usedColumns) {
+            long[] values = columns[column];
+            for (int row = 0; row < length; ++row)
+                magnitudes |= values[row] ^ (values[row] >> 63);
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(magnitudes);
+        int lengthBits = 64 - Integer.numberOfLeadingZeros(length);
+        return 2 * bits + lengthBits > 63;
+    }
+}
@@ -2,8 +2,11 @@ package org.candidate697229.util;
 
 import org.candidate697229.database.Database;
 import org.candidate697229.database.Relation;
+import org.candidate697229.structures.TupleStorage;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Collectors;
 
 /**
@@ -54,6 +57,32 @@ public class SQLiteHelper {
         return result;
     }
 
+    /**
+     * Run a query returning any number of rows against a SQLite database.
+     * Notice each row of the result of the query is expected to be a sequence of longs.
+     *
+     * @param database the file containing the database to run against
+     * @param query    the SQL query to execute
+     * @return the rows of the result of the query, in the order they are returned in
+     */
+    public static List<long[]> runQueryForRows(String database, String query) {
+        List<long[]> result = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + database);
+             Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery(query)) {
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                long[] row = new long[columnCount];
+                for (int i = 1; i <= columnCount; ++i)
+                    row[i - 1] = rs.getLong(i);
+                result.add(row);
+            }
+        } catch (SQLException e) {
+            throw new InternalError("SQL error during query execution.", e);
+        }
+        return result;
+    }
+
     /**
      * Create a table from a relation.
      * @param conn the database connection to create the table in
@@ -71,12 +100,12 @@ public class SQLiteHelper {
             StringBuilder insertSql = new StringBuilder("INSERT INTO " + relation.getName() + "(");
             insertSql.append(String.join(",", relation.getAttributes()));
             insertSql.append(") VALUES ");
-            long[][] tuples = relation.getTuples();
-            for (long[] tuple : tuples) {
+            TupleStorage tuples = relation.getTuples();
+            for (int i = 0; i < tuples.size(); ++i) {
                 insertSql.append("(");
-                for (int j = 0; j < tuple.length - 1; ++j)
-                    insertSql.append(tuple[j]).append(",");
-                insertSql.append(tuple[tuple.length - 1]).append("),");
+                for (int j = 0; j < tuples.arity() - 1; ++j)
+                    insertSql.append(tuples.get(i, j)).append(",");
+                insertSql.append(tuples.get(i, tuples.arity() - 1)).append("),");
             }
             insertSql.deleteCharAt(insertSql.lastIndexOf(",")).append(";");
             Statement insertValues = conn.createStatement();